@@ -0,0 +1,206 @@
+package cn.xnatural.enet.common;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 自适应并发限制器(Vegas 算法).
+ * 根据请求耗时动态调整同时执行的请求个数上限:
+ *  以观测到的最小耗时为基准, 估算排队的请求个数: queue = limit * (1 - baseRtt / rtt)
+ *  排队少时上限慢慢增加; 排队多(下游变慢了)时, 上限减去多出的排队个数
+ * 每个时间窗口计算一次, 请求执行路径上只有 CAS 和计数
+ * 用法: if (limiter.acquire()) { long start = System.nanoTime(); try {...} finally { limiter.release(System.nanoTime() - start); } }
+ */
+public class AdaptiveLimiter {
+    protected final Object        key;
+    /**
+     * 当前正在执行的个数
+     */
+    protected final AtomicInteger inflight = new AtomicInteger();
+    protected final LongAdder     accepted = new LongAdder(), rejected = new LongAdder();
+    /**
+     * 当前窗口的耗时统计
+     */
+    protected final LongAdder     rttSum   = new LongAdder(), rttCount = new LongAdder();
+    /**
+     * 当前窗口中最大的 inflight
+     */
+    protected final AtomicInteger maxInflight = new AtomicInteger();
+    protected final AtomicBoolean updating = new AtomicBoolean(false);
+    /**
+     * 上限的最小值, 最大值
+     */
+    protected       int           minLimit = 4, maxLimit = 1000;
+    /**
+     * 计算窗口(纳秒), 每个窗口最少样本数
+     */
+    protected       long          window   = 100_000_000L;
+    protected       int           minSamples = 10;
+    /**
+     * 允许排队个数的系数: 少于 alpha * log10(limit) 增加上限, 多于 beta * log10(limit) 减小上限
+     */
+    protected       double        alpha    = 3, beta = 6;
+    /**
+     * 上限的平滑系数 0 - 1
+     */
+    protected       double        smoothing = 0.2;
+    /**
+     * 基准耗时每个窗口的上浮比例. 让基准能跟随 下游变化(例: 数据增多) 慢慢提高
+     */
+    protected       double        drift    = 0.002;
+    /**
+     * 当前上限. 只在 {@link #update(long)} 中修改
+     */
+    protected volatile double     limit;
+    /**
+     * 最近窗口的平均耗时, 基准耗时(纳秒)
+     */
+    protected volatile long       rtt, baseRtt;
+    protected volatile long       lastUpdate = System.nanoTime();
+
+
+    /**
+     * @param key 标识
+     * @param initialLimit 初始上限
+     */
+    public AdaptiveLimiter(Object key, int initialLimit) {
+        if (initialLimit < 1) throw new IllegalArgumentException("initialLimit must > 0");
+        this.key = key; this.limit = initialLimit;
+    }
+
+
+    /**
+     * 申请执行
+     * @return false: 达到上限, 应该拒绝
+     */
+    public boolean acquire() {
+        int lim = getLimit();
+        for (;;) {
+            int n = inflight.get();
+            if (n >= lim) { rejected.increment(); return false; }
+            if (inflight.compareAndSet(n, n + 1)) {
+                accepted.increment();
+                for (int m; (m = maxInflight.get()) < n + 1 && !maxInflight.compareAndSet(m, n + 1); );
+                return true;
+            }
+        }
+    }
+
+
+    /**
+     * 执行完成
+     * @param rttNanos 从 {@link #acquire()} 到完成的耗时(纳秒)
+     */
+    public void release(long rttNanos) {
+        inflight.decrementAndGet();
+        rttSum.add(rttNanos); rttCount.increment();
+        long now = System.nanoTime();
+        if (now - lastUpdate >= window && updating.compareAndSet(false, true)) {
+            try { update(now); }
+            finally { updating.set(false); }
+        }
+    }
+
+
+    /**
+     * 执行完成, 但不计入耗时. 例: 没有真正执行就被丢弃了
+     */
+    public void cancel() {
+        inflight.decrementAndGet();
+    }
+
+
+    /**
+     * 一个窗口结束, 重新计算上限
+     * @param now
+     */
+    protected void update(long now) {
+        long count = rttCount.sum();
+        if (count < minSamples) return;
+        long sum = rttSum.sumThenReset(); rttCount.add(-count);
+        int peak = maxInflight.getAndSet(inflight.get());
+        lastUpdate = now;
+
+        long s = Math.max(1, sum / count);
+        long b = baseRtt;
+        b = b == 0 ? s : Math.min(s, (long) (b * (1 + drift)) + 1);
+        rtt = s; baseRtt = b;
+
+        double lim = limit;
+        double queue = lim * (1 - (double) b / s), lg = Math.max(1, Math.log10(lim));
+        double newLimit;
+        if (queue > beta * lg) newLimit = lim - (queue - beta * lg);
+        else if (queue < alpha * lg && peak >= lim / 2) newLimit = lim + lg; // 没有用满上限时, 耗时不能说明上限是否合适, 不增加
+        else return;
+        newLimit = lim * (1 - smoothing) + newLimit * smoothing;
+        limit = Math.max(minLimit, Math.min(maxLimit, newLimit));
+    }
+
+
+    public AdaptiveLimiter limits(int min, int max) {
+        if (min < 1 || max < min) throw new IllegalArgumentException("require 0 < min <= max");
+        this.minLimit = min; this.maxLimit = max;
+        this.limit = Math.max(min, Math.min(max, limit));
+        return this;
+    }
+
+
+    public AdaptiveLimiter windowMs(long ms) {
+        if (ms < 1) throw new IllegalArgumentException("window must > 0");
+        this.window = ms * 1_000_000L;
+        return this;
+    }
+
+
+    /**
+     * 设置允许排队个数的系数
+     * @param alpha 排队少于 alpha * log10(limit) 时增加上限
+     * @param beta 排队多于 beta * log10(limit) 时减小上限
+     * @return
+     */
+    public AdaptiveLimiter queueFactors(double alpha, double beta) {
+        if (alpha <= 0 || beta < alpha) throw new IllegalArgumentException("require 0 < alpha <= beta");
+        this.alpha = alpha; this.beta = beta;
+        return this;
+    }
+
+
+    public int getLimit() {
+        return (int) limit;
+    }
+
+
+    public int getInflight() {
+        return inflight.get();
+    }
+
+
+    public long getRejectedCount() {
+        return rejected.sum();
+    }
+
+
+    /**
+     * 运行状态
+     * @return
+     */
+    public Map<String, Object> metrics() {
+        Map<String, Object> r = new LinkedHashMap<>(7);
+        r.put("limit", getLimit());
+        r.put("inflight", inflight.get());
+        r.put("accepted", accepted.sum());
+        r.put("rejected", rejected.sum());
+        r.put("rtt", Math.round(rtt / 1000.0) / 1000.0);
+        r.put("baseRtt", Math.round(baseRtt / 1000.0) / 1000.0);
+        return r;
+    }
+
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + ":" + key + ", limit: " + getLimit() + ", inflight: " + inflight.get();
+    }
+}
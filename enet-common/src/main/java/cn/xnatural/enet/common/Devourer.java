@@ -4,11 +4,15 @@ import java.util.Queue;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.Supplier;
 
 /**
  * 吞噬器, 同一时刻只会有一个 执行体被执行
+ * 默认每次提交到线程池只执行一个; 设置 {@link #drain(int, long)} 后, 一次连续执行多个, 减少线程切换
  * 核心方法: {@link #trigger()}
  */
 public class Devourer {
@@ -17,6 +21,24 @@ public class Devourer {
     protected final AtomicBoolean     running = new AtomicBoolean(false);
     protected final Queue<Runnable>   waiting = new ConcurrentLinkedQueue<>();
     protected final Object            key;
+    /**
+     * 排队个数, 执行成功个数, 执行失败个数, 队列满被拒绝个数
+     * {@link ConcurrentLinkedQueue#size()} 是 O(n), 单独计数
+     */
+    protected final AtomicInteger     size     = new AtomicInteger();
+    protected final LongAdder         executed = new LongAdder(), failed = new LongAdder(), rejected = new LongAdder();
+    /**
+     * 最多排队个数
+     */
+    protected       int               queueLimit = Integer.MAX_VALUE;
+    /**
+     * 一次激活最多连续执行的个数
+     */
+    protected       int               drainCount = 1;
+    /**
+     * 一次激活最多连续执行的时间(纳秒). 0: 不限制
+     */
+    protected       long              drainTime  = 0;
     /**
      * 是否应该熔断: 暂停执行
      */
@@ -36,13 +58,35 @@ public class Devourer {
 
 
     public Devourer offer(Runnable fn) {
-        if (fn == null || fusing.get()) return this;
-        waiting.offer(fn);
-        trigger();
+        tryOffer(fn);
         return this;
     }
 
 
+    /**
+     * 添加执行体
+     * @param fn
+     * @return false: 被熔断丢弃 或者 队列已满 或者 线程池拒绝
+     */
+    public boolean tryOffer(Runnable fn) {
+        if (fn == null || fusing.get()) return false;
+        if (size.incrementAndGet() > queueLimit) {
+            size.decrementAndGet(); rejected.increment();
+            return false;
+        }
+        waiting.offer(fn);
+        try {
+            trigger();
+        } catch (RejectedExecutionException ex) { // 线程池拒绝: 还没被别的线程取走就算没添加成功
+            if (waiting.remove(fn)) {
+                size.decrementAndGet(); rejected.increment();
+                return false;
+            }
+        }
+        return true;
+    }
+
+
     /**
      * 不断的从 {@link #waiting} 对列中取出执行
      */
@@ -52,16 +96,44 @@ public class Devourer {
         if (!running.compareAndSet(false, true)) return;
         // 1.必须保证这里只有一个线程被执行
         // 2.必须保证不能出现情况: waiting 对列中有值, 但没有被执行
-        exec.execute(() -> {
+        try {
+            exec.execute(this::drainLoop);
+        } catch (RejectedExecutionException ex) { // 不能一直占着 running, 否则这个吞噬器再也不会执行
+            running.set(false);
+            throw ex;
+        }
+    }
+
+
+    /**
+     * 在一次激活中连续执行 {@link #waiting} 中的执行体
+     * 执行完还有剩下的, 重新提交到线程池(让出线程); 线程池拒绝时在当前线程继续执行, 不能留下没人执行的
+     */
+    private void drainLoop() {
+        for (;;) {
+            long deadline = drainTime > 0 ? System.nanoTime() + drainTime : 0;
             try {
-                waiting.poll().run();
-            } catch (Throwable t) {
-                log.error(t, getClass().getSimpleName() + ":" + key);
+                Runnable fn;
+                for (int n = 1; (fn = waiting.poll()) != null; n++) {
+                    size.decrementAndGet();
+                    try {
+                        fn.run(); executed.increment();
+                    } catch (Throwable t) {
+                        failed.increment();
+                        log.error(t, getClass().getSimpleName() + ":" + key);
+                    }
+                    if (n >= drainCount || (deadline > 0 && System.nanoTime() >= deadline) || pause.get()) break;
+                }
             } finally {
                 running.set(false);
-                if (!waiting.isEmpty()) trigger();
             }
-        });
+            if (waiting.isEmpty()) return;
+            try {
+                trigger(); return;
+            } catch (RejectedExecutionException ex) {
+                if (pause.get() || !running.compareAndSet(false, true)) return; // 暂停中 或 已被别的线程激活
+            }
+        }
     }
 
 
@@ -73,6 +145,32 @@ public class Devourer {
     }
 
 
+    /**
+     * 设置一次激活连续执行的上限
+     * @param maxCount 最多执行个数
+     * @param maxTimeMs 最多执行时间(毫秒). 0: 不限制
+     * @return
+     */
+    public Devourer drain(int maxCount, long maxTimeMs) {
+        if (maxCount < 1) throw new IllegalArgumentException("maxCount must > 0");
+        if (maxTimeMs < 0) throw new IllegalArgumentException("maxTimeMs must >= 0");
+        this.drainCount = maxCount; this.drainTime = maxTimeMs * 1_000_000L;
+        return this;
+    }
+
+
+    /**
+     * 设置最多排队个数. 超过后 {@link #tryOffer(Runnable)} 返回false
+     * @param limit
+     * @return
+     */
+    public Devourer queueLimit(int limit) {
+        if (limit < 1) throw new IllegalArgumentException("queueLimit must > 0");
+        this.queueLimit = limit;
+        return this;
+    }
+
+
     public Devourer fusing(Supplier<Boolean> fusing) {
         if (fusing == null) throw new IllegalArgumentException("fusing Supplier can not be null");
         this.fusing = fusing;
@@ -85,7 +183,34 @@ public class Devourer {
      * @return
      */
     public int getWaitingCount() {
-        return waiting.size();
+        return size.get();
+    }
+
+
+    /**
+     * 执行成功个数
+     * @return
+     */
+    public long getExecutedCount() {
+        return executed.sum();
+    }
+
+
+    /**
+     * 执行失败个数
+     * @return
+     */
+    public long getFailedCount() {
+        return failed.sum();
+    }
+
+
+    /**
+     * 队列满被拒绝个数
+     * @return
+     */
+    public long getRejectedCount() {
+        return rejected.sum();
     }
 
 
@@ -97,6 +222,6 @@ public class Devourer {
 
     @Override
     public String toString() {
-        return "running: " + running + ", waiting count: " + waiting.size();
+        return "running: " + running + ", waiting count: " + size.get() + ", executed: " + executed.sum() + ", failed: " + failed.sum();
     }
 }
@@ -0,0 +1,166 @@
+package cn.xnatural.enet.common;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 耗时直方图(单位: 纳秒).
+ * 按2的幂分桶, 每个区间再细分4个子桶(相对误差25%以内). 桶计数和总耗时按线程分条记录(条数按CPU个数), 不加锁, 适合在热点路径上常开
+ * 记录一次: 两次原子加(同一分条), 一次读最大值. 只有超过最大值时才 CAS
+ * 核心方法: {@link #record(long)}, {@link #snapshot()}
+ */
+public class Histogram {
+    /**
+     * 每个2的幂区间细分的子桶位数
+     */
+    protected static final int SUB_BITS = 2;
+    /**
+     * 可记录的最大值的最高位. 2^37 纳秒 约等于 137 秒, 超过的都记到最后一个桶
+     */
+    protected static final int MAX_BIT  = 36;
+    protected static final int BUCKETS  = ((MAX_BIT - SUB_BITS + 1) << SUB_BITS) + (1 << SUB_BITS);
+    /**
+     * 分条个数: 不小于CPU个数的2的幂, 最多16
+     */
+    protected static final int STRIPES  = Math.min(16, Integer.highestOneBit(Math.max(1, (Runtime.getRuntime().availableProcessors() - 1) << 1)));
+    /**
+     * 每个分条占的长度: 桶计数 + 总耗时. 和下一个分条相邻的是它最小的几个桶(几纳秒, 很少被写), 分条之间基本不争抢缓存行
+     */
+    protected static final int STRIDE   = BUCKETS + 1;
+
+    protected final AtomicLongArray cells = new AtomicLongArray(STRIDE * STRIPES);
+    protected final AtomicLong      max   = new AtomicLong();
+
+
+    /**
+     * 记录一个值
+     * @param nanos 耗时(纳秒)
+     */
+    public void record(long nanos) {
+        if (nanos < 0) nanos = 0;
+        int base = (int) (Thread.currentThread().getId() & (STRIPES - 1)) * STRIDE;
+        cells.incrementAndGet(base + index(nanos));
+        cells.addAndGet(base + BUCKETS, nanos);
+        if (nanos > max.get()) updateMax(nanos);
+    }
+
+
+    protected void updateMax(long nanos) {
+        for (long m = max.get(); nanos > m && !max.compareAndSet(m, nanos); ) m = max.get();
+    }
+
+
+    /**
+     * 值对应的桶下标
+     * @param v
+     * @return
+     */
+    protected static int index(long v) {
+        if (v < (1 << SUB_BITS)) return (int) v;
+        int msb = 63 - Long.numberOfLeadingZeros(v);
+        if (msb > MAX_BIT) return BUCKETS - 1;
+        int sub = (int) ((v >>> (msb - SUB_BITS)) & ((1 << SUB_BITS) - 1));
+        return ((msb - SUB_BITS + 1) << SUB_BITS) + sub;
+    }
+
+
+    /**
+     * 桶的上界值
+     * @param i 桶下标
+     * @return
+     */
+    protected static long upperBound(int i) {
+        if (i < (1 << SUB_BITS)) return i;
+        int msb = (i >> SUB_BITS) + SUB_BITS - 1;
+        long sub = i & ((1 << SUB_BITS) - 1);
+        long lower = (1L << msb) | (sub << (msb - SUB_BITS));
+        return lower + (1L << (msb - SUB_BITS)) - 1;
+    }
+
+
+    public long getCount() {
+        long n = 0;
+        for (long c : merge()) n += c;
+        return n;
+    }
+
+
+    /**
+     * 百分位值
+     * @param percentile 0 - 100
+     * @return 纳秒
+     */
+    public long percentile(double percentile) {
+        return percentile(merge(), percentile);
+    }
+
+
+    /**
+     * 合并各分条的桶计数
+     * @return
+     */
+    protected long[] merge() {
+        long[] merged = new long[BUCKETS];
+        for (int s = 0; s < STRIPES; s++) {
+            for (int i = 0; i < BUCKETS; i++) merged[i] += cells.get(s * STRIDE + i);
+        }
+        return merged;
+    }
+
+
+    protected long percentile(long[] merged, double percentile) {
+        long total = 0;
+        for (long c : merged) total += c;
+        if (total == 0) return 0;
+        long target = (long) Math.ceil(total * percentile / 100.0), acc = 0;
+        for (int i = 0; i < merged.length; i++) {
+            acc += merged[i];
+            if (acc >= target) return Math.min(upperBound(i), max.get());
+        }
+        return max.get();
+    }
+
+
+    /**
+     * 当前统计快照(单位: 毫秒)
+     * @return count, mean, p50, p90, p99, p999, max
+     */
+    public Map<String, Object> snapshot() {
+        long[] merged = merge();
+        Map<String, Object> r = new LinkedHashMap<>(9);
+        long n = 0;
+        for (long c : merged) n += c;
+        r.put("count", n);
+        r.put("mean", toMs(n == 0 ? 0 : getSum() / n));
+        r.put("p50", toMs(percentile(merged, 50)));
+        r.put("p90", toMs(percentile(merged, 90)));
+        r.put("p99", toMs(percentile(merged, 99)));
+        r.put("p999", toMs(percentile(merged, 99.9)));
+        r.put("max", toMs(max.get()));
+        return r;
+    }
+
+
+    /**
+     * 总耗时(纳秒)
+     * @return
+     */
+    public long getSum() {
+        long n = 0;
+        for (int s = 0; s < STRIPES; s++) n += cells.get(s * STRIDE + BUCKETS);
+        return n;
+    }
+
+
+    protected static double toMs(long nanos) {
+        return Math.round(nanos / 1000.0) / 1000.0;
+    }
+
+
+    @Override
+    public String toString() {
+        return snapshot().toString();
+    }
+}
@@ -0,0 +1,142 @@
+package cn.xnatural.enet.common;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 按 key 限流的令牌桶(GCRA 算法: 每个桶只有一个 "理论到达时间", 一次 CAS 完成取令牌, 无锁)
+ * 桶按 key 的 hash 分到多个分段中, 每个分段是一个按访问顺序的 LRU, 超过容量时淘汰最久没有访问的 key. 即: 占用的内存有上限
+ * 核心方法: {@link #tryAcquire(Object)}
+ */
+public class RateLimiter {
+    protected final Object    key;
+    /**
+     * 每个令牌的间隔(纳秒)
+     */
+    protected final long      interval;
+    /**
+     * 允许的突发: 理论到达时间最多超前当前时间多少纳秒
+     */
+    protected final long      tolerance;
+    protected final double    rate;
+    protected final int       burst;
+    protected final Stripe[]  stripes;
+    protected final LongAdder accepted = new LongAdder(), rejected = new LongAdder(), evicted = new LongAdder();
+
+
+    /**
+     * @param key 标识
+     * @param rate 每秒令牌数
+     * @param burst 桶容量(最多连续通过的个数)
+     * @param maxKeys 最多保存的 key 个数
+     * @param stripeCount 分段个数. 向上取2的幂
+     */
+    public RateLimiter(Object key, double rate, int burst, int maxKeys, int stripeCount) {
+        if (rate <= 0) throw new IllegalArgumentException("rate must > 0");
+        if (burst < 1) throw new IllegalArgumentException("burst must > 0");
+        if (maxKeys < 1 || stripeCount < 1) throw new IllegalArgumentException("maxKeys and stripeCount must > 0");
+        this.key = key; this.rate = rate; this.burst = burst;
+        this.interval = Math.max(1, (long) (1_000_000_000L / rate));
+        this.tolerance = interval * (burst - 1);
+        int n = 1;
+        while (n < stripeCount) n <<= 1;
+        stripes = new Stripe[n];
+        int capacity = Math.max(1, maxKeys / n);
+        for (int i = 0; i < n; i++) stripes[i] = new Stripe(capacity);
+    }
+
+
+    /**
+     * 取一个令牌
+     * @param k 限流的 key. 例: ip
+     * @return 0: 成功; 大于0: 失败, 需要等待的纳秒数
+     */
+    public long tryAcquire(Object k) {
+        AtomicLong tat = bucket(k);
+        for (;;) {
+            long now = System.nanoTime(), t = tat.get();
+            long next = (t - now < 0 ? now : t) + interval;
+            long wait = next - now - interval - tolerance;
+            if (wait > 0) { rejected.increment(); return wait; }
+            if (tat.compareAndSet(t, next)) { accepted.increment(); return 0; }
+        }
+    }
+
+
+    /**
+     * 取 key 对应的桶(理论到达时间). 不存在则创建
+     */
+    protected AtomicLong bucket(Object k) {
+        int h = (k == null ? 0 : k.hashCode());
+        h ^= (h >>> 16);
+        Stripe s = stripes[h & (stripes.length - 1)];
+        synchronized (s) {
+            AtomicLong b = s.get(k);
+            if (b == null) { b = new AtomicLong(System.nanoTime() - tolerance); s.put(k, b); }
+            return b;
+        }
+    }
+
+
+    public long getRejectedCount() {
+        return rejected.sum();
+    }
+
+
+    /**
+     * 当前保存的 key 个数
+     */
+    public int getKeyCount() {
+        int n = 0;
+        for (Stripe s : stripes) {
+            synchronized (s) { n += s.size(); }
+        }
+        return n;
+    }
+
+
+    /**
+     * 运行状态
+     * @return
+     */
+    public Map<String, Object> metrics() {
+        Map<String, Object> r = new LinkedHashMap<>(7);
+        r.put("rate", rate);
+        r.put("burst", burst);
+        r.put("keys", getKeyCount());
+        r.put("accepted", accepted.sum());
+        r.put("rejected", rejected.sum());
+        r.put("evicted", evicted.sum());
+        return r;
+    }
+
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + ":" + key + ", rate: " + rate + "/s, burst: " + burst + ", rejected: " + rejected.sum();
+    }
+
+
+    /**
+     * 一个分段: 按访问顺序的 LRU
+     */
+    protected class Stripe extends LinkedHashMap<Object, AtomicLong> {
+        protected final int capacity;
+
+
+        protected Stripe(int capacity) {
+            super(16, 0.75f, true);
+            this.capacity = capacity;
+        }
+
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Object, AtomicLong> eldest) {
+            if (size() <= capacity) return false;
+            evicted.increment();
+            return true;
+        }
+    }
+}
@@ -36,6 +36,7 @@ public class Utils {
 
     /**
      * 构建一个 http 请求, 支持 get, post. 文件上传.
+     * 每次请求都新建连接. 频繁的服务间调用用 cn.xnatural.enet.server.http.netty.NettyHttpClient(连接池, 长连接复用)
      * @return
      */
     public static Http http() { return new Http(); }
@@ -13,10 +13,13 @@ import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
 import java.util.TreeSet;
-import java.util.concurrent.*;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
 import java.util.function.Consumer;
 
 import static cn.xnatural.enet.common.Utils.*;
@@ -33,7 +36,11 @@ public class AppContext {
     /**
      * 系统运行线程池. {@link #initExecutor()}}
      */
-    protected       ThreadPoolExecutor  exec;
+    protected       SysExecutor         exec;
+    /**
+     * 执行通道: 名字 -> 线程池. 配置: sys.exec.&lt;lane&gt;.*. {@link #lane(String)}
+     */
+    protected final Map<String, SysExecutor> lanes = new ConcurrentHashMap<>();
     /**
      * 事件中心 {@link #initEp()}}
      */
@@ -89,6 +96,7 @@ public class AppContext {
         ep.fire("sys.stopping", EC.of(this), (ce) -> {
             if (shutdownHook != null) Runtime.getRuntime().removeShutdownHook(shutdownHook);
             exec.shutdown();
+            lanes.values().forEach(SysExecutor::shutdown);
         });
     }
 
@@ -146,7 +154,7 @@ public class AppContext {
 
                 // 取值
                 if (EP.class.isAssignableFrom(f.getType())) v = wrapEpForSource(o);
-                else if (Executor.class.isAssignableFrom(f.getType())) v = wrapExecForSource(o);
+                else if (Executor.class.isAssignableFrom(f.getType())) v = wrapExecForSource(o, r.name());
                 else if (Environment.class.isAssignableFrom(f.getType())) v = env;
                 else if (AppContext.class.isAssignableFrom(f.getType())) v = this;
                 else v = ep.fire("bean.get", EC.of(this).sync().args(f.getType(), r.name())); // 全局获取bean对象
@@ -194,85 +202,89 @@ public class AppContext {
     protected EP initEp() {
         return new EP(exec) {
             @Override
-            protected Object doPublish(String eName, EC ec, Consumer<EC> completeFn) {
+            protected Object publish(String eName, Listeners ls, EC ec, Consumer<EC> completeFn) {
                 if ("sys.starting".equals(eName) || "sys.stopping".equals(eName) || "sys.started".equals(eName)) {
                     if (ec.source() != AppContext.this) throw new UnsupportedOperationException("not allow fire event '" + eName + "'");
                 }
                 if ("env.updateAttr".equals(eName)) {
                     if (ec.source() != env) throw new UnsupportedOperationException("not allow fire event '" + eName + "'");
                 }
-                return super.doPublish(eName, ec, completeFn);
+                return super.publish(eName, ls, ec, completeFn);
+            }
+            @Override
+            public <F> F channel(String eName, Class<F> fnType, Object source) {
+                if ("sys.starting".equals(eName) || "sys.stopping".equals(eName) || "sys.started".equals(eName) || "env.updateAttr".equals(eName)) {
+                    throw new UnsupportedOperationException("not allow create channel for event '" + eName + "'");
+                }
+                return super.channel(eName, fnType, source);
             }
             @Override
+            protected Executor laneExec(String lane) { return lane(lane); }
+            @Override
             public String toString() { return "coreEp"; }
         };
     }
 
 
     /**
-     * 初始化一个 {@link ThreadPoolExecutor}
-     * NOTE: 如果线程池在不停的创建线程, 有可能是因为 提交的 Runnable 的异常没有被处理.
-     * see:  {@link ThreadPoolExecutor#runWorker(ThreadPoolExecutor.Worker)} 这里面当有异常抛出时 1128行代码 {@link ThreadPoolExecutor#processWorkerExit(ThreadPoolExecutor.Worker, boolean)}
+     * 取执行通道的线程池. 不存在则创建
+     * 用于隔离不同类型的执行: 例: io(阻塞IO)
+     * @param name 通道名. 空或者sys: 系统线程池 {@link #exec}
+     * @return
+     */
+    protected SysExecutor lane(String name) {
+        if (isEmpty(name) || "sys".equals(name)) return exec;
+        return lanes.computeIfAbsent(name, n -> {
+            SysExecutor e = new SysExecutor(n);
+            if (env != null) e.configure(env, "sys.exec." + n);
+            return e;
+        });
+    }
+
+
+    /**
+     * 初始化系统执行器. 类型及属性在 env.configured 后按配置(sys.exec.*)调整. {@link SysExecutor}
      */
     protected void initExecutor() {
-        exec = new ThreadPoolExecutor(
-                4, 8, 60, TimeUnit.MINUTES, new LinkedBlockingQueue<>(),
-                new ThreadFactory() {
-                    final AtomicInteger i = new AtomicInteger(1);
-                    @Override
-                    public Thread newThread(Runnable r) {
-                        return new Thread(r, "sys-" + i.getAndIncrement());
-                    }
-                }
-        ) {
-            @Override
-            public void execute(Runnable fn) {
-                try {
-                    super.execute(fn);
-                } catch (RejectedExecutionException ex) {
-                    log.warn("Thread pool rejected new task very heavy load. {}", this);
-                } catch (Throwable t) {
-                    log.error("Task happen unknown error", t);
-                }
-            }
-        };
-        exec.allowCoreThreadTimeOut(true);
+        exec = new SysExecutor("sys");
     }
 
 
-    @EL(name = "env.configured")
+    @EL(name = "env.configured", async = false)
     protected void envConfigured() {
         // 重置 exec 相关属性
-        Integer c = env.getInteger("sys.exec.corePoolSize", null);
-        if (c != null) exec.setCorePoolSize(c);
-        Integer m = env.getInteger("sys.exec.maximumPoolSize", null);
-        if (m != null) exec.setMaximumPoolSize(m);
-        // 如果 maximumPoolSize 小于 corePoolSize 则设置为相等
-        if (exec.getCorePoolSize() > exec.getMaximumPoolSize()) exec.setMaximumPoolSize(exec.getCorePoolSize());
-        Long k = env.getLong("sys.exec.keepAliveTime", null);
-        if (k != null) exec.setKeepAliveTime(k, TimeUnit.SECONDS);
+        exec.configure(env, "sys.exec");
+        // 执行通道: sys.exec.<lane>.*
+        for (String k : env.groupAttr("sys.exec").keySet()) {
+            int i = k.indexOf('.');
+            if (i > 0) lanes.computeIfAbsent(k.substring(0, i), SysExecutor::new);
+        }
+        lanes.forEach((n, e) -> e.configure(env, "sys.exec." + n));
 
         // 添加 ep 跟踪事件
         ep.addTrackEvent(env.getString("ep.track", "").split(","));
+        Double r = env.getDouble("ep.track.sampleRate", null);
+        if (r != null) ep.sampleRate(r);
+        Integer n = env.getInteger("ep.timingSample", null);
+        if (n != null) ep.timingSample(n);
     }
 
 
     @EL(name = "env.updateAttr")
     protected void updateAttr(String k, String v) {
-        if (k.startsWith("sys.exec")) {
-            if ("sys.exec.corePoolSize".equals(k)) {
-                Integer i = toInteger(v, null);
-                if (i == null) throw new IllegalArgumentException("sys.exec.corePoolSize属性值只能是整数");
-                exec.setCorePoolSize(i);
-            } else if ("sys.exec.maximumPoolSize".equals(k)) {
-                Integer i = toInteger(v, null);
-                if (i == null) throw new IllegalArgumentException("sys.exec.maximumPoolSize属性值只能是整数");
-                exec.setCorePoolSize(i);
-            } else if ("sys.exec.keepAliveTime".equals(k)) {
-                Long l = toLong(v, null);
-                if (l == null) throw new IllegalArgumentException("sys.exec.keepAliveTime属性值只能是整数");
-                exec.setKeepAliveTime(l, TimeUnit.SECONDS);
-            } else log.warn("Not allow change property '{}'", k);
+        if (k.startsWith("sys.exec.")) {
+            String attr = k.substring("sys.exec.".length());
+            int i = attr.indexOf('.');
+            if (i > 0) lane(attr.substring(0, i)).update(attr.substring(i + 1), v);
+            else exec.update(attr, v);
+        } else if ("ep.track.sampleRate".equals(k)) {
+            Double d = toDouble(v, null);
+            if (d == null) throw new IllegalArgumentException("ep.track.sampleRate属性值只能是0到1的小数");
+            ep.sampleRate(d);
+        } else if ("ep.timingSample".equals(k)) {
+            Integer n = toInteger(v, null);
+            if (n == null || n < 1) throw new IllegalArgumentException("ep.timingSample属性值只能是大于0的整数");
+            ep.timingSample(n);
         }
     }
 
@@ -285,16 +297,47 @@ public class AppContext {
     }
 
 
+    /**
+     * 运行统计: 事件执行统计 及 系统线程池状态
+     * @return
+     */
+    @EL(name = "sys.metrics", async = false)
+    protected Object metrics() {
+        Map<String, Object> r = new LinkedHashMap<>(3);
+        if (exec != null) {
+            Map<String, Object> e = new LinkedHashMap<>();
+            e.put("sys", exec.metrics());
+            new TreeMap<>(lanes).forEach((n, l) -> e.put(n, l.metrics()));
+            r.put("exec", e);
+        }
+        r.put("events", ep.metrics());
+        return r;
+    }
+
+
+    /**
+     * 最近被追踪(采样)的事件链
+     * @param limit 最多返回多少条
+     * @return
+     */
+    @EL(name = "sys.traces", async = false)
+    protected Object traces(Integer limit) {
+        return ep.traces(limit == null ? 50 : limit);
+    }
+
+
     /**
      * 为 source 包装 Executor
      * @param source
+     * @param lane 执行通道名. @Resource(name = "io")
      * @return
      */
-    protected Executor wrapExecForSource(Object source) {
+    protected Executor wrapExecForSource(Object source, String lane) {
+        SysExecutor e = lane(lane);
         return new Executor() {
             @Override
-            public void execute(Runnable cmd) { exec.execute(cmd); }
-            public int getCorePoolSize() { return exec.getCorePoolSize(); }
+            public void execute(Runnable cmd) { e.execute(cmd); }
+            public int getCorePoolSize() { return e.getCorePoolSize(); }
         };
     }
 
@@ -314,10 +357,18 @@ public class AppContext {
                 return ep.fire(eName, ec, completeFn);
             }
             @Override
+            public <F> F channel(String eName, Class<F> fnType, Object src) {
+                return ep.channel(eName, fnType, src == null ? source : src);
+            }
+            @Override
             public EP addListenerSource(Object source) {
                 ep.addListenerSource(source); return this;
             }
             @Override
+            public Map<String, Object> metrics() { return ep.metrics(); }
+            @Override
+            public List<Map<String, Object>> traces(int limit) { return ep.traces(limit); }
+            @Override
             public String toString() {
                 return "wrappedCoreEp:" + source.getClass().getSimpleName();
             }
@@ -264,6 +264,11 @@ public class Environment {
     }
 
 
+    public Double getDouble(String key, Double defaultValue) {
+        return Utils.toDouble(getAttr(key), defaultValue);
+    }
+
+
     public String getString(String key, String defaultValue) {
         String v = getAttr(key);
         return (v == null ? defaultValue : v);
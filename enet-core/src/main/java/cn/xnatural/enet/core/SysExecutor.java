@@ -0,0 +1,271 @@
+package cn.xnatural.enet.core;
+
+import cn.xnatural.enet.common.Log;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import static cn.xnatural.enet.common.Utils.toInteger;
+import static cn.xnatural.enet.common.Utils.toLong;
+
+/**
+ * 系统执行器. 实际执行的线程池可切换, 使用方始终持有同一个对象
+ * 支持的类型(${prefix}.type):
+ *  tpe: {@link ThreadPoolExecutor}(默认). 属性: corePoolSize, maximumPoolSize, keepAliveTime
+ *  forkjoin: {@link ForkJoinPool} work-stealing. 属性: parallelism
+ *  virtual: 每个任务一个虚拟线程(JDK21+), 不支持时保持原类型
+ */
+public class SysExecutor implements Executor {
+    protected final Log                      log = Log.of(SysExecutor.class);
+    /**
+     * 名字. 也是线程名前缀
+     */
+    protected final String                   name;
+    protected volatile String                type;
+    protected volatile ExecutorService       delegate;
+    /**
+     * 被拒绝的任务数
+     */
+    protected final LongAdder                rejected = new LongAdder();
+
+
+    public SysExecutor(String name) {
+        this.name = name;
+        this.delegate = create("tpe", null, null);
+        this.type = "tpe";
+    }
+
+
+    /**
+     * 提交任务
+     * @param fn
+     * @throws RejectedExecutionException 线程池拒绝. 调用方据此释放占用的资源(例: 监听器的执行名额), 按自己的策略处理
+     */
+    @Override
+    public void execute(Runnable fn) {
+        ExecutorService e = delegate;
+        try {
+            e.execute(fn);
+        } catch (RejectedExecutionException ex) {
+            if (e != delegate && !delegate.isShutdown()) execute(fn); // 正在切换执行器, 提交到新的执行器
+            else {
+                rejected.increment();
+                log.warn("Thread pool rejected new task very heavy load. {}", e);
+                throw ex;
+            }
+        } catch (Throwable t) {
+            log.error("Task happen unknown error", t);
+        }
+    }
+
+
+    /**
+     * 按配置调整执行器
+     * @param env
+     * @param prefix 属性前缀. 例: sys.exec
+     */
+    public void configure(Environment env, String prefix) {
+        String t = env.getString(prefix + ".type", type);
+        if (!type.equalsIgnoreCase(t)) switchTo(t, env, prefix);
+        ExecutorService e = delegate;
+        if (e instanceof ThreadPoolExecutor) {
+            ThreadPoolExecutor tpe = (ThreadPoolExecutor) e;
+            Integer c = env.getInteger(prefix + ".corePoolSize", null);
+            if (c != null) tpe.setCorePoolSize(c);
+            Integer m = env.getInteger(prefix + ".maximumPoolSize", null);
+            if (m != null) tpe.setMaximumPoolSize(m);
+            // 如果 maximumPoolSize 小于 corePoolSize 则设置为相等
+            if (tpe.getCorePoolSize() > tpe.getMaximumPoolSize()) tpe.setMaximumPoolSize(tpe.getCorePoolSize());
+            Long k = env.getLong(prefix + ".keepAliveTime", null);
+            if (k != null) tpe.setKeepAliveTime(k, TimeUnit.SECONDS);
+        }
+    }
+
+
+    /**
+     * 动态修改属性
+     * @param attr 属性名(不带前缀)
+     * @param v 属性值
+     */
+    public void update(String attr, String v) {
+        ExecutorService e = delegate;
+        if ("type".equals(attr)) {
+            if (v != null && !type.equalsIgnoreCase(v)) switchTo(v, null, null);
+        } else if (e instanceof ThreadPoolExecutor) {
+            ThreadPoolExecutor tpe = (ThreadPoolExecutor) e;
+            if ("corePoolSize".equals(attr)) {
+                Integer i = toInteger(v, null);
+                if (i == null) throw new IllegalArgumentException("corePoolSize属性值只能是整数");
+                tpe.setCorePoolSize(i);
+            } else if ("maximumPoolSize".equals(attr)) {
+                Integer i = toInteger(v, null);
+                if (i == null) throw new IllegalArgumentException("maximumPoolSize属性值只能是整数");
+                tpe.setMaximumPoolSize(i);
+            } else if ("keepAliveTime".equals(attr)) {
+                Long l = toLong(v, null);
+                if (l == null) throw new IllegalArgumentException("keepAliveTime属性值只能是整数");
+                tpe.setKeepAliveTime(l, TimeUnit.SECONDS);
+            } else log.warn("Not allow change property '{}' for executor '{}'", attr, name);
+        } else log.warn("Not allow change property '{}' for executor '{}' of type '{}'", attr, name, type);
+    }
+
+
+    /**
+     * 切换执行器类型. 旧的执行器执行完已提交的任务后关闭
+     * @param t 类型
+     * @param env 可为空
+     * @param prefix 属性前缀
+     */
+    protected synchronized void switchTo(String t, Environment env, String prefix) {
+        ExecutorService old = delegate;
+        ExecutorService e = create(t, env, prefix);
+        if (e == null) return;
+        delegate = e; type = t.toLowerCase();
+        old.shutdown();
+        log.info("Executor '{}' switched to type '{}'", name, type);
+    }
+
+
+    /**
+     * 创建执行器
+     * @param t 类型
+     * @param env 可为空
+     * @param prefix 属性前缀
+     * @return
+     */
+    protected ExecutorService create(String t, Environment env, String prefix) {
+        if ("tpe".equalsIgnoreCase(t)) return createTpe();
+        else if ("forkjoin".equalsIgnoreCase(t)) {
+            int p = env == null ? Runtime.getRuntime().availableProcessors() : env.getInteger(prefix + ".parallelism", Runtime.getRuntime().availableProcessors());
+            AtomicInteger i = new AtomicInteger(1);
+            return new ForkJoinPool(p, pool -> {
+                ForkJoinWorkerThread th = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+                th.setName(name + "-fj-" + i.getAndIncrement());
+                return th;
+            }, (th, ex) -> log.error(ex, "Task happen unknown error"), true);
+        } else if ("virtual".equalsIgnoreCase(t)) {
+            ExecutorService e = createVirtual();
+            if (e != null) return e;
+            log.warn("Virtual thread not supported by current jvm: {}. executor '{}' keep type '{}'", System.getProperty("java.version"), name, type);
+            return null;
+        }
+        log.warn("Unknown executor type '{}'. supported: tpe, forkjoin, virtual", t);
+        return null;
+    }
+
+
+    /**
+     * 初始化一个 {@link ThreadPoolExecutor}
+     * NOTE: 如果线程池在不停的创建线程, 有可能是因为 提交的 Runnable 的异常没有被处理.
+     * see:  {@link ThreadPoolExecutor#runWorker(ThreadPoolExecutor.Worker)} 这里面当有异常抛出时 1128行代码 {@link ThreadPoolExecutor#processWorkerExit(ThreadPoolExecutor.Worker, boolean)}
+     */
+    protected ExecutorService createTpe() {
+        ThreadPoolExecutor e = new ThreadPoolExecutor(
+            4, 8, 60, TimeUnit.MINUTES, new LinkedBlockingQueue<>(),
+            new ThreadFactory() {
+                final AtomicInteger i = new AtomicInteger(1);
+                @Override
+                public Thread newThread(Runnable r) {
+                    return new Thread(r, name + "-" + i.getAndIncrement());
+                }
+            }
+        );
+        e.allowCoreThreadTimeOut(true);
+        return e;
+    }
+
+
+    /**
+     * 反射创建虚拟线程执行器(JDK21+): Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name(name + "-v-", 1).factory())
+     * @return null: 不支持
+     */
+    protected ExecutorService createVirtual() {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> bType = Class.forName("java.lang.Thread$Builder"); // 用公开的接口方法, 实现类不可访问
+            builder = bType.getMethod("name", String.class, long.class).invoke(builder, name + "-v-", 1L);
+            ThreadFactory f = (ThreadFactory) bType.getMethod("factory").invoke(builder);
+            return (ExecutorService) Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class).invoke(null, f);
+        } catch (NoSuchMethodException | ClassNotFoundException ex) {
+            return null;
+        } catch (Exception ex) {
+            log.error(ex, "Create virtual thread executor error");
+            return null;
+        }
+    }
+
+
+    /**
+     * 并发度: tpe: corePoolSize, forkjoin: parallelism, virtual: 不限制
+     * @return
+     */
+    public int getCorePoolSize() {
+        ExecutorService e = delegate;
+        if (e instanceof ThreadPoolExecutor) return ((ThreadPoolExecutor) e).getCorePoolSize();
+        if (e instanceof ForkJoinPool) return ((ForkJoinPool) e).getParallelism();
+        return Integer.MAX_VALUE / 2;
+    }
+
+
+    /**
+     * 运行状态
+     * @return
+     */
+    public Map<String, Object> metrics() {
+        ExecutorService e = delegate;
+        Map<String, Object> r = new LinkedHashMap<>(9);
+        r.put("type", type);
+        if (e instanceof ThreadPoolExecutor) {
+            ThreadPoolExecutor tpe = (ThreadPoolExecutor) e;
+            r.put("corePoolSize", tpe.getCorePoolSize());
+            r.put("maximumPoolSize", tpe.getMaximumPoolSize());
+            r.put("poolSize", tpe.getPoolSize());
+            r.put("activeCount", tpe.getActiveCount());
+            r.put("queueSize", tpe.getQueue().size());
+            r.put("completedTaskCount", tpe.getCompletedTaskCount());
+            r.put("saturation", ratio(tpe.getActiveCount(), tpe.getMaximumPoolSize()));
+        } else if (e instanceof ForkJoinPool) {
+            ForkJoinPool fj = (ForkJoinPool) e;
+            r.put("parallelism", fj.getParallelism());
+            r.put("poolSize", fj.getPoolSize());
+            r.put("activeCount", fj.getActiveThreadCount());
+            r.put("queueSize", fj.getQueuedSubmissionCount() + fj.getQueuedTaskCount());
+            r.put("stealCount", fj.getStealCount());
+            r.put("saturation", ratio(fj.getActiveThreadCount(), fj.getParallelism()));
+        }
+        r.put("rejected", rejected.sum());
+        return r;
+    }
+
+
+    /**
+     * 饱和度: 正在执行的线程数 / 最大线程数
+     */
+    protected static double ratio(int active, int max) {
+        return max <= 0 ? 0 : Math.round(active * 100.0 / max) / 100.0;
+    }
+
+
+    public String getType() {
+        return type;
+    }
+
+
+    public ExecutorService getDelegate() {
+        return delegate;
+    }
+
+
+    public void shutdown() {
+        delegate.shutdown();
+    }
+
+
+    @Override
+    public String toString() {
+        return name + "[" + type + "]: " + delegate;
+    }
+}
@@ -1,18 +1,21 @@
 package cn.xnatural.enet.event;
 
-import java.util.LinkedList;
-import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
 
 /**
  * event context: 事件执行的上下文
  */
 public class EC {
     /**
-     * 一次事件执行的id. 用于追踪执行的是哪次事件
+     * 追踪id. 用于追踪执行的是哪次事件(链). 0: 不追踪. {@link Tracer}
      */
-    String   id;
+    long     id;
+    /**
+     * 此次事件发布的 span id, 及触发它的监听器的 span id
+     */
+    long     spanId, parentSpan;
     /**
      * 是否追踪执行.用于调试
      */
@@ -45,12 +48,16 @@ public class EC {
     /**
      * 要执行的事件链
      */
-    protected List<EP.Listener>   willPass;
+    protected EP.Listener[]       willPass;
+    /**
+     * 执行成功过的监听器个数
+     */
+    protected volatile int        passed;
     /**
-     * 执行过的事件链
+     * 用到时才创建. {@link #attr(Object, Object)}
      */
-    protected List<EP.Listener>   passed = new LinkedList<>();
-    protected Map<Object, Object> attrs  = new ConcurrentHashMap<>(7);
+    protected volatile Map<Object, Object> attrs;
+    protected static final AtomicIntegerFieldUpdater<EC> PASSED = AtomicIntegerFieldUpdater.newUpdater(EC.class, "passed");
 
 
     public static EC of(Object source) {
@@ -72,7 +79,7 @@ public class EC {
      * @param ls
      * @return
      */
-    EC willPass(List<EP.Listener> ls) {
+    EC willPass(EP.Listener[] ls) {
         willPass = ls;
         return this;
     }
@@ -84,7 +91,7 @@ public class EC {
      * @return
      */
     EC passed(EP.Listener l) {
-        passed.add(l);
+        PASSED.incrementAndGet(this);
         return this;
     }
 
@@ -94,7 +101,7 @@ public class EC {
      * @return
      */
     public boolean isSuccess() {
-        return isNoListener() || willPass.size() == passed.size();
+        return isNoListener() || willPass.length == passed;
     }
 
 
@@ -127,6 +134,9 @@ public class EC {
     public EC args(Object... args) { this.args = args; return this; }
 
 
+    public Object[] getArgs() { return args; }
+
+
     public Object source() { return source; }
 
 
@@ -147,13 +157,19 @@ public class EC {
 
 
     public EC attr(Object key, Object value) {
+        if (attrs == null) {
+            synchronized (this) {
+                if (attrs == null) attrs = new ConcurrentHashMap<>(7);
+            }
+        }
         attrs.put(key, value);
         return this;
     }
 
 
     public <T> T getAttr(Object key, Class<T> type, T defaultValue) {
-        return type.cast(attrs.getOrDefault(key, defaultValue));
+        Map<Object, Object> m = attrs;
+        return type.cast(m == null ? defaultValue : m.getOrDefault(key, defaultValue));
     }
 
 
@@ -163,6 +179,7 @@ public class EC {
 
 
     public Object getAttr(Object key) {
-        return attrs.get(key);
+        Map<Object, Object> m = attrs;
+        return m == null ? null : m.get(key);
     }
 }
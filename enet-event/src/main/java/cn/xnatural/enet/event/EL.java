@@ -30,4 +30,69 @@ public @interface EL {
      * @return
      */
     float order() default 0;
+
+    /**
+     * 异步执行时使用的执行通道(线程池)名. 例: io. 空: 系统默认线程池
+     * 用于隔离阻塞IO和延迟敏感的执行
+     * @return
+     */
+    String lane() default "";
+
+    /**
+     * 异步执行时, 此监听器最多同时执行的个数. 0: 不限制
+     * 用于防止一个事件占满线程池, 影响其它事件的执行
+     * @return
+     */
+    int concurrency() default 0;
+
+    /**
+     * 异步执行时, 超过 {@link #concurrency()} 后最多排队等待的个数
+     * 超过后按 {@link #overflow()} 处理
+     * @return
+     */
+    int queueLimit() default Integer.MAX_VALUE;
+
+    /**
+     * 排队已满时的处理策略
+     * @return
+     */
+    Overflow overflow() default Overflow.CALLER_RUNS;
+
+    /**
+     * 批量执行: 大于0时, 缓存事件, 攒够 batch 个或者等待超过 {@link #maxDelayMs()} 后一次性执行
+     * 方法参数必须是 List&lt;EC&gt;. 批量执行的监听器都是异步的
+     * @return
+     */
+    int batch() default 0;
+
+    /**
+     * 批量执行时, 事件最长等待时间(毫秒)
+     * @return
+     */
+    long maxDelayMs() default 50;
+
+    /**
+     * 批量执行时, 按第几个参数合并事件. 同一批次中参数值相同的事件只保留最后一个. -1: 不合并
+     * @return
+     */
+    int coalesce() default -1;
+
+
+    /**
+     * 排队已满时的处理策略
+     */
+    enum Overflow {
+        /**
+         * 丢弃: 不执行此监听器
+         */
+        DROP,
+        /**
+         * 在发布事件的线程中直接执行
+         */
+        CALLER_RUNS,
+        /**
+         * 发布事件时抛出 {@link java.util.concurrent.RejectedExecutionException}
+         */
+        FAIL
+    }
 }
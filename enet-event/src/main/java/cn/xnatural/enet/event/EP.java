@@ -1,18 +1,35 @@
 package cn.xnatural.enet.event;
 
 
+import cn.xnatural.enet.common.Histogram;
 import cn.xnatural.enet.common.Log;
 import cn.xnatural.enet.common.Utils;
 
+import java.lang.invoke.CallSite;
+import java.lang.invoke.LambdaMetafactory;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.Array;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
+import java.lang.reflect.Proxy;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.Consumer;
+import java.util.function.Predicate;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -24,13 +41,27 @@ public class EP {
     protected Log                         log;
     protected Executor                    exec;
     /**
-     * 事件名 -> 监听器
+     * 事件名 -> 监听器.
+     * 值是不可变的 {@link Listeners}, 注册/删除时整体替换(copy-on-write), 发布事件时不需要加锁
      */
-    protected Map<String, List<Listener>> lsMap;
+    protected Map<String, Listeners>      lsMap;
     /**
      * 需要追踪的事件名字
      */
     protected Set<String>                 trackEvents;
+    /**
+     * 监听器注册版本. 每次添加/删除监听器都会加1
+     * 用于 {@link #channel(String, Class)} 判断绑定的监听器是否需要刷新
+     */
+    protected AtomicInteger               version;
+    /**
+     * 事件链追踪(采样)
+     */
+    protected Tracer                      tracer;
+    /**
+     * 监听器耗时采样: 每 n 次执行记录一次执行耗时/排队耗时. 1: 每次都记录. 执行次数, 失败次数 不采样
+     */
+    protected volatile int                timingSample;
 
 
     public EP() { init(null); }
@@ -45,7 +76,10 @@ public class EP {
         this.exec = exec;
         log = Log.of(EP.class);
         lsMap = new ConcurrentHashMap<>(7);
-        trackEvents = new HashSet<>(7);
+        trackEvents = ConcurrentHashMap.newKeySet(7);
+        version = new AtomicInteger(0);
+        tracer = new Tracer();
+        timingSample = 1;
     }
 
 
@@ -98,65 +132,129 @@ public class EP {
      * @return Note: 取返回值时, 要注意是同步执行还是异步执行
      */
     protected Object doPublish(String eName, EC ec, Consumer<EC> completeFn) {
-        List<Listener> ls = lsMap.get(eName); // 获取需要执行的监听器
-        if (ls == null || ls.isEmpty()) {
+        return publish(eName, lsMap.get(eName), ec, completeFn);
+    }
+
+
+    /**
+     * 执行一个事件的所有监听器. fire 和 {@link #channel(String, Class)} 都经过这里, 子类可在这里做发布检查
+     * @param eName 事件名
+     * @param ls 需要执行的监听器
+     * @param ec {@link EC} 事件执行过程上下文
+     * @param completeFn 所有事件执行完后回调
+     * @return
+     */
+    protected Object publish(String eName, Listeners ls, EC ec, Consumer<EC> completeFn) {
+        if (ls == null) {
             log.trace("Not found listener for event name: {}", eName);
             if (completeFn != null) completeFn.accept(ec);
             return ec.result;
         }
-        ec.willPass(ls).ep = this;
+        ec.willPass(ls.all).ep = this;
+        ls.fired.increment();
         if (trackEvents.contains(eName) || log.isTraceEnabled()) ec.track = true;
+        boolean traced = tracer.begin(ec); // 是否记录此次发布的执行片段
+        long start = traced ? System.nanoTime() : 0;
         if (ec.track) { // 是否要追踪此条事件链的执行
-            ec.id = UUID.randomUUID().toString();
             log.info("Starting executing listener chain for event name '{}'. id: {}, event source: {}", eName, ec.id, ec.source());
         }
-        if (exec == null) { // 只能同步执行
-            for (Listener l : ls) l.invoke(ec);
+        // 异步, 同步执行的监听器, 分开执行. 注册时已经分好组
+        Listener[] syncLs, asyncLs;
+        if (exec == null || Boolean.FALSE.equals(ec.async)) { // 只能同步执行 或 强制全部同步执行
+            syncLs = ls.all; asyncLs = Listeners.NONE;
+        } else if (ec.async == null) {
+            syncLs = ls.sync; asyncLs = ls.async;
+        } else { // 强制全部异步执行
+            syncLs = Listeners.NONE; asyncLs = ls.all;
+        }
+
+        RejectedExecutionException rejected = null;
+        if (asyncLs.length == 0) { // 全部同步执行: 按顺序执行完即结束, 不需要计数
+            for (Listener l : syncLs) l.invoke(ec);
             if (ec.track) log.info("End executing listener chain for event name '{}'. id: {}, result: {}", eName, ec.id, ec.result);
             if (completeFn != null) completeFn.accept(ec);
+        } else if (completeFn == null && !ec.track) {
+            for (Listener l : syncLs) l.invoke(ec);
+            for (Listener l : asyncLs) rejected = submit(l, ec, null, rejected);
         } else {
-            // 异步, 同步执行的监听器, 分开执行
-            List<Listener> asyncLs = new LinkedList<>(); // 异步执行的监听器
-            List<Listener> syncLs = new LinkedList<>(); // 同步执行的监听器
-            if (ec.async == null) {
-                for (Listener l : ls) {
-                    if (l.async) asyncLs.add(l);
-                    else syncLs.add(l);
+            AtomicInteger i = new AtomicInteger(syncLs.length + asyncLs.length);
+            AtomicBoolean f = new AtomicBoolean(false); // 防止被执行多遍
+            Runnable fn = () -> { // 两个列表都执行完后才执行completeFn函数
+                if (i.get() == 0 && f.compareAndSet(false, true)) {
+                    if (ec.track) log.info("End executing listener chain for event name '{}'. id: {}, result: {}", eName, ec.id, ec.result);
+                    if (completeFn != null) completeFn.accept(ec);
                 }
-            } else {
-                if (ec.async) asyncLs.addAll(ls); // 强制全部异步执行
-                else syncLs.addAll(ls); // 强制全部同步执行
-            }
+            };
+            for (Listener l : syncLs) { l.invoke(ec); i.decrementAndGet(); fn.run(); }
+            Runnable done = () -> {i.decrementAndGet(); fn.run();};
+            for (Listener l : asyncLs) rejected = submit(l, ec, done, rejected);
+        }
+        if (traced) tracer.record(ec.id, ec.spanId, ec.parentSpan, eName, start, System.nanoTime() - start, rejected != null);
+        if (rejected != null) throw rejected; // 所有监听器都提交后再抛出
+        return ec.result;
+    }
 
-            if (completeFn == null) {
-                if (ec.track) {
-                    AtomicInteger i = new AtomicInteger(ls.size());
-                    AtomicBoolean f = new AtomicBoolean(false); // 防止被执行多遍
-                    Runnable fn = () -> {
-                        if (i.get() == 0 && f.compareAndSet(false, true)) {
-                            if (ec.track) log.info("End executing listener chain for event name '{}'. id: {}, result: {}", eName, ec.id, ec.result);
-                        }
-                    };
-                    syncLs.forEach(l -> {l.invoke(ec); i.decrementAndGet(); fn.run();});
-                    asyncLs.forEach(l -> exec.execute(() -> {l.invoke(ec); i.decrementAndGet(); fn.run();}));
-                } else {
-                    syncLs.forEach(l -> l.invoke(ec));
-                    asyncLs.forEach(l -> exec.execute(() -> l.invoke(ec)));
-                }
-            } else {
-                AtomicInteger i = new AtomicInteger(ls.size());
-                AtomicBoolean f = new AtomicBoolean(false); // 防止被执行多遍
-                Runnable fn = () -> { // 两个列表都执行完后才执行completeFn函数
-                    if (i.get() == 0 && f.compareAndSet(false, true)) {
-                        if (ec.track) log.info("End executing listener chain for event name '{}'. id: {}, result: {}", eName, ec.id, ec.result);
-                        completeFn.accept(ec);
-                    }
-                };
-                syncLs.forEach(l -> {l.invoke(ec); i.decrementAndGet(); fn.run();});
-                asyncLs.forEach(l -> exec.execute(() -> {l.invoke(ec); i.decrementAndGet(); fn.run();}));
+
+    /**
+     * 异步执行一个监听器. 被拒绝时({@link EL.Overflow#FAIL}) 算作执行完, 不影响后面的监听器提交
+     * @param after 执行完后执行
+     * @param rejected 之前被拒绝的异常
+     * @return 被拒绝的异常. 多个时后面的加到第一个的 suppressed 中
+     */
+    protected RejectedExecutionException submit(Listener l, EC ec, Runnable after, RejectedExecutionException rejected) {
+        try {
+            l.submit(ec, after);
+        } catch (RejectedExecutionException ex) {
+            ec.ex = ex;
+            if (rejected == null) rejected = ex;
+            else rejected.addSuppressed(ex);
+            if (after != null) after.run();
+        }
+        return rejected;
+    }
+
+
+    /**
+     * 创建一个类型化的事件通道. {@link #channel(String, Class, Object)}
+     */
+    public <F> F channel(String eName, Class<F> fnType) {
+        return channel(eName, fnType, null);
+    }
+
+
+    /**
+     * 创建一个类型化的事件通道.
+     * 返回 fnType 接口的实现, 调用其方法等同于 fire(eName, new EC(source).args(方法参数...)), 但不需要每次按事件名查找监听器
+     * 和 fire 一样经过 {@link #publish(String, Listeners, EC, Consumer)}, 但不经过 {@link #fire(String, EC, Consumer)} 和 {@link #doPublish(String, EC, Consumer)}
+     * 方法参数不多于4个时, 用 {@link LambdaMetafactory} 生成实现类, 直接调用 {@link Channel} 的 call0 - call4: 没有反射和代理
+     * 多于4个参数时用 JDK 动态代理
+     * 每次调用创建一个 {@link EC} 和它的参数数组, 基本类型参数装箱(监听器按 Object 接收参数)
+     * 例: Consumer<String> access = ep.channel("session.access", Consumer.class); access.accept(sId);
+     * @param eName 事件名
+     * @param fnType 函数式接口(只有一个抽象方法的接口)
+     * @param source 事件源. {@link EC#source()}
+     * @return
+     */
+    public <F> F channel(String eName, Class<F> fnType, Object source) {
+        if (eName == null || eName.isEmpty()) throw new IllegalArgumentException("eName must not be empty");
+        if (fnType == null || !fnType.isInterface()) throw new IllegalArgumentException("fnType must be an interface");
+        Method fm = null;
+        for (Method m : fnType.getMethods()) {
+            if (!Modifier.isAbstract(m.getModifiers())) continue;
+            if (Utils.findMethod(Object.class, m.getName(), m.getParameterTypes()) != null) continue; // equals, hashCode 等
+            if (fm != null) throw new IllegalArgumentException("fnType must be a functional interface: " + fnType.getName());
+            fm = m;
+        }
+        if (fm == null) throw new IllegalArgumentException("fnType must be a functional interface: " + fnType.getName());
+        Channel c = new Channel(eName, fm, source);
+        if (fm.getParameterCount() <= 4) {
+            try {
+                return fnType.cast(c.spin(fnType));
+            } catch (Throwable ex) {
+                log.debug("Spin channel error, fallback to proxy. eName: {}, fnType: {}, error: {}", eName, fnType.getName(), ex.toString());
             }
         }
-        return ec.result;
+        return fnType.cast(Proxy.newProxyInstance(fnType.getClassLoader(), new Class[]{fnType}, c));
     }
 
 
@@ -195,6 +293,66 @@ public class EP {
     }
 
 
+    /**
+     * 事件执行统计: 每个事件的发布次数, 及其每个监听器的执行次数/失败次数/执行耗时/排队耗时
+     * @return 事件名 -> 统计
+     */
+    public Map<String, Object> metrics() {
+        Map<String, Object> r = new TreeMap<>();
+        lsMap.forEach((eName, ls) -> {
+            Map<String, Object> m = new LinkedHashMap<>(3);
+            m.put("fired", ls.fired.sum());
+            List<Map<String, Object>> lsMetrics = new ArrayList<>(ls.all.length);
+            for (Listener l : ls.all) lsMetrics.add(l.metrics());
+            m.put("listeners", lsMetrics);
+            r.put(eName, m);
+        });
+        return r;
+    }
+
+
+    /**
+     * 最近被追踪的事件链. {@link Tracer#dump(int)}
+     * @param limit 最多返回多少条
+     * @return
+     */
+    public List<Map<String, Object>> traces(int limit) {
+        return tracer.dump(limit);
+    }
+
+
+    /**
+     * 设置事件链追踪的采样率
+     * @param rate 0 - 1
+     * @return
+     */
+    public EP sampleRate(double rate) {
+        tracer.sampleRate(rate);
+        return this;
+    }
+
+
+    /**
+     * 设置监听器耗时的采样: 平均每 n 次执行记录一次耗时. 省掉没被采样的执行的两次 System.nanoTime 和直方图记录
+     * @param n 大于等于1. 1: 每次都记录
+     * @return
+     */
+    public EP timingSample(int n) {
+        if (n < 1) throw new IllegalArgumentException("timingSample must >= 1");
+        this.timingSample = n;
+        return this;
+    }
+
+
+    /**
+     * 这次执行是否记录耗时. {@link #timingSample}
+     */
+    protected boolean timed() {
+        int n = timingSample;
+        return n <= 1 || ThreadLocalRandom.current().nextInt(n) == 0;
+    }
+
+
     /**
      * 删除指定对象源中的事件监听
      * @param eName 事件名
@@ -203,12 +361,8 @@ public class EP {
      */
     public EP removeEvent(String eName, Object source) {
         if (source == null) lsMap.remove(eName);
-        else {
-            for (Iterator<Listener> it = lsMap.get(eName).iterator(); it.hasNext(); ) {
-                Listener l = it.next();
-                if (l.source == source) it.remove();
-            }
-        };
+        else lsMap.computeIfPresent(eName, (k, ls) -> ls.remove(l -> l.source == source));
+        version.incrementAndGet();
         return this;
     }
 
@@ -226,27 +380,60 @@ public class EP {
             for (String n : el.name()) {
                 Listener listener = new Listener();
                 listener.async = el.async(); listener.source = source; listener.order = el.order();
+                if (el.batch() > 0) { // 批量执行: 同一时刻只有一个批次在执行, 不需要再限制并发
+                    if (m.getParameterCount() != 1 || !List.class.isAssignableFrom(m.getParameterTypes()[0])) {
+                        log.error("Batch listener method parameter must be List<EC>. source: {}, method: {}", source, m.getName());
+                        continue;
+                    }
+                    listener.async = true;
+                    listener.batcher = new Batcher(listener, el.batch(), el.maxDelayMs(), el.coalesce());
+                } else if (el.concurrency() > 0 || el.queueLimit() < Integer.MAX_VALUE) {
+                    listener.lane = new Lane(listener, el.concurrency() > 0 ? el.concurrency() : Integer.MAX_VALUE, el.queueLimit(), el.overflow());
+                }
+                if (!el.lane().isEmpty()) listener.executor = laneExec(el.lane());
                 listener.m = m; m.setAccessible(true); listener.name = parseName(n, source);
                 if (listener.name == null) continue;
 
-                List<Listener> ls = lsMap.computeIfAbsent(listener.name, s -> new LinkedList<>());
-                // 同一个对象源中, 不能有相同的事件监听名. 忽略
-                if (ls.stream().anyMatch(l -> l.source == source && Objects.equals(l.name, listener.name))) {
-                    log.warn("Exist listener. name: {}, source: {}", n, listener.source);
+                try {
+                    listener.compile();
+                } catch (Exception ex) {
+                    log.error(ex, "Compile listener error. name: {}, source: {}, method: {}", listener.name, source, m.getName());
                     continue;
                 }
-                // 同一个对象源中, 不同的监听, 方法名不能相同.
-                if (ls.stream().anyMatch(l -> l.source == source && Objects.equals(l.m.getName(), listener.m.getName()))) {
-                    log.warn("Same source same method name only one listener. source: {}, methodName: {}", source, m.getName());
-                    continue;
-                }
-                log.debug("Add listener [name: {}, source: {}, method: {}, async: {}, order: {}]", listener.name, source, m.getName(), listener.async, listener.order);
-                ls.add(listener); ls.sort(Comparator.comparing(o -> o.order));
+                // 同一个事件名的注册是原子的, 注册完成后整体替换
+                lsMap.compute(listener.name, (k, ls) -> {
+                    if (ls != null) {
+                        // 同一个对象源中, 不能有相同的事件监听名. 忽略
+                        if (ls.anyMatch(l -> l.source == source && Objects.equals(l.name, listener.name))) {
+                            log.warn("Exist listener. name: {}, source: {}", n, listener.source);
+                            return ls;
+                        }
+                        // 同一个对象源中, 不同的监听, 方法名不能相同.
+                        if (ls.anyMatch(l -> l.source == source && Objects.equals(l.m.getName(), listener.m.getName()))) {
+                            log.warn("Same source same method name only one listener. source: {}, methodName: {}", source, m.getName());
+                            return ls;
+                        }
+                    }
+                    log.debug("Add listener [name: {}, source: {}, method: {}, async: {}, order: {}]", listener.name, source, m.getName(), listener.async, listener.order);
+                    return ls == null ? new Listeners(new Listener[]{listener}) : ls.add(listener);
+                });
+                version.incrementAndGet();
             }
         });
     }
 
 
+    /**
+     * 取执行通道对应的线程池. {@link EL#lane()}
+     * 默认没有执行通道, 都用 {@link #exec}
+     * @param lane 通道名
+     * @return
+     */
+    protected Executor laneExec(String lane) {
+        return exec;
+    }
+
+
     protected Pattern p = Pattern.compile("\\$\\{(?<attr>\\w+)\\}");
     /**
      * 支持表达式 ${attr}.eventName, ${attr}会被替换成 对象中的属性attr的值
@@ -280,12 +467,567 @@ public class EP {
     }
 
 
+    /**
+     * 一个事件名对应的所有监听器. 不可变
+     * 创建时就排好序, 分好 同步/异步 两组. 发布事件时直接遍历数组
+     */
+    protected static class Listeners {
+        protected static final Listener[] NONE = new Listener[0];
+        /**
+         * 所有监听器, 按 {@link Listener#order} 排好序
+         */
+        protected final Listener[] all;
+        /**
+         * 同步执行的监听器
+         */
+        protected final Listener[] sync;
+        /**
+         * 异步执行的监听器
+         */
+        protected final Listener[] async;
+        /**
+         * 事件发布次数. 监听器增删时沿用
+         */
+        protected final LongAdder  fired;
+
+
+        protected Listeners(Listener[] ls) { this(ls, new LongAdder()); }
+
+
+        protected Listeners(Listener[] ls, LongAdder fired) {
+            this.fired = fired;
+            Arrays.sort(ls, Comparator.comparing(o -> o.order)); // 稳定排序: order 相同时按添加顺序
+            all = ls;
+            int n = 0;
+            for (Listener l : ls) if (l.async) n++;
+            async = new Listener[n]; sync = new Listener[ls.length - n];
+            int i = 0, j = 0;
+            for (Listener l : ls) {
+                if (l.async) async[i++] = l;
+                else sync[j++] = l;
+            }
+        }
+
+
+        /**
+         * 添加一个监听器
+         * @param l
+         * @return 新的 {@link Listeners}
+         */
+        protected Listeners add(Listener l) {
+            Listener[] ls = Arrays.copyOf(all, all.length + 1);
+            ls[all.length] = l;
+            return new Listeners(ls, fired);
+        }
+
+
+        /**
+         * 删除满足条件的监听器
+         * @param predicate
+         * @return 新的 {@link Listeners}, 没有监听器时返回 null
+         */
+        protected Listeners remove(Predicate<Listener> predicate) {
+            Listener[] ls = Arrays.stream(all).filter(predicate.negate()).toArray(Listener[]::new);
+            if (ls.length == all.length) return this;
+            return ls.length == 0 ? null : new Listeners(ls, fired);
+        }
+
+
+        protected boolean anyMatch(Predicate<Listener> predicate) {
+            for (Listener l : all) if (predicate.test(l)) return true;
+            return false;
+        }
+    }
+
+
+    /**
+     * 监听器的异步执行通道.
+     * 最多同时提交 {@link #concurrency} 个到线程池, 其余在 {@link #waiting} 中排队, 排队超过 {@link #queueLimit} 按 {@link #overflow} 处理
+     * 线程池拒绝时(抛出 {@link RejectedExecutionException}) 释放占用的名额, 同样按 {@link #overflow} 处理
+     */
+    protected class Lane {
+        protected final Listener        l;
+        protected final int             concurrency;
+        protected final int             queueLimit;
+        protected final EL.Overflow     overflow;
+        protected final Queue<Pending>  waiting  = new ConcurrentLinkedQueue<>();
+        /**
+         * 正在执行(已提交到线程池)的个数, 排队的个数
+         */
+        protected final AtomicInteger   running  = new AtomicInteger(), queued = new AtomicInteger();
+        /**
+         * 排队已满的次数
+         */
+        protected final LongAdder       overflowed = new LongAdder();
+
+
+        protected Lane(Listener l, int concurrency, int queueLimit, EL.Overflow overflow) {
+            this.l = l; this.concurrency = concurrency; this.queueLimit = queueLimit; this.overflow = overflow;
+        }
+
+
+        /**
+         * 提交执行
+         * @param task 执行体
+         * @param after 被丢弃时也要执行的
+         */
+        protected void offer(Runnable task, Runnable after) {
+            RejectedExecutionException rejected = null;
+            if (tryAcquire()) {
+                try {
+                    l.executor().execute(wrap(task)); return;
+                } catch (RejectedExecutionException ex) { // 线程池拒绝: 任务不会执行, 名额要还回来
+                    running.decrementAndGet(); rejected = ex;
+                }
+            } else if (queued.incrementAndGet() <= queueLimit) {
+                waiting.offer(new Pending(task, after));
+                drain(); // 防止入队前正在执行的都已结束, 队列中的没人取
+                return;
+            } else queued.decrementAndGet();
+            overflow(task, after, true, rejected);
+        }
+
+
+        /**
+         * 执行不了时按 {@link #overflow} 处理
+         * @param task 执行体
+         * @param after 被丢弃时也要执行的
+         * @param canThrow 是否能抛给提交方. 已排队的任务提交方已返回, {@link EL.Overflow#FAIL} 只能丢弃
+         * @param rejected 线程池拒绝的异常. null: 排队已满
+         */
+        protected void overflow(Runnable task, Runnable after, boolean canThrow, RejectedExecutionException rejected) {
+            overflowed.increment();
+            if (EL.Overflow.CALLER_RUNS == overflow) task.run();
+            else if (EL.Overflow.DROP == overflow || !canThrow) {
+                long n = overflowed.sum();
+                if (n % 1000 == 1) { // 避免日志刷屏
+                    log.warn("Drop listener execution. name: {}, method: {}, dropped: {}, running: {}, queued: {}", l.name, l.methodName(), n, running.get(), queued.get());
+                }
+                if (after != null) after.run();
+            } else if (rejected != null) throw rejected;
+            else {
+                throw new RejectedExecutionException("Listener '" + l.name + ":" + l.methodName() + "' is full. running: " + running.get() + ", queued: " + queued.get());
+            }
+        }
+
+
+        protected boolean tryAcquire() {
+            for (;;) {
+                int c = running.get();
+                if (c >= concurrency) return false;
+                if (running.compareAndSet(c, c + 1)) return true;
+            }
+        }
+
+
+        protected Runnable wrap(Runnable task) {
+            return () -> {
+                try { task.run(); }
+                finally { running.decrementAndGet(); drain(); }
+            };
+        }
+
+
+        /**
+         * 有空闲时, 从队列中取出提交到线程池
+         */
+        protected void drain() {
+            while (!waiting.isEmpty() && tryAcquire()) {
+                Pending p = waiting.poll();
+                if (p == null) { running.decrementAndGet(); continue; }
+                queued.decrementAndGet();
+                try {
+                    l.executor().execute(wrap(p.task));
+                } catch (RejectedExecutionException ex) {
+                    running.decrementAndGet();
+                    overflow(p.task, p.after, false, ex);
+                }
+            }
+        }
+
+
+        protected Map<String, Object> metrics() {
+            Map<String, Object> r = new LinkedHashMap<>(5);
+            r.put("concurrency", concurrency);
+            r.put("running", running.get());
+            r.put("queued", queued.get());
+            r.put("overflowed", overflowed.sum());
+            return r;
+        }
+    }
+
+
+    /**
+     * {@link Lane} 中排队的任务
+     */
+    protected static class Pending {
+        protected final Runnable task;
+        protected final Runnable after;
+
+
+        protected Pending(Runnable task, Runnable after) {
+            this.task = task; this.after = after;
+        }
+    }
+
+
+    /**
+     * 批量执行的定时器(守护线程). 用到时才创建. {@link Batcher}
+     */
+    protected static volatile ScheduledExecutorService batchTimer;
+    protected static ScheduledExecutorService batchTimer() {
+        if (batchTimer == null) {
+            synchronized (EP.class) {
+                if (batchTimer == null) {
+                    batchTimer = Executors.newSingleThreadScheduledExecutor(r -> {
+                        Thread t = new Thread(r, "ep-batch"); t.setDaemon(true); return t;
+                    });
+                }
+            }
+        }
+        return batchTimer;
+    }
+
+
+    /**
+     * 监听器的批量执行器.
+     * 事件先放入无锁队列, 攒够 {@link #size} 个或者等待超过 {@link #maxDelay} 后, 一次性交给监听器执行(参数: List&lt;EC&gt;)
+     * 同一时刻只有一个批次在执行
+     */
+    protected class Batcher {
+        protected final Listener        l;
+        protected final int             size;
+        protected final long            maxDelay;
+        /**
+         * 合并事件的参数下标. -1: 不合并
+         */
+        protected final int             keyIndex;
+        protected final Queue<Item>     queue     = new ConcurrentLinkedQueue<>();
+        /**
+         * 队列中的个数
+         */
+        protected final AtomicInteger   count     = new AtomicInteger();
+        /**
+         * 是否有批次正在执行, 是否已有定时
+         */
+        protected final AtomicBoolean   flushing  = new AtomicBoolean(), scheduled = new AtomicBoolean();
+        /**
+         * 执行批次数, 被合并掉的事件数
+         */
+        protected final LongAdder       batches   = new LongAdder(), coalesced = new LongAdder();
+
+
+        protected Batcher(Listener l, int size, long maxDelayMs, int keyIndex) {
+            this.l = l; this.size = size; this.maxDelay = maxDelayMs; this.keyIndex = keyIndex;
+        }
+
+
+        /**
+         * 添加一个事件
+         * @param ec
+         * @param after 事件被执行后执行
+         */
+        protected void offer(EC ec, Runnable after) {
+            queue.offer(new Item(ec, after, System.nanoTime()));
+            if (count.incrementAndGet() >= size) trigger();
+            else if (scheduled.compareAndSet(false, true)) {
+                batchTimer().schedule(() -> { scheduled.set(false); trigger(); }, maxDelay, TimeUnit.MILLISECONDS);
+            }
+        }
+
+
+        /**
+         * 提交到线程池执行队列中的事件. 线程池拒绝时等下个定时再试
+         */
+        protected void trigger() {
+            if (queue.isEmpty() || flushing.get()) return;
+            try {
+                l.executor().execute(this::flush);
+            } catch (RejectedExecutionException ex) {
+                long delay = Math.max(maxDelay, 10);
+                log.warn("Batch listener rejected by executor, retry after {}ms. name: {}, method: {}, buffered: {}", delay, l.name, l.methodName(), count.get());
+                if (scheduled.compareAndSet(false, true)) {
+                    batchTimer().schedule(() -> { scheduled.set(false); trigger(); }, delay, TimeUnit.MILLISECONDS);
+                }
+            }
+        }
+
+
+        /**
+         * 执行队列中的事件. 每次最多 {@link #size} 个
+         */
+        protected void flush() {
+            if (!flushing.compareAndSet(false, true)) return;
+            try {
+                do {
+                    List<Item> items = new ArrayList<>(Math.min(size, Math.max(count.get(), 1)));
+                    for (Item it; items.size() < size && (it = queue.poll()) != null; ) items.add(it);
+                    if (items.isEmpty()) break;
+                    count.addAndGet(-items.size());
+                    deliver(items);
+                } while (count.get() >= size);
+            } finally {
+                flushing.set(false);
+            }
+            // 剩下的: 够一批继续执行, 不够则等定时
+            if (count.get() >= size) trigger();
+            else if (!queue.isEmpty() && scheduled.compareAndSet(false, true)) {
+                batchTimer().schedule(() -> { scheduled.set(false); trigger(); }, maxDelay, TimeUnit.MILLISECONDS);
+            }
+        }
+
+
+        /**
+         * 一次性执行一批事件
+         * @param items
+         */
+        protected void deliver(List<Item> items) {
+            List<EC> ecs;
+            if (keyIndex < 0) {
+                ecs = new ArrayList<>(items.size());
+                for (Item it : items) ecs.add(it.ec);
+            } else { // 参数值相同的只保留最后一个
+                Map<Object, EC> m = new LinkedHashMap<>();
+                for (Item it : items) {
+                    Object[] args = it.ec.args;
+                    m.put(args == null || args.length <= keyIndex ? null : args[keyIndex], it.ec);
+                }
+                coalesced.add(items.size() - m.size());
+                ecs = new ArrayList<>(m.values());
+            }
+            batches.increment();
+            long start = System.nanoTime();
+            l.queueTime.record(start - items.get(0).time);
+            try {
+                Object r = l.call(ecs);
+                for (Item it : items) {
+                    if (!l.voidReturn) it.ec.result = r;
+                    it.ec.passed(l);
+                }
+            } catch (Throwable e) {
+                l.errors.increment();
+                for (Item it : items) it.ec.ex = e;
+                log.error(e, "Batch listener invoke error! name: {}, method: {}, size: {}", l.name, l.methodName(), ecs.size());
+            } finally {
+                l.count.increment();
+                l.execTime.record(System.nanoTime() - start);
+                for (Item it : items) {
+                    if (it.after == null) continue;
+                    try { it.after.run(); } catch (Throwable e) { log.error(e); }
+                }
+            }
+        }
+
+
+        protected Map<String, Object> metrics() {
+            Map<String, Object> r = new LinkedHashMap<>(5);
+            r.put("size", size);
+            r.put("maxDelayMs", maxDelay);
+            r.put("buffered", count.get());
+            r.put("batches", batches.sum());
+            r.put("coalesced", coalesced.sum());
+            return r;
+        }
+    }
+
+
+    /**
+     * 批量执行时缓存的一个事件
+     */
+    protected static class Item {
+        protected final EC       ec;
+        protected final Runnable after;
+        /**
+         * 放入队列的时间(System.nanoTime)
+         */
+        protected final long     time;
+
+
+        protected Item(EC ec, Runnable after, long time) {
+            this.ec = ec; this.after = after; this.time = time;
+        }
+    }
+
+
+    /**
+     * 类型化事件通道. {@link #channel(String, Class)}
+     * 绑定一个事件名的监听器, 只在监听器有变化时({@link #version})才重新查找
+     * 生成的实现类调用 call0 - call4 (public: 生成的类可能在其它包中), 动态代理调用 {@link #invoke(Object, Method, Object[])}
+     */
+    protected class Channel implements InvocationHandler {
+        protected final String    eName;
+        protected final Method    fm;
+        protected final Object    source;
+        /**
+         * {@link #fm} 返回基本类型时, 没有结果返回的默认值. 其它为 null
+         */
+        protected final Object    dflt;
+        /**
+         * 代理类传入的 {@link #fm} 对象. 用于快速判断(引用比较)
+         */
+        protected volatile Method    proxyFm;
+        /**
+         * 绑定的监听器. 整体替换
+         */
+        protected volatile Bound     bound;
+
+
+        protected Channel(String eName, Method fm, Object source) {
+            this.eName = eName; this.fm = fm; this.source = source;
+            Class<?> rt = fm.getReturnType();
+            if (boolean.class.equals(rt)) dflt = false; // 基本类型不能返回null
+            else if (char.class.equals(rt)) dflt = (char) 0;
+            else if (byte.class.equals(rt)) dflt = (byte) 0;
+            else if (short.class.equals(rt)) dflt = (short) 0;
+            else if (int.class.equals(rt)) dflt = 0;
+            else if (long.class.equals(rt)) dflt = 0L;
+            else if (float.class.equals(rt)) dflt = 0F;
+            else if (double.class.equals(rt)) dflt = 0D;
+            else dflt = null;
+        }
+
+
+        /**
+         * 用 {@link LambdaMetafactory} 生成 fnType 的实现, 调用 {@link #fm} 即调用 call0 - call4
+         * 生成的类以 fnType 为宿主(能访问非 public 的接口); JDK 的接口(启动类加载器加载, 看不到 EP)以 EP 为宿主
+         * @param fnType
+         * @return
+         */
+        protected Object spin(Class<?> fnType) throws Throwable {
+            int n = fm.getParameterCount();
+            MethodHandles.Lookup lookup = fnType.getClassLoader() == null ? MethodHandles.lookup() : privateLookup(fnType);
+            MethodHandle impl = MethodHandles.lookup().findVirtual(Channel.class, "call" + n, MethodType.genericMethodType(n));
+            MethodType ft = MethodType.methodType(fm.getReturnType(), fm.getParameterTypes());
+            return LambdaMetafactory.metafactory(lookup, fm.getName(), MethodType.methodType(fnType, Channel.class), ft, impl, ft)
+                .getTarget().invoke(this);
+        }
+
+
+        public Object call0() { return call(null); }
+        public Object call1(Object a) { return call(new Object[]{a}); }
+        public Object call2(Object a, Object b) { return call(new Object[]{a, b}); }
+        public Object call3(Object a, Object b, Object c) { return call(new Object[]{a, b, c}); }
+        public Object call4(Object a, Object b, Object c, Object d) { return call(new Object[]{a, b, c, d}); }
+
+
+        /**
+         * 执行绑定的监听器
+         * @param args 方法参数
+         * @return 基本类型没有结果时返回 {@link #dflt}
+         */
+        protected Object call(Object[] args) {
+            // 先读版本再查监听器: 并发时写入的旧绑定版本号也是旧的, 下次调用会重新绑定
+            Bound b = bound;
+            int v = version.get();
+            if (b == null || b.version != v) bound = b = new Bound(v, lsMap.get(eName));
+            Object r = publish(eName, b.ls, new EC(source).args(args), null);
+            return r == null ? dflt : r;
+        }
+
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) {
+            if (method.getDeclaringClass() == Object.class) {
+                if ("equals".equals(method.getName())) return proxy == args[0];
+                if ("hashCode".equals(method.getName())) return System.identityHashCode(proxy);
+                return toString();
+            }
+            if (method != proxyFm) {
+                if (!method.equals(fm)) throw new UnsupportedOperationException("channel '" + eName + "' not support method: " + method.getName());
+                proxyFm = method;
+            }
+            return call(args);
+        }
+
+
+        @Override
+        public String toString() {
+            return "Channel@" + eName;
+        }
+    }
+
+
+    /**
+     * {@link Channel} 绑定的监听器和绑定时的版本. 不可变
+     */
+    protected static class Bound {
+        protected final int       version;
+        protected final Listeners ls;
+
+
+        protected Bound(int version, Listeners ls) { this.version = version; this.ls = ls; }
+    }
+
+
+    /**
+     * 监听方法的调用接口. {@link Listener#compile()} 用 {@link LambdaMetafactory} 为每个监听方法生成实现
+     * 生成的类直接调用监听方法, JIT 能内联, 不经过反射和 MethodHandle
+     * 按参数个数分, V 开头的对应没有返回值的方法
+     */
+    public interface F0 { Object call(); }
+    public interface F1 { Object call(Object a); }
+    public interface F2 { Object call(Object a, Object b); }
+    public interface F3 { Object call(Object a, Object b, Object c); }
+    public interface V0 { void call(); }
+    public interface V1 { void call(Object a); }
+    public interface V2 { void call(Object a, Object b); }
+    public interface V3 { void call(Object a, Object b, Object c); }
+    protected static final Class<?>[] F = {F0.class, F1.class, F2.class, F3.class}, V = {V0.class, V1.class, V2.class, V3.class};
+
+
+    /**
+     * 取能访问 c 的私有成员的 Lookup. {@link LambdaMetafactory} 生成的类以它为宿主, 才能调用非 public 的方法
+     * JDK9+: MethodHandles.privateLookupIn, JDK8: Lookup 的私有构造器
+     * @param c
+     * @return
+     */
+    protected static MethodHandles.Lookup privateLookup(Class<?> c) throws ReflectiveOperationException {
+        try {
+            Method m = MethodHandles.class.getMethod("privateLookupIn", Class.class, MethodHandles.Lookup.class);
+            return (MethodHandles.Lookup) m.invoke(null, c, MethodHandles.lookup());
+        } catch (NoSuchMethodException ex) {
+            Constructor<MethodHandles.Lookup> cons = MethodHandles.Lookup.class.getDeclaredConstructor(Class.class);
+            cons.setAccessible(true);
+            return cons.newInstance(c);
+        }
+    }
+
+
     /**
      * 监听器包装类
      */
     protected class Listener {
         //  监听执行体. (一个方法).
         protected Object source; Method  m;
+        /**
+         * {@link #m} 编译后的调用句柄. {@link #compile()}
+         * 参数个数为0: ()Object, 1个参数: (Object)Object, 多个参数: (Object[])Object
+         */
+        protected MethodHandle mh;
+        /**
+         * {@link #m} 生成的调用实现: {@link F0} - {@link F3}, {@link V0} - {@link V3}. null: 生成不了(参数多于3个等), 用 {@link #mh}
+         */
+        protected Object invoker;
+        /**
+         * 基本类型参数的转换: 参数值不是对应的包装类型时(例: long 参数传入 Integer)按 {@link #mh} 的规则转换. 没有基本类型参数时为 null
+         */
+        protected MethodHandle[] unbox;
+        /**
+         * 方法参数个数
+         */
+        protected int paramCount;
+        /**
+         * 第一个参数是否为 {@link EC}
+         */
+        protected boolean ecFirst;
+        /**
+         * 只有一个数组参数时, 数组的元素类型
+         */
+        protected Class<?> arrComponentType;
+        /**
+         * 方法是否没有返回值
+         */
+        protected boolean voidReturn;
         /**
          * 和 {@link #m} 只存在一个
          * 监听器执行体. (一段执行逻辑)
@@ -303,52 +1045,251 @@ public class EP {
          * 是否异步
          */
         protected boolean async;
+        /**
+         * 异步执行通道. 限制同时执行和排队的个数. null: 不限制
+         */
+        protected Lane lane;
+        /**
+         * 批量执行器. {@link EL#batch()}
+         */
+        protected Batcher batcher;
+        /**
+         * 异步执行此监听器的线程池. {@link EL#lane()}. null: 用 {@link EP#exec}
+         */
+        protected Executor executor;
+        /**
+         * 执行次数, 失败次数
+         */
+        protected final LongAdder count = new LongAdder(), errors = new LongAdder();
+        /**
+         * 执行耗时
+         */
+        protected final Histogram execTime  = new Histogram();
+        /**
+         * 异步执行时, 在线程池中的排队耗时
+         */
+        protected final Histogram queueTime = new Histogram();
+
+
+        /**
+         * 为 {@link #m} 生成调用实现({@link #invoker}) 和调用句柄({@link #mh}), 提前确定参数的形态. 避免每次调用都走反射
+         * @throws IllegalAccessException
+         */
+        protected void compile() throws IllegalAccessException {
+            MethodHandle h = MethodHandles.lookup().unreflect(m);
+            if (!Modifier.isStatic(m.getModifiers())) h = h.bindTo(source);
+            paramCount = m.getParameterCount();
+            voidReturn = void.class.equals(m.getReturnType());
+            if (paramCount > 0) {
+                Class<?> t = m.getParameterTypes()[0];
+                ecFirst = EC.class.isAssignableFrom(t);
+                if (paramCount == 1 && !ecFirst && t.isArray()) arrComponentType = t.getComponentType();
+            }
+            if (paramCount == 0) mh = h.asType(MethodType.methodType(Object.class));
+            else if (paramCount == 1) mh = h.asType(MethodType.methodType(Object.class, Object.class));
+            else mh = h.asSpreader(Object[].class, paramCount).asType(MethodType.methodType(Object.class, Object[].class));
+            if (paramCount < F.length) {
+                try {
+                    invoker = spin();
+                } catch (Throwable ex) { // 例: 类加载器看不到 EP. 用 mh 调用
+                    log.debug("Spin listener invoker error, fallback to MethodHandle. method: {}, error: {}", methodName(), ex.toString());
+                }
+            }
+        }
+
+
+        /**
+         * 用 {@link LambdaMetafactory} 生成 {@link #m} 的调用实现
+         * @return {@link F0} - {@link F3}, {@link V0} - {@link V3}
+         */
+        protected Object spin() throws Throwable {
+            Class<?> dc = m.getDeclaringClass();
+            MethodHandles.Lookup lookup = privateLookup(dc);
+            MethodHandle impl = lookup.unreflect(m);
+            Class<?>[] pTypes = m.getParameterTypes();
+            for (int i = 0; i < pTypes.length; i++) {
+                if (!pTypes[i].isPrimitive()) continue;
+                if (unbox == null) unbox = new MethodHandle[pTypes.length];
+                Class<?> w = MethodType.methodType(pTypes[i]).wrap().returnType();
+                unbox[i] = MethodHandles.identity(pTypes[i]).asType(MethodType.methodType(w, Object.class));
+                pTypes[i] = w; // 生成的类只做拆箱
+            }
+            Class<?> fType = (voidReturn ? V : F)[paramCount];
+            Class<?> rType = voidReturn ? void.class : Object.class;
+            boolean isStatic = Modifier.isStatic(m.getModifiers());
+            CallSite cs = LambdaMetafactory.metafactory(lookup, "call",
+                isStatic ? MethodType.methodType(fType) : MethodType.methodType(fType, dc),
+                MethodType.genericMethodType(paramCount).changeReturnType(rType),
+                impl, MethodType.methodType(rType, pTypes)
+            );
+            return isStatic ? cs.getTarget().invoke() : cs.getTarget().invoke(source);
+        }
+
+
+        protected Executor executor() { return executor == null ? exec : executor; }
+
+
+        /**
+         * 异步执行此监听器
+         * @param ec
+         * @param after 执行完(或被丢弃)后执行
+         */
+        protected void submit(EC ec, Runnable after) {
+            if (batcher != null) { batcher.offer(ec, after); return; }
+            long submitTime = timed() ? System.nanoTime() : Long.MIN_VALUE;
+            Runnable task = after == null ? () -> invoke(ec, submitTime) : () -> {
+                try { invoke(ec, submitTime); } finally { after.run(); }
+            };
+            if (lane == null) executor().execute(task);
+            else lane.offer(task, after);
+        }
+
 
         // 调用此监听器
-        protected void invoke(EC ec) {
+        protected void invoke(EC ec) { invoke(ec, Long.MIN_VALUE); }
+
+
+        /**
+         * 调用此监听器
+         * @param ec
+         * @param submitTime 提交到线程池的时间(System.nanoTime). Long.MIN_VALUE: 没有排队 或 排队耗时没被采样
+         */
+        protected void invoke(EC ec, long submitTime) {
+            // 被追踪的都记录耗时, 其它的按 timingSample 采样
+            boolean timed = submitTime != Long.MIN_VALUE || ec.id != 0 || timed();
+            long start = timed ? System.nanoTime() : 0;
+            if (submitTime != Long.MIN_VALUE) queueTime.record(start - submitTime);
+            // 被追踪时, 标记当前线程正在执行的 span, 监听器里再发布的事件以它为父
+            long[] cur = null; long prevId = 0, prevSpan = 0, spanId = 0; boolean error = false;
+            if (ec.id != 0) {
+                cur = Tracer.CURRENT.get(); prevId = cur[0]; prevSpan = cur[1];
+                cur[0] = ec.id; cur[1] = spanId = Tracer.ID.incrementAndGet();
+            } else if (tracer.sampleRate > 0) { // 没被采样的事件链, 其中再发布的事件也不采样
+                cur = Tracer.CURRENT.get(); prevId = cur[0]; prevSpan = cur[1];
+                cur[0] = Tracer.UNSAMPLED;
+            }
             try {
                 if (fn != null) fn.run();
                 else {
-                    Object r = null;
-                    if (m.getParameterCount() == 0) r = m.invoke(source); // 没有参数的情况.直接调用
-                    else if (m.getParameterCount() == 1) { // 1个参数的情况
-                        Class<?> t = m.getParameterTypes()[0];
-                        if (EC.class.isAssignableFrom(t)) r = m.invoke(source, ec);
-                        else if (t.isArray()) { // 如果是数组需要转下类型
-                            Object arr = Array.newInstance(t.getComponentType(), ec.args.length);
-                            for (int i = 0; i < ec.args.length; i++) {
-                                Array.set(arr, i, t.getComponentType().cast(ec.args[i]));
-                            }
-                            r = m.invoke(source, arr);
-                        }
-                        else r = m.invoke(source, ec.args);
-                    } else { // 参数个数多于1个的情况
-                        Object[] args = new Object[m.getParameterCount()]; // 参数传少了, 补null
-                        if (EC.class.isAssignableFrom(m.getParameterTypes()[0])) {
+                    Object r;
+                    if (paramCount == 1) { // 1个参数的情况
+                        Object arg;
+                        if (batcher != null) arg = Collections.singletonList(ec); // 批量执行的监听器被同步调用时
+                        else if (ecFirst) arg = ec;
+                        else if (arrComponentType != null) arg = toArray(ec.args); // 如果是数组需要转下类型
+                        else arg = arg(ec, 0);
+                        r = call(arg);
+                    } else if (invoker instanceof F0) r = ((F0) invoker).call(); // 没有参数的情况.直接调用
+                    else if (invoker instanceof V0) { ((V0) invoker).call(); r = null; }
+                    else if (invoker instanceof F2) r = ((F2) invoker).call(arg(ec, 0), arg(ec, 1));
+                    else if (invoker instanceof V2) { ((V2) invoker).call(arg(ec, 0), arg(ec, 1)); r = null; }
+                    else if (invoker instanceof F3) r = ((F3) invoker).call(arg(ec, 0), arg(ec, 1), arg(ec, 2));
+                    else if (invoker instanceof V3) { ((V3) invoker).call(arg(ec, 0), arg(ec, 1), arg(ec, 2)); r = null; }
+                    else if (paramCount == 0) r = (Object) mh.invokeExact();
+                    else { // 参数个数多于3个的情况
+                        Object[] args = new Object[paramCount]; // 参数传少了, 补null
+                        if (ecFirst) {
                             args[0] = ec;
-                            if (ec.args != null) {
-                                for (int i = 1; i <= ec.args.length; i++) args[i] = ec.args[i-1];
-                            }
+                            if (ec.args != null) System.arraycopy(ec.args, 0, args, 1, Math.min(ec.args.length, paramCount - 1));
                         } else if (ec.args != null) {
-                            for (int i = 0; i < ec.args.length; i++) args[i] = ec.args[i];
+                            System.arraycopy(ec.args, 0, args, 0, Math.min(ec.args.length, paramCount));
                         }
-                        r = m.invoke(source, args);
+                        r = (Object) mh.invokeExact(args);
                     }
-                    if (!void.class.isAssignableFrom(m.getReturnType())) ec.result = r;
+                    if (!voidReturn) ec.result = r;
                 }
                 ec.passed(this);
                 if (ec.track) log.info("Passed listener of event '{}'. method: {}, id: {}, result: {}",
-                    name, (m == null ? "" : source.getClass().getSimpleName() + "." + m.getName()),
-                    ec.id, ec.result
+                    name, methodName(), ec.id, ec.result
                 );
             } catch (Throwable e) {
-                ec.ex = e.getCause() == null ? e : e.getCause();
+                errors.increment(); error = true;
+                ec.ex = e;
                 log.error(ec.ex, "Listener invoke error! name: {}, id: {}, method: {}, event source: {}",
-                    name, ec.id,
-                    (m == null ? "" : source.getClass().getSimpleName() + "." + m.getName()),
+                    name, ec.id, methodName(),
                     (ec.source() == null ? null : ec.source().getClass().getSimpleName())
                 );
+            } finally {
+                count.increment();
+                long cost = 0;
+                if (timed) { cost = System.nanoTime() - start; execTime.record(cost); }
+                if (cur != null) {
+                    cur[0] = prevId; cur[1] = prevSpan;
+                    if (ec.id != 0) tracer.record(ec.id, spanId, ec.spanId, this, start, cost, error);
+                }
+            }
+        }
+
+
+        /**
+         * 用一个参数调用 {@link #m}
+         * @param arg
+         * @return
+         */
+        protected Object call(Object arg) throws Throwable {
+            if (invoker instanceof F1) return ((F1) invoker).call(arg);
+            if (invoker instanceof V1) { ((V1) invoker).call(arg); return null; }
+            return (Object) mh.invokeExact(arg);
+        }
+
+
+        /**
+         * 取第 i 个方法参数. 参数传少了, 补null
+         * @param ec
+         * @param i 参数下标
+         * @return
+         */
+        protected Object arg(EC ec, int i) throws Throwable {
+            if (ecFirst && i == 0) return ec;
+            int j = ecFirst ? i - 1 : i;
+            Object v = ec.args == null || ec.args.length <= j ? null : ec.args[j];
+            if (unbox != null && unbox[i] != null && v != null && v.getClass() != unbox[i].type().returnType()) {
+                v = unbox[i].invoke(v); // 例: long 参数传入 Integer
             }
+            return v;
+        }
+
+
+        /**
+         * 监听方法描述: 类名.方法名
+         * @return
+         */
+        protected String methodName() {
+            return m == null ? "" : source.getClass().getSimpleName() + "." + m.getName();
+        }
+
+
+        /**
+         * 此监听器的统计
+         * @return
+         */
+        protected Map<String, Object> metrics() {
+            Map<String, Object> r = new LinkedHashMap<>(7);
+            r.put("method", methodName());
+            r.put("async", async);
+            r.put("count", count.sum());
+            r.put("errors", errors.sum());
+            r.put("execTime", execTime.snapshot());
+            if (async) r.put("queueTime", queueTime.snapshot());
+            if (lane != null) r.put("lane", lane.metrics());
+            if (batcher != null) r.put("batch", batcher.metrics());
+            return r;
+        }
+
+
+        /**
+         * 把参数转换成方法需要的数组类型
+         * @param args
+         * @return
+         */
+        protected Object toArray(Object[] args) {
+            int len = (args == null ? 0 : args.length);
+            Object arr = Array.newInstance(arrComponentType, len);
+            if (len == 0) return arr;
+            if (arrComponentType.isPrimitive()) {
+                for (int i = 0; i < len; i++) Array.set(arr, i, args[i]);
+            } else System.arraycopy(args, 0, arr, 0, len);
+            return arr;
         }
     }
 }
@@ -0,0 +1,190 @@
+package cn.xnatural.enet.event;
+
+import java.lang.ref.WeakReference;
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 事件链追踪记录器.
+ * 按采样率选择要追踪的事件链, 每个线程一个预分配的环形缓冲区记录执行片段(span). 记录时不加锁, 不创建对象, 满了覆盖最旧的记录
+ * 在监听器里再发布的事件, 会沿用同一个追踪id. 即: 一个请求触发的整个事件树都可见
+ * 核心方法: {@link #begin(EC)}, {@link #record(long, long, long, Object, long, long, boolean)}, {@link #dump(int)}
+ */
+public class Tracer {
+    /**
+     * 追踪id, span id 生成器. 单调递增
+     */
+    protected static final AtomicLong          ID        = new AtomicLong();
+    /**
+     * 当前线程正在执行没被采样的事件链
+     */
+    protected static final long                UNSAMPLED = -1;
+    /**
+     * 当前线程正在执行的(被追踪的)监听器: [追踪id, span id]. 追踪id为0表示没有, {@link #UNSAMPLED}: 不采样
+     */
+    protected static final ThreadLocal<long[]> CURRENT   = ThreadLocal.withInitial(() -> new long[2]);
+    /**
+     * 采样率 0 - 1. 0: 只追踪 {@link EC#track} 的事件
+     */
+    protected volatile double                  sampleRate;
+    /**
+     * 每个线程缓冲区能记录的 span 个数
+     */
+    protected final int                        bufferSize;
+    /**
+     * 所有线程的缓冲区. 线程结束后, 缓冲区留给新线程复用
+     */
+    protected final List<Ring>                 rings     = new CopyOnWriteArrayList<>();
+    protected final ThreadLocal<Ring>          local     = ThreadLocal.withInitial(this::acquire);
+
+
+    public Tracer() { this(1024); }
+    public Tracer(int bufferSize) { this.bufferSize = bufferSize; }
+
+
+    /**
+     * 开始追踪一次事件发布. 判断是否需要追踪, 需要则为 ec 分配追踪id和span id
+     * 当前线程在执行被追踪的监听器时, 沿用它的追踪id
+     * @param ec
+     * @return true: 需要追踪
+     */
+    protected boolean begin(EC ec) {
+        if (ec.id == 0) {
+            long[] c = CURRENT.get();
+            if (c[0] > 0) { ec.id = c[0]; ec.parentSpan = c[1]; }
+            else if (ec.track || (c[0] == 0 && sampleRate > 0 && ThreadLocalRandom.current().nextDouble() < sampleRate)) ec.id = ID.incrementAndGet();
+            else return false;
+        }
+        ec.spanId = ID.incrementAndGet();
+        return true;
+    }
+
+
+    /**
+     * 记录一个执行片段
+     * @param traceId 追踪id
+     * @param spanId span id
+     * @param parent 父 span id
+     * @param target 事件名 或 {@link EP.Listener}
+     * @param start 开始时间(System.nanoTime)
+     * @param cost 耗时(纳秒)
+     * @param error 是否执行失败
+     */
+    protected void record(long traceId, long spanId, long parent, Object target, long start, long cost, boolean error) {
+        Ring r = local.get();
+        int i = (int) (r.pos % bufferSize);
+        r.traceIds[i] = traceId; r.spanIds[i] = spanId; r.parents[i] = parent;
+        r.targets[i] = target; r.threads[i] = r.thread; r.starts[i] = start; r.costs[i] = cost; r.errors[i] = error;
+        r.pos++; // 单线程写, volatile 写保证读线程能看到之前的数据
+    }
+
+
+    /**
+     * 为当前线程取一个缓冲区: 优先复用已结束线程的缓冲区
+     * @return
+     */
+    protected synchronized Ring acquire() {
+        Thread t = Thread.currentThread();
+        for (Ring r : rings) {
+            Thread owner = r.owner.get();
+            if (owner == null || !owner.isAlive()) { r.owner = new WeakReference<>(t); r.thread = t.getName(); return r; }
+        }
+        Ring r = new Ring(bufferSize, t);
+        rings.add(r);
+        return r;
+    }
+
+
+    /**
+     * 导出最近的追踪记录
+     * @param limit 最多导出多少条追踪(事件链)
+     * @return [{id, time, cost, spans: [{id, parent, event, method, thread, offset, cost, error}]}]
+     */
+    public List<Map<String, Object>> dump(int limit) {
+        long nowNanos = System.nanoTime(), nowMillis = System.currentTimeMillis();
+        Map<Long, List<long[]>> traces = new TreeMap<>(Comparator.reverseOrder());
+        Map<long[], Object[]> extra = new IdentityHashMap<>();
+        for (Ring r : rings) {
+            long pos = r.pos;
+            for (long p = Math.max(0, pos - bufferSize); p < pos; p++) {
+                int i = (int) (p % bufferSize);
+                long[] span = new long[] {r.traceIds[i], r.spanIds[i], r.parents[i], r.starts[i], r.costs[i]};
+                if (span[0] == 0) continue;
+                traces.computeIfAbsent(span[0], k -> new ArrayList<>()).add(span);
+                extra.put(span, new Object[] {r.targets[i], r.threads[i], r.errors[i]});
+            }
+        }
+        List<Map<String, Object>> r = new LinkedList<>();
+        for (Map.Entry<Long, List<long[]>> e : traces.entrySet()) {
+            if (r.size() >= limit) break;
+            List<long[]> spans = e.getValue();
+            spans.sort(Comparator.comparingLong(s -> s[3]));
+            long begin = spans.get(0)[3], end = begin;
+            List<Map<String, Object>> ls = new ArrayList<>(spans.size());
+            for (long[] s : spans) {
+                end = Math.max(end, s[3] + s[4]);
+                Object[] x = extra.get(s);
+                Map<String, Object> m = new LinkedHashMap<>(9);
+                m.put("id", s[1]); m.put("parent", s[2]);
+                if (x[0] instanceof EP.Listener) {
+                    m.put("event", ((EP.Listener) x[0]).name); m.put("method", ((EP.Listener) x[0]).methodName());
+                } else m.put("event", x[0]);
+                m.put("thread", x[1]);
+                m.put("offset", toMs(s[3] - begin)); m.put("cost", toMs(s[4]));
+                m.put("error", x[2]);
+                ls.add(m);
+            }
+            Map<String, Object> t = new LinkedHashMap<>(5);
+            t.put("id", e.getKey());
+            t.put("time", new Date(nowMillis - (nowNanos - begin) / 1000000));
+            t.put("cost", toMs(end - begin));
+            t.put("spans", ls);
+            r.add(t);
+        }
+        return r;
+    }
+
+
+    protected static double toMs(long nanos) {
+        return Math.round(nanos / 1000.0) / 1000.0;
+    }
+
+
+    public Tracer sampleRate(double rate) {
+        if (rate < 0 || rate > 1) throw new IllegalArgumentException("sampleRate must be in [0, 1]");
+        this.sampleRate = rate;
+        return this;
+    }
+
+
+    public double getSampleRate() {
+        return sampleRate;
+    }
+
+
+    /**
+     * 一个线程的 span 环形缓冲区
+     */
+    protected static class Ring {
+        protected volatile WeakReference<Thread> owner;
+        protected volatile String thread;
+        protected final long[]    traceIds, spanIds, parents, starts, costs;
+        protected final Object[]  targets;
+        protected final String[]  threads;
+        protected final boolean[] errors;
+        /**
+         * 已写入的个数
+         */
+        protected volatile long   pos;
+
+
+        protected Ring(int size, Thread owner) {
+            this.owner = new WeakReference<>(owner); this.thread = owner.getName();
+            traceIds = new long[size]; spanIds = new long[size]; parents = new long[size];
+            starts = new long[size]; costs = new long[size];
+            targets = new Object[size]; threads = new String[size]; errors = new boolean[size];
+        }
+    }
+}
@@ -12,6 +12,7 @@ import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
 import java.util.*;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
 import java.util.function.Supplier;
 import java.util.stream.Collectors;
 
@@ -40,6 +41,10 @@ public class ServerTpl {
      */
     @Resource
     protected     EP                  ep;
+    /**
+     * bean.get 事件通道. {@link #bean(Class)}
+     */
+    protected     Function<Class, Object> beanGetter;
 
 
     public ServerTpl() {
@@ -84,7 +89,8 @@ public class ServerTpl {
      * @return
      */
     protected <T> T bean(Class<T> type) {
-        return (T) ep.fire("bean.get", type);
+        if (beanGetter == null) beanGetter = ep.channel("bean.get", Function.class);
+        return (T) beanGetter.apply(type);
     }
 
 
@@ -224,6 +230,11 @@ public class ServerTpl {
     }
 
 
+    public Double getDouble(String name, Double defaultValue) {
+        return Utils.toDouble(attrs.get(name), defaultValue);
+    }
+
+
     public String getStr(String name, String defaultValue) {
         return Objects.toString(attrs.get(name), defaultValue);
     }
@@ -67,7 +67,10 @@ public class XMemcached extends ServerTpl {
 
 
 
-    @EL(name = {"${name}.set", "cache.set"})
+    /**
+     * 最多 2 个同时执行, 排队超过 10000 时在发布事件的线程中执行(不丢弃: 丢弃后 get 会读到旧值)
+     */
+    @EL(name = {"${name}.set", "cache.set"}, concurrency = 2, queueLimit = 10000, lane = "io")
     protected void set(String cName, String key, Object value) {
         log.trace("{}.set. cName: {}, key: {}, value: {}", getName(), cName, key, value);
         try {
@@ -91,7 +94,7 @@ public class XMemcached extends ServerTpl {
     }
 
 
-    @EL(name = {"${name}.evict", "cache.evict"})
+    @EL(name = {"${name}.evict", "cache.evict"}, lane = "io")
     protected void evict(String cName, String key) {
         log.debug("{}.evict. cName: {}, key: {}", getName(), cName, key);
         try {
@@ -102,7 +105,7 @@ public class XMemcached extends ServerTpl {
     }
 
 
-    @EL(name = {"${name}.clear", "cache.clear"})
+    @EL(name = {"${name}.clear", "cache.clear"}, lane = "io")
     protected void clear(String cName) {
         log.info("{}.clear. cName: {}", getName(), cName);
         try {
@@ -0,0 +1,202 @@
+package cn.xnatural.enet.server.http.netty;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 流式的请求体. 事件循环线程放入 netty 的 {@link ByteBuf}(不拷贝), 业务线程阻塞读取
+ * 缓存的字节数超过 highWater 时停止从连接读取({@link ReadPause#BODY_BUFFER}), 读到低于一半时恢复. 即: 每个请求占用的内存有上限
+ * 核心方法: {@link #offer(ByteBuf)}, {@link #read(byte[], int, int)}, {@link #transferTo(FileChannel)}
+ */
+public class BodyStream extends InputStream implements ReadableByteChannel {
+    /**
+     * 请求体结束标记
+     */
+    protected static final Object                      END      = new Object();
+    protected final        Channel                     channel;
+    /**
+     * 元素: {@link ByteBuf}, {@link Throwable}, {@link #END}
+     */
+    protected final        LinkedBlockingQueue<Object> queue    = new LinkedBlockingQueue<>();
+    /**
+     * 当前缓存的字节数
+     */
+    protected final        AtomicLong                  buffered = new AtomicLong();
+    protected final        long                        highWater, lowWater;
+    /**
+     * 读超时(毫秒)
+     */
+    protected final        long                        timeout;
+    /**
+     * 当前正在读的
+     */
+    protected              ByteBuf                     current;
+    protected              int                         currentSize;
+    protected              boolean                     eof;
+    protected volatile     boolean                     closed;
+
+
+    /**
+     * @param channel 请求所在的连接(HTTP/2 时是 stream)
+     * @param highWater 最多缓存字节数
+     * @param timeout 读超时(毫秒)
+     */
+    public BodyStream(Channel channel, long highWater, long timeout) {
+        this.channel = channel; this.highWater = highWater; this.lowWater = highWater / 2; this.timeout = timeout;
+    }
+
+
+    /**
+     * 放入一段请求体. 由事件循环线程调用, buf 的引用计数转移到此对象
+     * @param buf
+     */
+    protected void offer(ByteBuf buf) {
+        if (closed || !buf.isReadable()) { buf.release(); return; }
+        int size = buf.readableBytes();
+        queue.offer(buf);
+        if (buffered.addAndGet(size) >= highWater && !ReadPause.paused(channel, ReadPause.BODY_BUFFER)) {
+            ReadPause.pause(channel, ReadPause.BODY_BUFFER);
+            // 读线程可能在设置前已经读空了, 再检查一次, 防止双方都在等
+            if (buffered.get() < lowWater) ReadPause.resume(channel, ReadPause.BODY_BUFFER);
+        }
+        if (closed) drain();
+    }
+
+
+    protected void end() { queue.offer(END); }
+
+
+    protected void fail(Throwable t) { queue.offer(t); }
+
+
+    /**
+     * 取当前可读的 buf
+     * @return null: 请求体已读完
+     * @throws IOException
+     */
+    protected ByteBuf current() throws IOException {
+        if (closed) throw new ClosedChannelException();
+        if (current != null) {
+            if (current.isReadable()) return current;
+            consumed(current, currentSize); current = null;
+        }
+        if (eof) return null;
+        Object o;
+        try {
+            o = queue.poll(timeout, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while reading request body", e);
+        }
+        if (o == null) throw new SocketTimeoutException("Read request body timeout: " + timeout + "ms");
+        if (o == END) { eof = true; return null; }
+        if (o instanceof Throwable) {
+            eof = true;
+            throw new IOException("Request body broken", (Throwable) o);
+        }
+        current = (ByteBuf) o; currentSize = current.readableBytes();
+        return current;
+    }
+
+
+    /**
+     * 一个 buf 读完: 释放, 并检查是否恢复读取
+     */
+    protected void consumed(ByteBuf buf, int size) {
+        long n = buffered.addAndGet(-size);
+        buf.release();
+        if (n < lowWater && ReadPause.paused(channel, ReadPause.BODY_BUFFER)) ReadPause.resume(channel, ReadPause.BODY_BUFFER);
+    }
+
+
+    @Override
+    public int read() throws IOException {
+        ByteBuf b = current();
+        return b == null ? -1 : b.readUnsignedByte();
+    }
+
+
+    @Override
+    public int read(byte[] bs, int off, int len) throws IOException {
+        if (len == 0) return 0;
+        ByteBuf b = current();
+        if (b == null) return -1;
+        int n = Math.min(len, b.readableBytes());
+        b.readBytes(bs, off, n);
+        return n;
+    }
+
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        if (!dst.hasRemaining()) return 0;
+        ByteBuf b = current();
+        if (b == null) return -1;
+        int n = Math.min(dst.remaining(), b.readableBytes());
+        int limit = dst.limit();
+        dst.limit(dst.position() + n);
+        b.readBytes(dst);
+        dst.limit(limit);
+        return n;
+    }
+
+
+    /**
+     * 把剩下的请求体直接写入文件. 从 netty 的(直接内存)buf 写到 FileChannel, 不经过堆内存
+     * @param fc
+     * @return 写入的字节数
+     * @throws IOException
+     */
+    public long transferTo(FileChannel fc) throws IOException {
+        long total = 0;
+        for (ByteBuf b; (b = current()) != null; ) {
+            while (b.isReadable()) total += b.readBytes(fc, b.readableBytes());
+        }
+        return total;
+    }
+
+
+    @Override
+    public int available() {
+        ByteBuf b = current;
+        return b == null ? 0 : b.readableBytes();
+    }
+
+
+    @Override
+    public boolean isOpen() {
+        return !closed;
+    }
+
+
+    /**
+     * 关闭. 没有读完的请求体丢弃, 恢复从连接读取
+     */
+    @Override
+    public void close() {
+        if (closed) return;
+        closed = true;
+        if (current != null) { current.release(); current = null; }
+        drain();
+        ReadPause.resume(channel, ReadPause.BODY_BUFFER);
+    }
+
+
+    protected void drain() {
+        for (Object o; (o = queue.poll()) != null; ) {
+            if (o instanceof ByteBuf) ((ByteBuf) o).release();
+        }
+        buffered.set(0);
+    }
+}
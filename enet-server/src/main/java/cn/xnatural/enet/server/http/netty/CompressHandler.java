@@ -0,0 +1,182 @@
+package cn.xnatural.enet.server.http.netty;
+
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+import io.netty.handler.codec.http.*;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.concurrent.PromiseNotifier;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+
+import static io.netty.handler.codec.http.HttpHeaderNames.*;
+
+/**
+ * 响应压缩(gzip/deflate). 只压缩: 类型匹配 types(前缀) 且 不小于 minSize 字节的 200 响应
+ * 已经有 Content-Encoding 或 Accept-Ranges 的响应(例: {@link StaticHandler} 的响应, Range 的位置是对原内容的)不压缩
+ * 分块写出的响应(例: resteasy)在响应头时还不知道大小: 先缓存, 缓存到 minSize 字节再开始压缩; 结束时还不到 minSize 就合并成一个完整的响应, 不压缩
+ */
+public class CompressHandler extends HttpContentCompressor {
+    protected final int                  minSize;
+    protected final String[]             types;
+    /**
+     * 请求的方法. 按顺序对应响应, HEAD 请求的响应不缓存
+     */
+    protected final Queue<HttpMethod>    methods = new ArrayDeque<>(2);
+    /**
+     * 等待判断大小的响应: 响应头 和 后面的内容
+     */
+    protected       List<HttpObject>     pending;
+    protected       List<ChannelPromise> pendingPromises;
+    protected       int                  pendingBytes;
+    protected       boolean              pendingFlush;
+
+
+    /**
+     * @param level 压缩级别 1-9
+     * @param minSize 最小压缩字节数
+     * @param types 压缩的 Content-Type 前缀. 例: text/, application/json
+     */
+    public CompressHandler(int level, int minSize, String[] types) {
+        super(level);
+        this.minSize = minSize; this.types = types;
+    }
+
+
+    /**
+     * 是否为可压缩的类型
+     * @param contentType
+     * @param types 类型前缀
+     */
+    public static boolean compressible(String contentType, String[] types) {
+        if (contentType == null) return false;
+        for (String t : types) {
+            if (contentType.regionMatches(true, 0, t, 0, t.length())) return true;
+        }
+        return false;
+    }
+
+
+    @Override
+    protected void decode(ChannelHandlerContext ctx, HttpRequest msg, List<Object> out) throws Exception {
+        methods.offer(msg.method());
+        super.decode(ctx, msg, out);
+    }
+
+
+    @Override
+    protected Result beginEncode(HttpResponse resp, String acceptEncoding) throws Exception {
+        if (!HttpResponseStatus.OK.equals(resp.status())) return null;
+        HttpHeaders hs = resp.headers();
+        if (hs.contains(CONTENT_ENCODING) || hs.contains(ACCEPT_RANGES) || !compressible(hs.get(CONTENT_TYPE), types)) return null;
+        if (resp instanceof FullHttpResponse) {
+            if (((FullHttpResponse) resp).content().readableBytes() < minSize) return null;
+        } else if (HttpUtil.getContentLength(resp, -1L) >= 0 && HttpUtil.getContentLength(resp, -1L) < minSize) return null;
+        Result r = super.beginEncode(resp, acceptEncoding);
+        if (r != null) hs.add(VARY, ACCEPT_ENCODING);
+        return r;
+    }
+
+
+    @Override
+    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+        if (pending == null) {
+            if (msg instanceof HttpResponse) {
+                HttpResponse resp = (HttpResponse) msg;
+                HttpMethod m = resp.status().code() == 100 ? null : methods.poll(); // 和 HttpContentEncoder 一样, 100-continue 不对应请求
+                if (!(msg instanceof FullHttpResponse) && !HttpMethod.HEAD.equals(m) && unknownSize(resp)) {
+                    pending = new ArrayList<>(4); pendingPromises = new ArrayList<>(4); pendingBytes = 0; pendingFlush = false;
+                    pending.add(resp); pendingPromises.add(promise);
+                    return;
+                }
+            }
+            super.write(ctx, msg, promise);
+            return;
+        }
+        if (!(msg instanceof HttpContent) || msg instanceof HttpResponse) { // 其它类型的消息: 不再等待
+            writePending(ctx); write(ctx, msg, promise);
+            return;
+        }
+        pending.add((HttpContent) msg); pendingPromises.add(promise);
+        pendingBytes += ((HttpContent) msg).content().readableBytes();
+        if (msg instanceof LastHttpContent) {
+            if (pendingBytes < minSize) writeFull(ctx);
+            else writePending(ctx);
+        } else if (pendingBytes >= minSize) writePending(ctx);
+    }
+
+
+    @Override
+    public void flush(ChannelHandlerContext ctx) throws Exception {
+        if (pending == null) super.flush(ctx);
+        else pendingFlush = true;
+    }
+
+
+    /**
+     * 是否需要等内容确定大小
+     */
+    protected boolean unknownSize(HttpResponse resp) {
+        HttpHeaders hs = resp.headers();
+        return HttpResponseStatus.OK.equals(resp.status()) && !hs.contains(CONTENT_LENGTH) && !hs.contains(CONTENT_ENCODING)
+            && !hs.contains(ACCEPT_RANGES) && compressible(hs.get(CONTENT_TYPE), types);
+    }
+
+
+    /**
+     * 原样写出缓存的消息(会被压缩)
+     */
+    protected void writePending(ChannelHandlerContext ctx) throws Exception {
+        List<HttpObject> msgs = pending; List<ChannelPromise> promises = pendingPromises;
+        boolean flush = pendingFlush;
+        pending = null; pendingPromises = null;
+        for (int i = 0; i < msgs.size(); i++) super.write(ctx, msgs.get(i), promises.get(i));
+        if (flush) super.flush(ctx);
+    }
+
+
+    /**
+     * 合并缓存的消息为一个完整的响应(小于 minSize, 不会被压缩)
+     */
+    protected void writeFull(ChannelHandlerContext ctx) throws Exception {
+        List<HttpObject> msgs = pending; List<ChannelPromise> promises = pendingPromises;
+        pending = null; pendingPromises = null;
+        HttpResponse head = (HttpResponse) msgs.get(0);
+        CompositeByteBuf content = ctx.alloc().compositeBuffer(msgs.size());
+        for (int i = 1; i < msgs.size(); i++) content.addComponent(true, ((HttpContent) msgs.get(i)).content());
+        FullHttpResponse full = new DefaultFullHttpResponse(head.protocolVersion(), head.status(), content, head.headers(), ((LastHttpContent) msgs.get(msgs.size() - 1)).trailingHeaders());
+        HttpUtil.setTransferEncodingChunked(full, false);
+        HttpUtil.setContentLength(full, content.readableBytes());
+        ChannelPromise p = ctx.newPromise();
+        ChannelPromise[] ps = promises.stream().filter(x -> !x.isVoid()).toArray(ChannelPromise[]::new);
+        if (ps.length > 0) p.addListener(new PromiseNotifier<Void, ChannelFuture>(ps));
+        super.write(ctx, full, p);
+        super.flush(ctx);
+    }
+
+
+    @Override
+    public void handlerRemoved(ChannelHandlerContext ctx) throws Exception {
+        releasePending();
+        super.handlerRemoved(ctx);
+    }
+
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        releasePending();
+        super.channelInactive(ctx);
+    }
+
+
+    protected void releasePending() {
+        if (pending == null) return;
+        for (HttpObject o : pending) ReferenceCountUtil.release(o);
+        for (ChannelPromise p : pendingPromises) p.tryFailure(new IllegalStateException("channel closed"));
+        pending = null; pendingPromises = null;
+    }
+}
@@ -1,42 +1,110 @@
 package cn.xnatural.enet.server.http.netty;
 
+import cn.xnatural.enet.common.RateLimiter;
 import cn.xnatural.enet.event.EC;
 import cn.xnatural.enet.event.EL;
 import cn.xnatural.enet.event.EP;
 import cn.xnatural.enet.server.ServerTpl;
 import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import io.netty.buffer.UnpooledByteBufAllocator;
 import io.netty.channel.*;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollChannelOption;
 import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollMode;
 import io.netty.channel.epoll.EpollServerSocketChannel;
 import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.SocketChannel;
 import io.netty.channel.socket.nio.NioServerSocketChannel;
 import io.netty.handler.codec.http.*;
+import io.netty.handler.codec.http2.*;
+import io.netty.handler.ssl.*;
+import io.netty.handler.ssl.util.SelfSignedCertificate;
 import io.netty.handler.stream.ChunkedWriteHandler;
 import io.netty.handler.timeout.IdleStateHandler;
+import io.netty.util.AsciiString;
+import io.netty.util.CharsetUtil;
+import io.netty.util.NetUtil;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.concurrent.DefaultEventExecutorGroup;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import io.netty.util.concurrent.EventExecutorGroup;
+import io.netty.util.internal.PlatformDependent;
 
 import javax.annotation.Resource;
+import java.io.File;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.Locale;
 import java.util.Map;
+import java.util.TreeMap;
 import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import static cn.xnatural.enet.common.Utils.isEmpty;
-import static io.netty.handler.codec.http.HttpResponseStatus.SERVICE_UNAVAILABLE;
+import static io.netty.handler.ssl.ApplicationProtocolConfig.*;
 
 /**
  * 用 netty 实现的 http server
+ * http2Enabled: 支持 HTTP/2. 明文时支持 h2c 升级(Upgrade: h2c) 和 直接 h2c(prior knowledge); sslEnabled 时用 ALPN 协商 h2
+ * HTTP/2 的每个 stream 是一个子 channel, 和 HTTP/1.1 的连接一样通过 http-netty.addHandler 事件添加处理器
+ * streamPaths: 流式接收请求体的路径前缀(逗号分隔), 这些请求不聚合, 见 {@link StreamingHandler}
+ * 静态资源: 通过 http.addStatic 事件添加映射, 在事件循环线程中直接响应(读 classpath 和第一次压缩在 exec 中), 见 {@link StaticHandler}
+ * compressEnabled: 响应压缩(gzip/deflate), 见 {@link CompressHandler}. compressThreads 大于0时压缩在单独的线程中执行, 不占用事件循环线程
+ * 传输层: transport(auto/epoll/nio), epollMode(edge/level), reusePort + acceptors(多个 accept 线程), allocator(pooled/unpooled) + preferDirect,
+ *  tcpNoDelay, soRcvbuf, soSndbuf, backlog, writeBufferLowWaterMark/writeBufferHighWaterMark(写缓存超过高水位时暂停读取),
+ *  loopThreadPriority(事件循环线程的优先级)
+ * 事件循环总是用单独创建的线程, 不和业务执行共用线程池: 事件循环会一直占着线程, 放到有界的线程池中会挤掉业务任务, 超过核心线程数的事件循环甚至不会启动
+ * 限流: rateLimitIp, rateLimitSession, rateLimitRoute.路径前缀, 值为: 每秒个数,突发个数. 见 {@link RateLimitHandler}
  */
 public class NettyHttp extends ServerTpl {
+    protected static final byte[]  FUSING_RESPONSE = "HTTP/1.1 503 Service Unavailable\r\nContent-Length: 0\r\nConnection: close\r\n\r\n".getBytes(CharsetUtil.US_ASCII);
     protected final AtomicBoolean  running = new AtomicBoolean(false);
     @Resource
     protected       Executor       exec;
     protected       EventLoopGroup boosGroup;
     protected       EventLoopGroup workerGroup;
+    /**
+     * sslEnabled 时的 ssl 配置
+     */
+    protected       SslContext     sslCtx;
+    /**
+     * ssl 是否支持 ALPN 协商 h2
+     */
+    protected       boolean        alpn;
+    /**
+     * 静态资源映射: 路径前缀 -> 位置
+     */
+    protected final Map<String, String> statics = new ConcurrentHashMap<>();
+    /**
+     * 静态资源处理器. 所有连接共用
+     */
+    protected       StaticHandler  staticHandler;
+    /**
+     * 压缩的类型前缀. 为 null 时不压缩
+     */
+    protected       String[]       compressTypes;
+    /**
+     * 执行压缩的线程. 为 null 时在事件循环线程中压缩
+     */
+    protected       EventExecutorGroup compressGroup;
+    /**
+     * 按 ip, 按 session 的限流器. 为 null 时不限
+     */
+    protected       RateLimiter    ipLimiter, sessionLimiter;
+    /**
+     * 路由前缀 -> 限流器
+     */
+    protected final Map<String, RateLimiter> routeLimiters = new ConcurrentHashMap<>();
 
 
     public NettyHttp() { this("http-netty"); }
@@ -52,6 +120,18 @@ public class NettyHttp extends ServerTpl {
         if (ep == null) ep = new EP(exec);
         ep.fire(getName() + ".starting");
         attrs.putAll((Map) ep.fire("env.ns", "http", getName()));
+        StaticHandler sh = new StaticHandler(
+            getLong("staticCacheSize", 8 * 1024 * 1024L), getLong("staticCacheMaxFileSize", 64 * 1024L), getInteger("staticMaxAge", 60)
+        ).executor(exec);
+        if (getBoolean("compressEnabled", false)) {
+            compressTypes = Arrays.stream(getStr("compressTypes", "text/,application/json,application/javascript,application/xml,image/svg+xml").split(","))
+                .map(String::trim).filter(t -> !t.isEmpty()).toArray(String[]::new);
+            sh.gzip(getInteger("compressMinSize", 1024), compressTypes);
+            int n = getInteger("compressThreads", 0);
+            if (n > 0) compressGroup = new DefaultEventExecutorGroup(n, new DefaultThreadFactory(getName() + "-compress", true));
+        }
+        staticHandler = sh; statics.forEach(sh::add);
+        initRateLimiters();
         createServer();
         ep.fire(getName() + ".started");
     }
@@ -65,6 +145,8 @@ public class NettyHttp extends ServerTpl {
         log.info("Shutdown '{}' Server. hostname: {}, port: {}", getName(), isEmpty(getHostname()) ? "0.0.0.0" : getHostname(), getPort());
         if (boosGroup != null) boosGroup.shutdownGracefully();
         if (workerGroup != null && workerGroup != boosGroup) workerGroup.shutdownGracefully();
+        if (compressGroup != null) compressGroup.shutdownGracefully();
+        if (staticHandler != null) staticHandler.clear();
         if (exec instanceof ExecutorService) ((ExecutorService) exec).shutdown();
     }
 
@@ -77,9 +159,19 @@ public class NettyHttp extends ServerTpl {
      * 创建http服务
      */
     protected void createServer() {
-        boolean useEpoll = isLinux() && getBoolean("epollEnabled", true);
-        boosGroup = useEpoll ? new EpollEventLoopGroup(getInteger("threads-boos", 1), exec) : new NioEventLoopGroup(getInteger("threads-boos", 1), exec);
-        workerGroup = getBoolean("shareLoop", true) ? boosGroup : (useEpoll ? new EpollEventLoopGroup(getInteger("threads-worker", 1), exec) : new NioEventLoopGroup(getInteger("threads-worker", 1), exec));
+        boolean useEpoll = useEpoll();
+        // SO_REUSEPORT: 同一端口绑定多次, 由内核把新连接分到多个 accept 线程
+        int acceptors = getInteger("acceptors", 1);
+        boolean reusePort = getBoolean("reusePort", false);
+        if (acceptors > 1 && !(useEpoll && reusePort)) {
+            log.warn("'{}' acceptors > 1 need epoll transport and reusePort=true. use 1 acceptor", getName());
+            acceptors = 1;
+        }
+        boosGroup = loopGroup(useEpoll, Math.max(acceptors, getInteger("threads-boos", 1)), "boss");
+        workerGroup = getBoolean("shareLoop", true) ? boosGroup : loopGroup(useEpoll, getInteger("threads-worker", 1), "worker");
+        boolean h2 = getBoolean("http2Enabled", false);
+        if (getBoolean("sslEnabled", false)) initSsl(h2);
+        boolean backpressure = getBoolean("writeBackpressure", true);
         ServerBootstrap sb = new ServerBootstrap()
                 .group(boosGroup, workerGroup)
                 .channel(useEpoll ? EpollServerSocketChannel.class : NioServerSocketChannel.class)
@@ -96,32 +188,316 @@ public class NettyHttp extends ServerTpl {
                             public void channelUnregistered(ChannelHandlerContext ctx) throws Exception {
                                 super.channelUnregistered(ctx); connCount.decrementAndGet();
                             }
-                        });
-                        ch.pipeline().addLast(new IdleStateHandler(getLong("readerIdleTime", 2 * 60L), getLong("writerIdleTime", 0L), getLong("allIdleTime", 0L), TimeUnit.SECONDS));
-                        ch.pipeline().addLast(new HttpServerCodec());
-                        ch.pipeline().addLast(new HttpServerKeepAliveHandler());
-                        ch.pipeline().addLast(new HttpObjectAggregator(getInteger("maxContentLength", 65536)));
-                        ch.pipeline().addLast(new ChunkedWriteHandler());
-                        ep.fire("http-netty.addHandler", new EC().args(ch.pipeline()), ec -> {
-                            if (ec.isNoListener()) {
-                                log.error("'{}' server not available handler", getName());
-                                stop();
+                            @Override
+                            public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+                                // 写缓存超过高水位(客户端读得慢)时不再读新的请求, 降到低水位后恢复
+                                if (backpressure) {
+                                    if (ctx.channel().isWritable()) ReadPause.resume(ctx.channel(), ReadPause.WRITE_BACKLOG);
+                                    else ReadPause.pause(ctx.channel(), ReadPause.WRITE_BACKLOG);
+                                }
+                                super.channelWritabilityChanged(ctx);
                             }
                         });
+                        ch.pipeline().addLast(new IdleStateHandler(getLong("readerIdleTime", 2 * 60L), getLong("writerIdleTime", 0L), getLong("allIdleTime", 0L), TimeUnit.SECONDS));
+                        if (sslCtx != null) {
+                            ch.pipeline().addLast(sslCtx.newHandler(ch.alloc()));
+                            if (alpn) {
+                                ch.pipeline().addLast(new ApplicationProtocolNegotiationHandler(ApplicationProtocolNames.HTTP_1_1) {
+                                    @Override
+                                    protected void configurePipeline(ChannelHandlerContext ctx, String protocol) {
+                                        if (ApplicationProtocolNames.HTTP_2.equals(protocol)) ctx.pipeline().addLast(http2Codec());
+                                        else initHttp1(ctx.pipeline(), true);
+                                    }
+                                });
+                            } else initHttp1(ch.pipeline(), true);
+                        } else if (h2) initH2c(ch.pipeline());
+                        else initHttp1(ch.pipeline(), true);
                     }
                 })
-                .option(ChannelOption.SO_BACKLOG, getInteger("backlog", 100))
+                .option(ChannelOption.SO_BACKLOG, getInteger("backlog", NetUtil.SOMAXCONN))
                 .childOption(ChannelOption.SO_KEEPALIVE, true);
+        configure(sb, useEpoll, reusePort);
         try {
-            if (attrs.containsKey("hostname")) sb.bind(getPort()).sync(); // 如果没有配置hostname, 默认绑定本地所有地址
-            else sb.bind(getHostname(), getPort()).sync();
-            log.info("Started {} Server. hostname: {}, port: {}, type: {}", getName(), isEmpty(getHostname()) ? "0.0.0.0" : getHostname(), getPort(), (useEpoll ? "epoll" : "nio"));
+            for (int i = 0; i < acceptors; i++) { // 每次绑定在 boosGroup 中的下一个线程上
+                if (attrs.containsKey("hostname")) sb.bind(getPort()).sync(); // 如果没有配置hostname, 默认绑定本地所有地址
+                else sb.bind(getHostname(), getPort()).sync();
+            }
+            log.info("Started {} Server. hostname: {}, port: {}, type: {}, acceptors: {}, protocol: {}", getName(), isEmpty(getHostname()) ? "0.0.0.0" : getHostname(), getPort(),
+                (useEpoll ? "epoll(" + getStr("epollMode", "edge") + ")" : "nio"), acceptors,
+                (sslCtx != null ? (alpn ? "h2,http/1.1 over tls" : "http/1.1 over tls") : (h2 ? "h2c,http/1.1" : "http/1.1")));
         } catch (Exception ex) {
             log.error(ex);
         }
     }
 
 
+    /**
+     * 是否用 epoll. transport: auto(linux 上可用时用 epoll), epoll, nio
+     */
+    protected boolean useEpoll() {
+        String t = getStr("transport", "auto").trim().toLowerCase(Locale.UK);
+        if ("nio".equals(t)) return false;
+        boolean available = isLinux() && Epoll.isAvailable();
+        if ("epoll".equals(t)) {
+            if (!available) log.warn("'{}' epoll transport not available, use nio. {}", getName(), Epoll.unavailabilityCause());
+            return available;
+        }
+        return available && getBoolean("epollEnabled", true);
+    }
+
+
+    /**
+     * 创建事件循环线程组. 用单独创建的线程
+     * @param useEpoll
+     * @param threads 线程数
+     * @param type boss/worker
+     */
+    protected EventLoopGroup loopGroup(boolean useEpoll, int threads, String type) {
+        ThreadFactory tf = new DefaultThreadFactory(getName() + "-" + type, false, getInteger("loopThreadPriority", Thread.NORM_PRIORITY));
+        return useEpoll ? new EpollEventLoopGroup(threads, tf) : new NioEventLoopGroup(threads, tf);
+    }
+
+
+    /**
+     * 配置 socket 和 内存分配
+     * @param sb
+     * @param useEpoll
+     * @param reusePort
+     */
+    protected void configure(ServerBootstrap sb, boolean useEpoll, boolean reusePort) {
+        boolean direct = getBoolean("preferDirect", PlatformDependent.directBufferPreferred());
+        ByteBufAllocator alloc = "unpooled".equalsIgnoreCase(getStr("allocator", "pooled")) ? new UnpooledByteBufAllocator(direct) : new PooledByteBufAllocator(direct);
+        sb.option(ChannelOption.ALLOCATOR, alloc).childOption(ChannelOption.ALLOCATOR, alloc)
+            .childOption(ChannelOption.TCP_NODELAY, getBoolean("tcpNoDelay", true))
+            .childOption(ChannelOption.WRITE_BUFFER_WATER_MARK, new WriteBufferWaterMark(
+                getInteger("writeBufferLowWaterMark", 32 * 1024), getInteger("writeBufferHighWaterMark", 64 * 1024)
+            ));
+        Integer rcv = getInteger("soRcvbuf", null), snd = getInteger("soSndbuf", null);
+        if (rcv != null) sb.childOption(ChannelOption.SO_RCVBUF, rcv);
+        if (snd != null) sb.childOption(ChannelOption.SO_SNDBUF, snd);
+        if (useEpoll) {
+            EpollMode mode = "level".equalsIgnoreCase(getStr("epollMode", "edge")) ? EpollMode.LEVEL_TRIGGERED : EpollMode.EDGE_TRIGGERED;
+            sb.option(EpollChannelOption.EPOLL_MODE, mode).childOption(EpollChannelOption.EPOLL_MODE, mode);
+            if (reusePort) sb.option(EpollChannelOption.SO_REUSEPORT, true);
+        }
+    }
+
+
+    /**
+     * 添加 HTTP/1.1 的处理器
+     * @param cp
+     * @param codec 是否添加 {@link HttpServerCodec}
+     */
+    protected void initHttp1(ChannelPipeline cp, boolean codec) {
+        if (codec) cp.addLast(new HttpServerCodec());
+        cp.addLast(new HttpServerKeepAliveHandler());
+        addCompressHandler(cp);
+        addRateLimitHandler(cp);
+        addStreamingHandler(cp);
+        cp.addLast(new HttpObjectAggregator(getInteger("maxContentLength", 65536)));
+        cp.addLast(new ChunkedWriteHandler());
+        cp.addLast(staticHandler);
+        addHandler(cp);
+    }
+
+
+    /**
+     * 明文 HTTP/2: 以 h2c 连接前言(prior knowledge) 开始的直接用 HTTP/2, 带 Upgrade: h2c 的请求升级成 HTTP/2, 其它的按 HTTP/1.1 处理
+     * @param cp
+     */
+    protected void initH2c(ChannelPipeline cp) {
+        HttpServerCodec sc = new HttpServerCodec();
+        Http2MultiplexCodec h2 = http2Codec(); // 两条路径只会用到一个
+        HttpServerUpgradeHandler uh = new HttpServerUpgradeHandler(sc, protocol -> {
+            if (AsciiString.contentEquals(Http2CodecUtil.HTTP_UPGRADE_PROTOCOL_NAME, protocol)) return new Http2ServerUpgradeCodec(h2);
+            return null;
+        }, getInteger("maxContentLength", 65536));
+        cp.addLast(new CleartextHttp2ServerUpgradeHandler(sc, uh, h2));
+        // 收到 HTTP/1.1 的请求(没有升级) 才添加 HTTP/1.1 的处理器
+        cp.addLast(new SimpleChannelInboundHandler<HttpMessage>() {
+            @Override
+            protected void channelRead0(ChannelHandlerContext ctx, HttpMessage msg) {
+                initHttp1(ctx.pipeline(), false);
+                ctx.pipeline().remove(this);
+                ctx.fireChannelRead(ReferenceCountUtil.retain(msg));
+            }
+        });
+    }
+
+
+    /**
+     * 创建 HTTP/2 的处理器. 每个 stream 一个子 channel, 转换成 HTTP/1.1 的对象 后交给 http-netty.addHandler 添加的处理器
+     * @return
+     */
+    protected Http2MultiplexCodec http2Codec() {
+        ChannelInitializer<Channel> stream = new ChannelInitializer<Channel>() {
+            @Override
+            protected void initChannel(Channel ch) {
+                ch.pipeline().addLast(new Http2StreamFrameToHttpObjectCodec(true));
+                addCompressHandler(ch.pipeline());
+                addRateLimitHandler(ch.pipeline());
+                addStreamingHandler(ch.pipeline());
+                ch.pipeline().addLast(new HttpObjectAggregator(getInteger("maxContentLength", 65536)));
+                ch.pipeline().addLast(new ChunkedWriteHandler());
+                ch.pipeline().addLast(staticHandler);
+                addHandler(ch.pipeline());
+            }
+        };
+        return Http2MultiplexCodecBuilder.forServer(stream)
+            .initialSettings(Http2Settings.defaultSettings().maxConcurrentStreams(getLong("http2MaxConcurrentStreams", 100L)))
+            .build();
+    }
+
+
+    /**
+     * 添加静态资源映射
+     * @param prefix 路径前缀. 例: /file/
+     * @param location 目录 或 classpath:包路径
+     */
+    @EL(name = {"${name}.addStatic", "http.addStatic"}, async = false)
+    public NettyHttp addStatic(String prefix, String location) {
+        log.info("'{}' add static resource. prefix: {}, location: {}", getName(), prefix, location);
+        statics.put(prefix, location);
+        if (staticHandler != null) staticHandler.add(prefix, location);
+        return this;
+    }
+
+
+    /**
+     * compressEnabled 时添加 {@link CompressHandler}
+     * @param cp
+     */
+    protected void addCompressHandler(ChannelPipeline cp) {
+        if (compressTypes == null) return;
+        cp.addLast(compressGroup, "compressor", new CompressHandler(getInteger("compressLevel", 6), getInteger("compressMinSize", 1024), compressTypes));
+    }
+
+
+    /**
+     * 创建限流器. 配置值: 每秒个数,突发个数(默认为每秒个数)
+     * rateLimitIp: 每个客户端ip; rateLimitSession: 每个 session(cookie: rateLimitCookie); rateLimitRoute.路径前缀: 每个路由前缀
+     * rateLimitMaxKeys: 每种限流最多保存的 key 个数(ip, session), 超过时淘汰最久没有访问的
+     */
+    protected void initRateLimiters() {
+        ipLimiter = rateLimiter("ip", getStr("rateLimitIp", null), getInteger("rateLimitMaxKeys", 100_000));
+        sessionLimiter = rateLimiter("session", getStr("rateLimitSession", null), getInteger("rateLimitMaxKeys", 100_000));
+        routeLimiters.clear();
+        String prefix = "rateLimitRoute.";
+        attrs.forEach((k, v) -> {
+            if (!k.startsWith(prefix) || v == null) return;
+            String route = k.substring(prefix.length());
+            routeLimiters.put(route, rateLimiter("route:" + route, v.toString(), 1));
+        });
+        if (ipLimiter != null || sessionLimiter != null || !routeLimiters.isEmpty()) {
+            log.info("'{}' rate limit. ip: {}, session: {}, routes: {}", getName(), ipLimiter, sessionLimiter, routeLimiters.values());
+        }
+    }
+
+
+    /**
+     * @param key 标识
+     * @param spec 每秒个数,突发个数
+     * @param maxKeys
+     * @return null: 没有配置
+     */
+    protected RateLimiter rateLimiter(String key, String spec, int maxKeys) {
+        if (isEmpty(spec)) return null;
+        String[] arr = spec.split(",");
+        double rate = Double.parseDouble(arr[0].trim());
+        int burst = arr.length > 1 ? Integer.parseInt(arr[1].trim()) : (int) Math.max(1, Math.ceil(rate));
+        return new RateLimiter(key, rate, burst, maxKeys, maxKeys > 1 ? getInteger("rateLimitStripes", 16) : 1);
+    }
+
+
+    /**
+     * 配置了限流时添加 {@link RateLimitHandler}. 要在 {@link CompressHandler} 之后, 429 响应才能对应上请求
+     * @param cp
+     */
+    protected void addRateLimitHandler(ChannelPipeline cp) {
+        if (ipLimiter == null && sessionLimiter == null && routeLimiters.isEmpty()) return;
+        cp.addLast(new RateLimitHandler(ipLimiter, sessionLimiter, routeLimiters, getStr("rateLimitIpHeader", null), getStr("rateLimitCookie", "sId")));
+    }
+
+
+    /**
+     * 各限流器的状态
+     * @return
+     */
+    @EL(name = {"${name}.rateLimits", "http.rateLimits"}, async = false)
+    public Map<String, Object> rateLimits() {
+        Map<String, Object> r = new LinkedHashMap<>();
+        if (ipLimiter != null) r.put("ip", ipLimiter.metrics());
+        if (sessionLimiter != null) r.put("session", sessionLimiter.metrics());
+        new TreeMap<>(routeLimiters).forEach((k, l) -> r.put("route:" + k, l.metrics()));
+        return r;
+    }
+
+
+    /**
+     * 配置了 streamPaths 时添加 {@link StreamingHandler}
+     * @param cp
+     */
+    protected void addStreamingHandler(ChannelPipeline cp) {
+        String paths = getStr("streamPaths", null);
+        if (isEmpty(paths)) return;
+        cp.addLast(new StreamingHandler(
+            Arrays.stream(paths.split(",")).map(String::trim).filter(p -> !p.isEmpty()).toArray(String[]::new),
+            getLong("streamBufferSize", 256 * 1024L), getLong("streamReadTimeout", 60 * 1000L)
+        ));
+    }
+
+
+    /**
+     * 通过 http-netty.addHandler 事件添加请求处理器
+     * @param cp
+     */
+    protected void addHandler(ChannelPipeline cp) {
+        ep.fire("http-netty.addHandler", new EC().args(cp), ec -> {
+            if (ec.isNoListener()) {
+                log.error("'{}' server not available handler", getName());
+                stop();
+            }
+        });
+    }
+
+
+    /**
+     * 初始化 ssl. 没有配置证书(sslCertFile, sslKeyFile)时用自签名证书(只用于测试)
+     * @param h2 是否协商 HTTP/2
+     */
+    protected void initSsl(boolean h2) {
+        try {
+            String cert = getStr("sslCertFile", null), key = getStr("sslKeyFile", null);
+            SslContextBuilder b;
+            if (isEmpty(cert) || isEmpty(key)) {
+                log.warn("'{}' sslCertFile or sslKeyFile not config, use self signed certificate", getName());
+                SelfSignedCertificate ssc = new SelfSignedCertificate();
+                b = SslContextBuilder.forServer(ssc.certificate(), ssc.privateKey());
+            } else b = SslContextBuilder.forServer(new File(cert), new File(key));
+            SslProvider provider = OpenSsl.isAlpnSupported() ? SslProvider.OPENSSL : SslProvider.JDK;
+            b.sslProvider(provider);
+            if (h2) {
+                try {
+                    sslCtx = b.ciphers(Http2SecurityUtil.CIPHERS, SupportedCipherSuiteFilter.INSTANCE)
+                        .applicationProtocolConfig(new ApplicationProtocolConfig(
+                            Protocol.ALPN, SelectorFailureBehavior.NO_ADVERTISE, SelectedListenerFailureBehavior.ACCEPT,
+                            ApplicationProtocolNames.HTTP_2, ApplicationProtocolNames.HTTP_1_1
+                        )).build();
+                    sslCtx.newEngine(ByteBufAllocator.DEFAULT); // 当前 jvm 不支持 ALPN 时这里会抛异常
+                    alpn = true;
+                    return;
+                } catch (Exception ex) {
+                    log.warn("'{}' ALPN not supported by ssl provider '{}'. fallback to http/1.1 over tls. {}", getName(), provider, ex.getMessage());
+                    b.ciphers(null).applicationProtocolConfig(null);
+                }
+            }
+            sslCtx = b.build();
+        } catch (Exception ex) {
+            throw new RuntimeException("'" + getName() + "' init ssl error", ex);
+        }
+    }
+
+
     /**
      * 熔断: 是否拒绝处理请求
      * @param ctx
@@ -129,8 +505,9 @@ public class NettyHttp extends ServerTpl {
      */
     protected boolean fusing(ChannelHandlerContext ctx) {
         if (connCount.get() >= getInteger("maxConnection", 100)) { // 最大连接
-            ctx.writeAndFlush(new DefaultHttpResponse(HttpVersion.HTTP_1_1, SERVICE_UNAVAILABLE));
-            ctx.close();
+            // 此时还在编解码器之前, 直接写出响应的字节; ssl 时直接关闭
+            if (sslCtx == null) ctx.writeAndFlush(Unpooled.wrappedBuffer(FUSING_RESPONSE)).addListener(ChannelFutureListener.CLOSE);
+            else ctx.close();
             return true;
         }
         return false;
@@ -0,0 +1,641 @@
+package cn.xnatural.enet.server.http.netty;
+
+import cn.xnatural.enet.event.EL;
+import cn.xnatural.enet.event.EP;
+import cn.xnatural.enet.server.ServerTpl;
+import com.alibaba.fastjson.JSON;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.*;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollSocketChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.pool.*;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.codec.http.*;
+import io.netty.handler.codec.http2.*;
+import io.netty.handler.ssl.*;
+import io.netty.handler.ssl.util.InsecureTrustManagerFactory;
+import io.netty.handler.timeout.IdleStateEvent;
+import io.netty.handler.timeout.IdleStateHandler;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.ScheduledFuture;
+
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.nio.channels.ClosedChannelException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+import static cn.xnatural.enet.common.Utils.isEmpty;
+import static io.netty.handler.ssl.ApplicationProtocolConfig.*;
+
+/**
+ * 用 netty 实现的异步 http 客户端. 用于服务间调用, 代替每次请求都新建连接的 {@link cn.xnatural.enet.common.Utils.Http}
+ * HTTP/1.1: 每个 host(scheme://host:port) 一个连接池, 长连接复用. http2Enabled 时: 每个 host 一个 HTTP/2 连接, 请求是连接上的 stream
+ * (明文用 h2c prior knowledge; https 用 ALPN 协商, 不支持时用 HTTP/1.1)
+ * 返回 {@link CompletableFuture}, 回调在事件循环线程中执行, 不要阻塞. 阻塞的操作用 thenApplyAsync 等方法切换到其它线程池
+ * 例: client.request("GET", "http://localhost:8080/test").header("a", "b").execute().thenAccept(resp -> ...)
+ * 事件: ${name}.get, ${name}.post, ${name}.execute
+ */
+public class NettyHttpClient extends ServerTpl {
+    /**
+     * 服务端推送的 stream 的处理器. 已经禁止推送, 不会被调用
+     */
+    protected static final ChannelHandler                         NO_PUSH = new NoPushHandler();
+    protected final AtomicBoolean                                 running = new AtomicBoolean(false);
+    protected       EventLoopGroup                                group;
+    protected       Bootstrap                                     bootstrap;
+    protected       SslContext                                    sslCtx;
+    /**
+     * ssl 是否支持 ALPN 协商 h2
+     */
+    protected       boolean                                       alpn;
+    /**
+     * HTTP/1.1 连接池: scheme://host:port -> 连接池
+     */
+    protected       AbstractChannelPoolMap<String, FixedChannelPool> pools;
+    /**
+     * HTTP/2 连接: scheme://host:port -> 连接. 连接关闭时移除
+     */
+    protected final Map<String, CompletableFuture<Channel>>       h2Conns = new ConcurrentHashMap<>();
+    /**
+     * 不支持 HTTP/2 的 host
+     */
+    protected final Map<String, Boolean>                          h1Only  = new ConcurrentHashMap<>();
+
+
+    public NettyHttpClient() { super("http-client"); }
+    public NettyHttpClient(String name) { super(name); }
+
+
+    @EL(name = "sys.starting")
+    public void start() {
+        if (!running.compareAndSet(false, true)) {
+            log.warn("{} Client is running", getName()); return;
+        }
+        if (ep == null) ep = new EP();
+        ep.fire(getName() + ".starting");
+        Map<String, Object> m = (Map) ep.fire("env.ns", getName());
+        if (m != null) attrs.putAll(m);
+        boolean epoll = Epoll.isAvailable() && getBoolean("epollEnabled", true);
+        DefaultThreadFactory tf = new DefaultThreadFactory(getName(), true);
+        group = epoll ? new EpollEventLoopGroup(getInteger("threads", 1), tf) : new NioEventLoopGroup(getInteger("threads", 1), tf);
+        bootstrap = new Bootstrap().group(group)
+            .channel(epoll ? EpollSocketChannel.class : NioSocketChannel.class)
+            .option(ChannelOption.ALLOCATOR, PooledByteBufAllocator.DEFAULT)
+            .option(ChannelOption.TCP_NODELAY, true)
+            .option(ChannelOption.SO_KEEPALIVE, true)
+            .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, getInteger("connectTimeout", 3000));
+        initSsl();
+        pools = new AbstractChannelPoolMap<String, FixedChannelPool>() {
+            @Override
+            protected FixedChannelPool newPool(String origin) {
+                URI uri = URI.create(origin);
+                return new FixedChannelPool(
+                    bootstrap.clone().remoteAddress(InetSocketAddress.createUnresolved(uri.getHost(), uri.getPort())),
+                    new AbstractChannelPoolHandler() {
+                        @Override
+                        public void channelCreated(Channel ch) { initHttp1(ch, uri); }
+                    },
+                    ChannelHealthChecker.ACTIVE, FixedChannelPool.AcquireTimeoutAction.FAIL, getLong("acquireTimeout", 5000L),
+                    getInteger("maxConnectionsPerHost", 16), getInteger("maxPendingAcquires", 1024)
+                );
+            }
+        };
+        exposeBean(this, getName());
+        ep.fire(getName() + ".started");
+        log.info("Started {} Client. type: {}, http2: {}", getName(), epoll ? "epoll" : "nio", getBoolean("http2Enabled", false));
+    }
+
+
+    @EL(name = "sys.stopping")
+    public void stop() {
+        log.info("Shutdown '{}' Client", getName());
+        if (pools != null) pools.close();
+        h2Conns.values().forEach(f -> f.thenAccept(Channel::close));
+        h2Conns.clear();
+        if (group != null) group.shutdownGracefully();
+        running.set(false);
+    }
+
+
+    /**
+     * 创建请求
+     * @param method GET, POST, PUT, DELETE ...
+     * @param url
+     * @return
+     */
+    public Request request(String method, String url) {
+        return new Request(method, url).client(this);
+    }
+
+
+    @EL(name = "${name}.get", async = false)
+    public CompletableFuture<Response> get(String url) {
+        return request("GET", url).execute();
+    }
+
+
+    /**
+     * @param url
+     * @param body 请求体. {@link Map} 时按 contentType 转成 json 或者 表单
+     * @param contentType 默认: application/json
+     */
+    @EL(name = "${name}.post", async = false)
+    public CompletableFuture<Response> post(String url, Object body, String contentType) {
+        Request r = request("POST", url);
+        String ct = isEmpty(contentType) ? "application/json" : contentType;
+        if (body instanceof Map && ct.startsWith("application/x-www-form-urlencoded")) ((Map<String, Object>) body).forEach(r::param);
+        else if (body instanceof byte[]) r.body((byte[]) body, ct);
+        else if (body != null) r.body(body instanceof String ? (String) body : JSON.toJSONString(body), ct);
+        return r.execute();
+    }
+
+
+    /**
+     * 执行请求
+     * @param req
+     * @return 响应. 超时: {@link TimeoutException}
+     */
+    @EL(name = "${name}.execute", async = false)
+    public CompletableFuture<Response> execute(Request req) {
+        CompletableFuture<Response> f = new CompletableFuture<>();
+        if (!running.get()) { f.completeExceptionally(new IllegalStateException(getName() + " not running")); return f; }
+        try {
+            URI uri = req.uri();
+            boolean ssl = "https".equalsIgnoreCase(uri.getScheme());
+            String origin = (ssl ? "https" : "http") + "://" + uri.getHost() + ":" + (uri.getPort() > 0 ? uri.getPort() : (ssl ? 443 : 80));
+            long timeout = req.timeout > 0 ? req.timeout : getLong("timeout", 10000L);
+            // 超时从这里开始算: 包括 取连接, 建立连接(HTTP/2 协商), 等待 stream 的时间
+            ScheduledFuture<?> t = group.schedule(() -> {
+                f.completeExceptionally(new TimeoutException("http request timeout: " + timeout + "ms"));
+            }, timeout, TimeUnit.MILLISECONDS);
+            f.whenComplete((r, ex) -> t.cancel(false));
+            FullHttpRequest msg = req.toNetty(uri);
+            if (getBoolean("http2Enabled", false) && (!ssl || alpn) && !h1Only.containsKey(origin)) executeH2(origin, msg, f);
+            else executeH1(origin, msg, f);
+        } catch (Exception ex) {
+            f.completeExceptionally(ex);
+        }
+        return f;
+    }
+
+
+    /**
+     * 从连接池中取一个连接发送请求, 响应完成后放回连接池(不是长连接时关闭)
+     */
+    protected void executeH1(String origin, FullHttpRequest msg, CompletableFuture<Response> f) {
+        FixedChannelPool pool = pools.get(origin);
+        pool.acquire().addListener((Future<Channel> cf) -> {
+            if (!cf.isSuccess()) { msg.release(); f.completeExceptionally(cf.cause()); return; }
+            Channel ch = cf.getNow();
+            ch.eventLoop().execute(() -> { // 请求的状态只在连接的事件循环线程中修改
+                if (f.isDone()) { msg.release(); pool.release(ch); return; } // 取连接时已超时
+                ch.pipeline().get(ResponseHandler.class).begin(ch, f, reuse -> {
+                    if (!reuse) ch.close();
+                    pool.release(ch);
+                });
+                ch.writeAndFlush(msg).addListener(wf -> {
+                    if (!wf.isSuccess()) ch.pipeline().fireExceptionCaught(wf.cause());
+                });
+            });
+        });
+    }
+
+
+    /**
+     * 在 host 的 HTTP/2 连接上新建一个 stream 发送请求
+     */
+    protected void executeH2(String origin, FullHttpRequest msg, CompletableFuture<Response> f) {
+        msg.headers().set(HttpConversionUtil.ExtensionHeaderNames.SCHEME.text(), origin.startsWith("https") ? "https" : "http");
+        h2Conns.computeIfAbsent(origin, this::connectH2).whenComplete((parent, ex) -> {
+            if (ex != null) { // 连接不上 或者 不支持 HTTP/2: 用 HTTP/1.1
+                if (ex instanceof UnsupportedOperationException) executeH1(origin, msg, f);
+                else { msg.release(); f.completeExceptionally(ex); }
+                return;
+            }
+            if (f.isDone()) { msg.release(); return; }
+            StreamLimiter limiter = parent.pipeline().get(StreamLimiter.class);
+            parent.eventLoop().execute(() -> {
+                if (!limiter.acquire(() -> openStream(parent, limiter, msg, f))) {
+                    msg.release(); f.completeExceptionally(new IllegalStateException("Too many outstanding http2 streams: " + origin));
+                }
+            });
+        });
+    }
+
+
+    /**
+     * 新建 stream 发送请求. stream 关闭时归还 {@link StreamLimiter}
+     */
+    protected void openStream(Channel parent, StreamLimiter limiter, FullHttpRequest msg, CompletableFuture<Response> f) {
+        if (f.isDone()) { limiter.release(); msg.release(); return; } // 排队等 stream 时已超时
+        new Http2StreamChannelBootstrap(parent).handler(new ChannelInitializer<Channel>() {
+            @Override
+            protected void initChannel(Channel ch) {
+                ch.pipeline().addLast(new Http2StreamFrameToHttpObjectCodec(false));
+                ch.pipeline().addLast(new HttpContentDecompressor());
+                ch.pipeline().addLast(new HttpObjectAggregator(getInteger("maxContentLength", 10 * 1024 * 1024)));
+                ch.pipeline().addLast(new ResponseHandler());
+            }
+        }).open().addListener((Future<Http2StreamChannel> sf) -> {
+            if (!sf.isSuccess()) { limiter.release(); msg.release(); f.completeExceptionally(sf.cause()); return; }
+            Http2StreamChannel stream = sf.getNow();
+            stream.closeFuture().addListener(c -> limiter.release());
+            stream.pipeline().get(ResponseHandler.class).begin(stream, f, reuse -> stream.close());
+            stream.writeAndFlush(msg).addListener(wf -> {
+                if (!wf.isSuccess()) stream.pipeline().fireExceptionCaught(wf.cause());
+            });
+        });
+    }
+
+
+    /**
+     * 创建 HTTP/2 连接
+     * @return 协商不成 HTTP/2 时 {@link UnsupportedOperationException}
+     */
+    protected CompletableFuture<Channel> connectH2(String origin) {
+        URI uri = URI.create(origin);
+        CompletableFuture<Channel> f = new CompletableFuture<>();
+        boolean ssl = "https".equals(uri.getScheme());
+        Bootstrap b = bootstrap.clone().remoteAddress(InetSocketAddress.createUnresolved(uri.getHost(), uri.getPort()))
+            .handler(new ChannelInitializer<Channel>() {
+                @Override
+                protected void initChannel(Channel ch) {
+                    if (!ssl) { initHttp2(ch.pipeline()); return; }
+                    ch.pipeline().addLast(sslCtx.newHandler(ch.alloc(), uri.getHost(), uri.getPort()));
+                    ch.pipeline().addLast(new ApplicationProtocolNegotiationHandler(ApplicationProtocolNames.HTTP_1_1) {
+                        @Override
+                        protected void configurePipeline(ChannelHandlerContext ctx, String protocol) {
+                            if (ApplicationProtocolNames.HTTP_2.equals(protocol)) {
+                                initHttp2(ctx.pipeline());
+                                f.complete(ctx.channel());
+                            } else {
+                                h1Only.put(origin, true);
+                                f.completeExceptionally(new UnsupportedOperationException(origin + " not support h2"));
+                                ctx.close();
+                            }
+                        }
+
+                        @Override
+                        protected void handshakeFailure(ChannelHandlerContext ctx, Throwable cause) throws Exception {
+                            f.completeExceptionally(cause);
+                            super.handshakeFailure(ctx, cause);
+                        }
+                    });
+                }
+            });
+        b.connect().addListener((ChannelFutureListener) cf -> {
+            if (!cf.isSuccess()) { f.completeExceptionally(cf.cause()); return; }
+            // connect 的回调在 channelActive 之前, 等 http2Codec 发出连接前言(preface)之后再使用
+            if (!ssl) cf.channel().eventLoop().execute(() -> f.complete(cf.channel()));
+            cf.channel().closeFuture().addListener(c -> {
+                h2Conns.remove(origin, f);
+                f.completeExceptionally(new ClosedChannelException()); // 还没协商完就关闭了: 等待连接的请求失败
+            });
+        });
+        // 失败的连接不保留, 下次请求重新连接
+        f.whenComplete((ch, ex) -> { if (ex != null) h2Conns.remove(origin, f); });
+        return f;
+    }
+
+
+    /**
+     * 初始化 HTTP/2 连接
+     */
+    protected void initHttp2(ChannelPipeline p) {
+        p.addLast(http2Codec());
+        p.addLast(new StreamLimiter());
+    }
+
+
+    protected Http2MultiplexCodec http2Codec() {
+        return Http2MultiplexCodecBuilder.forClient(NO_PUSH) // 不接收服务端推送
+            .initialSettings(Http2Settings.defaultSettings().pushEnabled(false))
+            .build();
+    }
+
+
+    /**
+     * 初始化 HTTP/1.1 连接(连接池中的)
+     */
+    protected void initHttp1(Channel ch, URI uri) {
+        if ("https".equals(uri.getScheme())) ch.pipeline().addLast(sslCtx.newHandler(ch.alloc(), uri.getHost(), uri.getPort()));
+        // 空闲的长连接关闭, 连接池取连接时会检查并丢弃
+        ch.pipeline().addLast(new IdleStateHandler(0, 0, getLong("idleTimeout", 60L), TimeUnit.SECONDS) {
+            @Override
+            protected void channelIdle(ChannelHandlerContext ctx, IdleStateEvent evt) { ctx.close(); }
+        });
+        ch.pipeline().addLast(new HttpClientCodec());
+        ch.pipeline().addLast(new HttpContentDecompressor());
+        ch.pipeline().addLast(new HttpObjectAggregator(getInteger("maxContentLength", 10 * 1024 * 1024)));
+        ch.pipeline().addLast(new ResponseHandler());
+    }
+
+
+    /**
+     * 初始化 ssl. sslTrustAll 为 true 时不验证服务端证书(只用于测试)
+     */
+    protected void initSsl() {
+        try {
+            SslContextBuilder b = SslContextBuilder.forClient().sslProvider(OpenSsl.isAlpnSupported() ? SslProvider.OPENSSL : SslProvider.JDK);
+            if (getBoolean("sslTrustAll", false)) b.trustManager(InsecureTrustManagerFactory.INSTANCE);
+            if (getBoolean("http2Enabled", false)) {
+                try {
+                    sslCtx = b.ciphers(Http2SecurityUtil.CIPHERS, SupportedCipherSuiteFilter.INSTANCE)
+                        .applicationProtocolConfig(new ApplicationProtocolConfig(
+                            Protocol.ALPN, SelectorFailureBehavior.NO_ADVERTISE, SelectedListenerFailureBehavior.ACCEPT,
+                            ApplicationProtocolNames.HTTP_2, ApplicationProtocolNames.HTTP_1_1
+                        )).build();
+                    sslCtx.newEngine(PooledByteBufAllocator.DEFAULT); // 当前 jvm 不支持 ALPN 时这里会抛异常
+                    alpn = true;
+                    return;
+                } catch (Exception ex) {
+                    log.info("'{}' ALPN not supported. https use http/1.1. {}", getName(), ex.getMessage());
+                    b.ciphers(null).applicationProtocolConfig(null);
+                }
+            }
+            sslCtx = b.build();
+        } catch (Exception ex) {
+            throw new RuntimeException("'" + getName() + "' init ssl error", ex);
+        }
+    }
+
+
+    @ChannelHandler.Sharable
+    protected static class NoPushHandler extends ChannelInboundHandlerAdapter { }
+
+
+    /**
+     * 限制一个 HTTP/2 连接上同时进行的 stream 个数: 不超过服务端的 MAX_CONCURRENT_STREAMS 和 maxStreamsPerConnection
+     * 超过时排队(最多 maxPendingAcquires 个), stream 关闭时执行下一个. 只在连接的事件循环线程中使用
+     */
+    protected class StreamLimiter extends ChannelInboundHandlerAdapter {
+        protected final Queue<Runnable>       waiting    = new ArrayDeque<>();
+        protected final int                   maxStreams = getInteger("maxStreamsPerConnection", 100);
+        protected final int                   maxWaiting = getInteger("maxPendingAcquires", 1024);
+        protected       ChannelHandlerContext ctx;
+        protected       Http2Connection       connection;
+        protected       int                   active;
+        protected       boolean               closed;
+
+
+        @Override
+        public void handlerAdded(ChannelHandlerContext ctx) {
+            this.ctx = ctx;
+            connection = ctx.pipeline().get(Http2MultiplexCodec.class).connection();
+        }
+
+
+        /**
+         * @param fn 取得 stream 后执行
+         * @return false: 排队的太多
+         */
+        protected boolean acquire(Runnable fn) {
+            if (!closed && active < Math.min(maxStreams, connection.local().maxActiveStreams())) {
+                active++; fn.run();
+                return true;
+            }
+            if (waiting.size() >= maxWaiting) return false;
+            waiting.offer(fn);
+            return true;
+        }
+
+
+        protected void release() {
+            active--;
+            if (closed) return;
+            Runnable fn = waiting.poll();
+            // stream 关闭的回调在 Http2Connection 移除 stream 之前, 下一个 stream 在之后的任务里打开
+            if (fn != null) { active++; ctx.executor().execute(fn); }
+        }
+
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+            closed = true;
+            // 连接已关闭, 排队的请求在打开 stream 时失败
+            for (Runnable fn; (fn = waiting.poll()) != null; ) { active++; fn.run(); }
+            super.channelInactive(ctx);
+        }
+
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+            log.warn(cause, "'{}' http2 connection error. {}", getName(), ctx.channel().remoteAddress());
+            ctx.close();
+        }
+    }
+
+
+    /**
+     * 接收响应. 每个连接(HTTP/2 时每个 stream)一个, 同一时刻只处理一个请求
+     */
+    protected static class ResponseHandler extends SimpleChannelInboundHandler<FullHttpResponse> {
+        protected CompletableFuture<Response> future;
+        /**
+         * 请求结束时回调. 参数: 连接是否可以复用
+         */
+        protected Consumer<Boolean>           onDone;
+
+
+        /**
+         * 开始一个请求. 在连接的事件循环线程中调用
+         * @param ch 连接
+         * @param future 响应. 超时 或者 被取消时结束请求, 连接不再复用
+         * @param onDone 请求结束时回调
+         */
+        protected void begin(Channel ch, CompletableFuture<Response> future, Consumer<Boolean> onDone) {
+            this.future = future; this.onDone = onDone;
+            future.whenComplete((r, ex) -> {
+                if (ex != null) ch.eventLoop().execute(() -> { if (this.future == future) done(false, null, ex); });
+            });
+        }
+
+
+        @Override
+        protected void channelRead0(ChannelHandlerContext ctx, FullHttpResponse msg) {
+            Response r = new Response(msg.status().code(), msg.headers(), ByteBufUtil.getBytes(msg.content()));
+            done(HttpUtil.isKeepAlive(msg), r, null);
+        }
+
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+            done(false, null, new ClosedChannelException());
+            super.channelInactive(ctx);
+        }
+
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+            done(false, null, cause);
+            ctx.close();
+        }
+
+
+        /**
+         * 结束当前请求. 只会执行一次
+         */
+        protected void done(boolean reuse, Response r, Throwable ex) {
+            CompletableFuture<Response> f = future; Consumer<Boolean> fn = onDone;
+            if (f == null) return;
+            future = null; onDone = null;
+            fn.accept(reuse);
+            if (ex == null) f.complete(r);
+            else f.completeExceptionally(ex);
+        }
+    }
+
+
+    /**
+     * http 请求
+     */
+    public static class Request {
+        protected final String              method;
+        protected final String              url;
+        protected final HttpHeaders         headers = new DefaultHttpHeaders();
+        protected       Map<String, Object> params;
+        protected       byte[]              body;
+        /**
+         * 超时(毫秒). 小于等于0: 用客户端的配置 timeout
+         */
+        protected       long                timeout;
+        protected       NettyHttpClient     client;
+
+
+        public Request(String method, String url) {
+            if (isEmpty(url)) throw new IllegalArgumentException("url不能为空");
+            this.method = method.toUpperCase(); this.url = url;
+        }
+
+
+        protected Request client(NettyHttpClient client) { this.client = client; return this; }
+        public Request header(String name, Object value) { headers.add(name, value); return this; }
+        public Request timeout(long ms) { this.timeout = ms; return this; }
+        public Request cookie(String name, Object value) {
+            String c = headers.get(HttpHeaderNames.COOKIE);
+            headers.set(HttpHeaderNames.COOKIE, (c == null ? "" : c + "; ") + name + "=" + value);
+            return this;
+        }
+        /**
+         * 添加参数. GET 等时加在url后面; POST, PUT 时为表单(application/x-www-form-urlencoded)
+         */
+        public Request param(String name, Object value) {
+            if (params == null) params = new LinkedHashMap<>();
+            params.put(name, value);
+            return this;
+        }
+        public Request body(byte[] body, String contentType) {
+            this.body = body;
+            if (contentType != null) headers.set(HttpHeaderNames.CONTENT_TYPE, contentType);
+            return this;
+        }
+        public Request body(String body, String contentType) { return body(body.getBytes(StandardCharsets.UTF_8), contentType); }
+        public Request jsonBody(String json) { return body(json, "application/json;charset=utf-8"); }
+
+
+        /**
+         * 用创建此请求的客户端执行
+         */
+        public CompletableFuture<Response> execute() {
+            if (client == null) throw new IllegalStateException("request not create by client. use NettyHttpClient.execute(request)");
+            return client.execute(this);
+        }
+
+
+        protected URI uri() throws Exception {
+            boolean form = params != null && body == null && ("POST".equals(method) || "PUT".equals(method));
+            if (params == null || form) return URI.create(url);
+            return URI.create(url + (url.contains("?") ? "&" : "?") + encode(params));
+        }
+
+
+        protected FullHttpRequest toNetty(URI uri) throws Exception {
+            String path = (isEmpty(uri.getRawPath()) ? "/" : uri.getRawPath()) + (uri.getRawQuery() == null ? "" : "?" + uri.getRawQuery());
+            byte[] content = body;
+            if (content == null && params != null && ("POST".equals(method) || "PUT".equals(method))) {
+                content = encode(params).getBytes(StandardCharsets.UTF_8);
+                headers.set(HttpHeaderNames.CONTENT_TYPE, HttpHeaderValues.APPLICATION_X_WWW_FORM_URLENCODED);
+            }
+            FullHttpRequest r = new DefaultFullHttpRequest(
+                HttpVersion.HTTP_1_1, HttpMethod.valueOf(method), path, content == null ? Unpooled.EMPTY_BUFFER : Unpooled.wrappedBuffer(content)
+            );
+            HttpHeaders hs = r.headers().add(headers);
+            if (!hs.contains(HttpHeaderNames.HOST)) hs.set(HttpHeaderNames.HOST, uri.getPort() > 0 ? uri.getHost() + ":" + uri.getPort() : uri.getHost());
+            if (!hs.contains(HttpHeaderNames.ACCEPT)) hs.set(HttpHeaderNames.ACCEPT, "*/*");
+            if (!hs.contains(HttpHeaderNames.ACCEPT_ENCODING)) hs.set(HttpHeaderNames.ACCEPT_ENCODING, HttpHeaderValues.GZIP_DEFLATE);
+            HttpUtil.setContentLength(r, r.content().readableBytes());
+            return r;
+        }
+
+
+        protected static String encode(Map<String, Object> params) throws Exception {
+            StringBuilder sb = new StringBuilder();
+            for (Map.Entry<String, Object> e : params.entrySet()) {
+                if (e.getValue() == null) continue;
+                if (sb.length() > 0) sb.append('&');
+                sb.append(URLEncoder.encode(e.getKey(), "utf-8")).append('=').append(URLEncoder.encode(e.getValue().toString(), "utf-8"));
+            }
+            return sb.toString();
+        }
+
+
+        @Override
+        public String toString() {
+            return method + " " + url;
+        }
+    }
+
+
+    /**
+     * http 响应
+     */
+    public static class Response {
+        protected final int         status;
+        protected final HttpHeaders headers;
+        protected final byte[]      body;
+
+
+        public Response(int status, HttpHeaders headers, byte[] body) {
+            this.status = status; this.headers = headers; this.body = body;
+        }
+
+
+        public int getStatus() { return status; }
+        public HttpHeaders getHeaders() { return headers; }
+        public String header(String name) { return headers.get(name); }
+        public byte[] getBody() { return body; }
+
+
+        /**
+         * 响应体字符串. 按 Content-Type 中的 charset 解码, 默认 utf-8
+         */
+        public String bodyAsString() {
+            Charset cs = HttpUtil.getCharset(headers.get(HttpHeaderNames.CONTENT_TYPE), StandardCharsets.UTF_8);
+            return new String(body, cs);
+        }
+
+
+        @Override
+        public String toString() {
+            return "status: " + status + ", body: " + bodyAsString();
+        }
+    }
+}
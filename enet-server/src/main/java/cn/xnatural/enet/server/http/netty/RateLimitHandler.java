@@ -0,0 +1,139 @@
+package cn.xnatural.enet.server.http.netty;
+
+import cn.xnatural.enet.common.RateLimiter;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.handler.codec.http.*;
+import io.netty.handler.codec.http.cookie.Cookie;
+import io.netty.handler.codec.http.cookie.ServerCookieDecoder;
+import io.netty.util.ReferenceCountUtil;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static io.netty.handler.codec.http.HttpHeaderNames.*;
+
+/**
+ * 请求限流: 按 客户端ip, session cookie, 路由前缀 三种令牌桶限流(见 {@link RateLimiter}), 任一种没有令牌时响应 429
+ * 在聚合请求体之前判断, 被拒绝的请求的请求体直接丢弃
+ * 限流器由 {@link NettyHttp} 创建, 所有连接共用; 此处理器每个连接(HTTP/2 时每个 stream)一个
+ */
+public class RateLimitHandler extends ChannelInboundHandlerAdapter {
+    /**
+     * 按 ip, 按 session 的限流器. 为 null 时不限
+     */
+    protected final RateLimiter              ipLimiter, sessionLimiter;
+    /**
+     * 路由前缀 -> 限流器
+     */
+    protected final Map<String, RateLimiter> routeLimiters;
+    /**
+     * 取客户端 ip 的请求头(例: X-Forwarded-For). 为 null 时用连接的地址
+     */
+    protected final String                   ipHeader;
+    protected final String                   cookieName;
+    /**
+     * 是否正在丢弃被拒绝请求的请求体
+     */
+    protected       boolean                  discarding;
+
+
+    public RateLimitHandler(RateLimiter ipLimiter, RateLimiter sessionLimiter, Map<String, RateLimiter> routeLimiters, String ipHeader, String cookieName) {
+        this.ipLimiter = ipLimiter; this.sessionLimiter = sessionLimiter; this.routeLimiters = routeLimiters;
+        this.ipHeader = ipHeader; this.cookieName = cookieName;
+    }
+
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        if (msg instanceof HttpRequest) {
+            HttpRequest req = (HttpRequest) msg;
+            long wait = acquire(ctx, req);
+            if (wait > 0) {
+                reject(ctx, req, wait);
+                discarding = !(msg instanceof LastHttpContent);
+                ReferenceCountUtil.release(msg);
+                return;
+            }
+            discarding = false;
+        } else if (discarding && msg instanceof HttpContent) {
+            if (msg instanceof LastHttpContent) discarding = false;
+            ReferenceCountUtil.release(msg);
+            return;
+        }
+        super.channelRead(ctx, msg);
+    }
+
+
+    /**
+     * 依次检查 路由, session, ip 的令牌
+     * @return 0: 通过; 大于0: 拒绝, 需要等待的纳秒数
+     */
+    protected long acquire(ChannelHandlerContext ctx, HttpRequest req) {
+        if (!routeLimiters.isEmpty()) {
+            String path = req.uri();
+            int i = path.indexOf('?');
+            if (i >= 0) path = path.substring(0, i);
+            String route = null;
+            for (String p : routeLimiters.keySet()) { // 最长前缀匹配
+                if (path.startsWith(p) && (route == null || p.length() > route.length())) route = p;
+            }
+            if (route != null) {
+                long w = routeLimiters.get(route).tryAcquire(route);
+                if (w > 0) return w;
+            }
+        }
+        if (sessionLimiter != null) {
+            String sId = sessionId(req);
+            if (sId != null) {
+                long w = sessionLimiter.tryAcquire(sId);
+                if (w > 0) return w;
+            }
+        }
+        if (ipLimiter != null) return ipLimiter.tryAcquire(clientIp(ctx, req));
+        return 0;
+    }
+
+
+    protected String sessionId(HttpRequest req) {
+        String c = req.headers().get(COOKIE);
+        if (c == null || cookieName == null) return null;
+        for (Cookie cookie : ServerCookieDecoder.LAX.decode(c)) {
+            if (cookieName.equals(cookie.name())) return cookie.value();
+        }
+        return null;
+    }
+
+
+    protected String clientIp(ChannelHandlerContext ctx, HttpRequest req) {
+        if (ipHeader != null) {
+            String v = req.headers().get(ipHeader);
+            if (v != null && !v.isEmpty()) {
+                int i = v.indexOf(',');
+                return (i > 0 ? v.substring(0, i) : v).trim();
+            }
+        }
+        Channel ch = ctx.channel();
+        SocketAddress addr = ch.remoteAddress();
+        if (addr == null && ch.parent() != null) addr = ch.parent().remoteAddress(); // HTTP/2 的 stream
+        return addr instanceof InetSocketAddress ? ((InetSocketAddress) addr).getAddress().getHostAddress() : String.valueOf(addr);
+    }
+
+
+    /**
+     * 响应 429
+     * @param wait 需要等待的纳秒数
+     */
+    protected void reject(ChannelHandlerContext ctx, HttpRequest req, long wait) {
+        FullHttpResponse resp = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.TOO_MANY_REQUESTS);
+        resp.headers().set(RETRY_AFTER, Math.max(1, TimeUnit.NANOSECONDS.toSeconds(wait + 999_999_999L)));
+        HttpUtil.setContentLength(resp, 0);
+        boolean keepAlive = HttpUtil.isKeepAlive(req) && !HttpUtil.is100ContinueExpected(req);
+        if (!keepAlive) resp.headers().set(CONNECTION, HttpHeaderValues.CLOSE);
+        ctx.writeAndFlush(resp).addListener(keepAlive ? ChannelFutureListener.CLOSE_ON_FAILURE : ChannelFutureListener.CLOSE);
+    }
+}
@@ -0,0 +1,74 @@
+package cn.xnatural.enet.server.http.netty;
+
+import io.netty.channel.Channel;
+import io.netty.util.AttributeKey;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 连接暂停读取(autoRead=false)的原因.
+ * 多个地方会暂停同一个连接的读取: 写缓存超过高水位({@link #WRITE_BACKLOG}), 流式请求体缓存满({@link #BODY_BUFFER})
+ * 每个地方只设置/清除自己的原因位, 没有任何原因时才恢复读取. 不能直接 setAutoRead, 否则会覆盖别处的暂停
+ * autoRead 的修改都在连接的事件循环线程中按最新的原因位执行, 并发的暂停/恢复不会乱序
+ */
+public class ReadPause {
+    /**
+     * 写缓存超过高水位(客户端读得慢)
+     */
+    public static final    int                          WRITE_BACKLOG = 1;
+    /**
+     * 流式请求体缓存的字节数超过上限(业务线程读得慢). {@link BodyStream}
+     */
+    public static final    int                          BODY_BUFFER   = 2;
+    protected static final AttributeKey<AtomicInteger> REASONS       = AttributeKey.valueOf("http.readPause");
+
+
+    /**
+     * 因 reason 暂停读取
+     * @param ch
+     * @param reason 原因位
+     */
+    public static void pause(Channel ch, int reason) {
+        AtomicInteger r = reasons(ch);
+        for (int v = r.get(); (v & reason) == 0; v = r.get()) {
+            if (r.compareAndSet(v, v | reason)) { apply(ch, r); return; }
+        }
+    }
+
+
+    /**
+     * 清除 reason. 没有其它原因时恢复读取
+     * @param ch
+     * @param reason 原因位
+     */
+    public static void resume(Channel ch, int reason) {
+        AtomicInteger r = reasons(ch);
+        for (int v = r.get(); (v & reason) != 0; v = r.get()) {
+            if (r.compareAndSet(v, v & ~reason)) { apply(ch, r); return; }
+        }
+    }
+
+
+    /**
+     * 是否因 reason 暂停了读取
+     */
+    public static boolean paused(Channel ch, int reason) {
+        AtomicInteger r = ch.attr(REASONS).get();
+        return r != null && (r.get() & reason) != 0;
+    }
+
+
+    protected static AtomicInteger reasons(Channel ch) {
+        AtomicInteger r = ch.attr(REASONS).get();
+        if (r != null) return r;
+        r = new AtomicInteger();
+        AtomicInteger old = ch.attr(REASONS).setIfAbsent(r);
+        return old == null ? r : old;
+    }
+
+
+    protected static void apply(Channel ch, AtomicInteger r) {
+        if (ch.eventLoop().inEventLoop()) ch.config().setAutoRead(r.get() == 0);
+        else ch.eventLoop().execute(() -> ch.config().setAutoRead(r.get() == 0));
+    }
+}
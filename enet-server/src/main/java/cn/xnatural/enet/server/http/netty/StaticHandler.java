@@ -0,0 +1,529 @@
+package cn.xnatural.enet.server.http.netty;
+
+import cn.xnatural.enet.common.Log;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.*;
+import io.netty.handler.codec.http.*;
+import io.netty.handler.codec.http2.Http2StreamChannel;
+import io.netty.handler.ssl.SslHandler;
+import io.netty.handler.stream.ChunkedFile;
+import io.netty.handler.stream.ChunkedStream;
+import io.netty.util.ReferenceCountUtil;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.URL;
+import java.net.URLConnection;
+import java.net.URLDecoder;
+import java.text.SimpleDateFormat;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.zip.CRC32;
+import java.util.zip.GZIPOutputStream;
+
+import static io.netty.handler.codec.http.HttpHeaderNames.*;
+import static io.netty.handler.codec.http.HttpResponseStatus.*;
+
+/**
+ * 静态资源处理器. 在事件循环线程中直接响应, 不经过业务线程池
+ * 目录中的文件用 {@link DefaultFileRegion}(sendfile 零拷贝) 发送; ssl 和 HTTP/2 时用 {@link ChunkedFile}
+ * classpath 中的小文件缓存在直接内存中(LRU). 缓存命中时在事件循环线程中响应; 没命中(读 jar)和第一次压缩在 {@link #executor(Executor)} 中执行, 不阻塞事件循环
+ * 路径按 / 分段规范化: 去掉空段和 ".", ".." 退到上一段, 超出映射的目录时 404
+ * 支持: ETag/If-None-Match, Last-Modified/If-Modified-Since, Range(单个区间)
+ * 开启 gzip 时: 缓存的资源同时缓存压缩后的内容(只压缩一次); 目录中的文件有同名的 .gz 文件时发送 .gz 文件
+ * 核心方法: {@link #add(String, String)}
+ */
+@ChannelHandler.Sharable
+public class StaticHandler extends ChannelInboundHandlerAdapter {
+    protected static final Log                 log       = Log.of(StaticHandler.class);
+    protected static final String              CLASSPATH = "classpath:";
+    protected static final Map<String, String> TYPES     = new HashMap<>();
+    static {
+        TYPES.put("html", "text/html; charset=utf-8"); TYPES.put("htm", "text/html; charset=utf-8");
+        TYPES.put("js", "application/javascript; charset=utf-8"); TYPES.put("css", "text/css; charset=utf-8");
+        TYPES.put("json", "application/json; charset=utf-8"); TYPES.put("txt", "text/plain; charset=utf-8");
+        TYPES.put("map", "application/json; charset=utf-8"); TYPES.put("xml", "application/xml; charset=utf-8");
+        TYPES.put("svg", "image/svg+xml"); TYPES.put("png", "image/png"); TYPES.put("gif", "image/gif");
+        TYPES.put("jpg", "image/jpeg"); TYPES.put("jpeg", "image/jpeg"); TYPES.put("ico", "image/x-icon");
+        TYPES.put("woff", "font/woff"); TYPES.put("woff2", "font/woff2"); TYPES.put("ttf", "font/ttf");
+        TYPES.put("pdf", "application/pdf");
+    }
+    /**
+     * 路径前缀 -> 位置: 目录 或 classpath:包路径
+     */
+    protected final Map<String, String>        mappings  = new ConcurrentHashMap<>();
+    /**
+     * classpath 资源缓存. 按访问顺序淘汰
+     */
+    protected final LinkedHashMap<String, Entry> cache   = new LinkedHashMap<>(64, 0.75f, true);
+    protected       long                       cacheBytes;
+    /**
+     * 缓存最多字节数, 能缓存的单个文件最大字节数
+     */
+    protected final long                       cacheMaxBytes, cacheMaxFileSize;
+    /**
+     * Cache-Control max-age(秒)
+     */
+    protected final int                        maxAge;
+    /**
+     * gzip 的最小字节数(小于等于0: 不压缩), 压缩的类型前缀
+     */
+    protected       int                        gzipMinSize;
+    protected       String[]                   gzipTypes;
+    /**
+     * 读取 classpath 资源, 压缩 的线程池. 为 null 时在事件循环线程中执行
+     */
+    protected       Executor                   exec;
+
+
+    public StaticHandler(long cacheMaxBytes, long cacheMaxFileSize, int maxAge) {
+        this.cacheMaxBytes = cacheMaxBytes; this.cacheMaxFileSize = cacheMaxFileSize; this.maxAge = maxAge;
+    }
+
+
+    /**
+     * 添加映射
+     * @param prefix 路径前缀. 例: /mview/js/
+     * @param location 目录 或 classpath:包路径. 例: classpath:cn/xnatural/enet/server/mview/ui/js/
+     */
+    public StaticHandler add(String prefix, String location) {
+        if (!prefix.endsWith("/")) prefix = prefix + "/";
+        if (!location.endsWith("/")) location = location + "/";
+        mappings.put(prefix, location);
+        return this;
+    }
+
+
+    /**
+     * 开启 gzip
+     * @param minSize 最小压缩字节数
+     * @param types 压缩的 Content-Type 前缀
+     */
+    public StaticHandler gzip(int minSize, String[] types) {
+        this.gzipMinSize = minSize; this.gzipTypes = types;
+        return this;
+    }
+
+
+    /**
+     * 设置读取 classpath 资源和压缩的线程池
+     */
+    public StaticHandler executor(Executor exec) {
+        this.exec = exec;
+        return this;
+    }
+
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        if (mappings.isEmpty() || !(msg instanceof FullHttpRequest)) { super.channelRead(ctx, msg); return; }
+        FullHttpRequest req = (FullHttpRequest) msg;
+        if (!HttpMethod.GET.equals(req.method()) && !HttpMethod.HEAD.equals(req.method())) { super.channelRead(ctx, msg); return; }
+        String path = req.uri();
+        int i = path.indexOf('?');
+        if (i >= 0) path = path.substring(0, i);
+        // 最长前缀匹配
+        String prefix = null;
+        for (String p : mappings.keySet()) {
+            if (path.startsWith(p) && (prefix == null || p.length() > prefix.length())) prefix = p;
+        }
+        if (prefix == null) { super.channelRead(ctx, msg); return; }
+        try {
+            String rel = normalize(URLDecoder.decode(path.substring(prefix.length()), "utf-8"));
+            if (rel == null) sendStatus(ctx, req, NOT_FOUND);
+            else {
+                String location = mappings.get(prefix);
+                if (!location.startsWith(CLASSPATH)) serveFile(ctx, req, new File(location, rel));
+                else {
+                    String name = location.substring(CLASSPATH.length()) + rel;
+                    if (exec == null) serveClasspath(ctx, req, name);
+                    else if (!serveCached(ctx, req, name)) serveAsync(ctx, req, name);
+                }
+            }
+        } catch (Exception ex) {
+            log.error(ex, "Serve static resource error. uri: {}", req.uri());
+            sendStatus(ctx, req, INTERNAL_SERVER_ERROR);
+        } finally {
+            ReferenceCountUtil.release(msg);
+        }
+    }
+
+
+    /**
+     * 规范化请求的相对路径: 按 / 分段, 去掉空段和 ".", ".." 去掉上一段
+     * @return null: 不合法(超出映射的目录, 包含 \ 或 \0, 为空)
+     */
+    protected static String normalize(String rel) {
+        if (rel.indexOf('\\') >= 0 || rel.indexOf('\0') >= 0) return null;
+        Deque<String> segs = new ArrayDeque<>();
+        for (String seg : rel.split("/")) {
+            if (seg.isEmpty() || ".".equals(seg)) continue;
+            if ("..".equals(seg)) {
+                if (segs.pollLast() == null) return null;
+            } else segs.addLast(seg);
+        }
+        return segs.isEmpty() ? null : String.join("/", segs);
+    }
+
+
+    /**
+     * 在 {@link #exec} 中读取 classpath 资源(和压缩)后响应
+     */
+    protected void serveAsync(ChannelHandlerContext ctx, FullHttpRequest req, String name) {
+        req.retain();
+        try {
+            exec.execute(() -> {
+                try {
+                    serveClasspath(ctx, req, name);
+                } catch (Exception ex) {
+                    log.error(ex, "Serve static resource error. uri: {}", req.uri());
+                    sendStatus(ctx, req, INTERNAL_SERVER_ERROR);
+                } finally {
+                    req.release();
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            req.release();
+            log.warn("Serve static resource rejected. uri: {}. {}", req.uri(), ex.getMessage());
+            sendStatus(ctx, req, SERVICE_UNAVAILABLE);
+        }
+    }
+
+
+    /**
+     * 从缓存中响应. 不读 classpath, 不压缩
+     * @return false: 没有缓存, 或者要发送压缩的内容但还没有压缩过
+     */
+    protected boolean serveCached(ChannelHandlerContext ctx, FullHttpRequest req, String name) throws IOException {
+        Entry e;
+        synchronized (cache) { // 持有引用, 防止发送前被淘汰释放
+            e = cache.get(name);
+            if (e == null || (e.gzip == null && e.content.readableBytes() >= gzipMinSize && gzip(req, e.type))) return false;
+            e.content.retain();
+        }
+        send(ctx, req, name, e);
+        return true;
+    }
+
+
+    /**
+     * 发送目录中的文件
+     */
+    protected void serveFile(ChannelHandlerContext ctx, FullHttpRequest req, File f) throws IOException {
+        if (!f.isFile() || f.isHidden()) { sendStatus(ctx, req, NOT_FOUND); return; }
+        String type = contentType(f.getName()), encoding = null;
+        if (gzip(req, type)) { // 预先压缩好的文件
+            File gz = new File(f.getPath() + ".gz");
+            if (gz.isFile() && gz.lastModified() >= f.lastModified()) { f = gz; encoding = "gzip"; }
+        }
+        long length = f.length(), lastModified = f.lastModified();
+        String etag = "W/\"" + Long.toHexString(lastModified) + "-" + Long.toHexString(length) + "\"";
+        long[] range = range(req, length, etag, lastModified);
+        HttpResponse resp = head(ctx, req, range, length, etag, lastModified, type);
+        if (resp == null) return;
+        if (encoding != null) resp.headers().set(CONTENT_ENCODING, encoding);
+        if (HttpMethod.HEAD.equals(req.method()) || range[1] == 0) { ctx.write(resp); finish(ctx, req); return; }
+        RandomAccessFile raf = new RandomAccessFile(f, "r");
+        ctx.write(resp);
+        if (ctx.pipeline().get(SslHandler.class) == null && !(ctx.channel() instanceof Http2StreamChannel)) {
+            ctx.write(new DefaultFileRegion(raf.getChannel(), range[0], range[1]));
+            finish(ctx, req);
+        } else { // ssl 和 HTTP/2 不能用 sendfile
+            ctx.writeAndFlush(new HttpChunkedInput(new ChunkedFile(raf, range[0], range[1], 8192)))
+                .addListener(keepAlive(req));
+        }
+    }
+
+
+    /**
+     * 发送 classpath 中的资源. 小文件缓存
+     * 没有缓存时读取 classpath, 第一次发送压缩内容时压缩: 会阻塞, 有 {@link #exec} 时在其中执行
+     */
+    protected void serveClasspath(ChannelHandlerContext ctx, FullHttpRequest req, String name) throws IOException {
+        Entry e;
+        synchronized (cache) { // 持有引用, 防止发送前被淘汰释放
+            e = cache.get(name);
+            if (e != null) e.content.retain();
+        }
+        if (e == null) {
+            URL url = getClass().getClassLoader().getResource(name);
+            if (url == null || url.getPath().endsWith("/") || ("file".equals(url.getProtocol()) && new File(url.getPath()).isDirectory())) {
+                sendStatus(ctx, req, NOT_FOUND); return;
+            }
+            URLConnection conn = url.openConnection();
+            long length = conn.getContentLengthLong(), lastModified = conn.getLastModified();
+            if (length > cacheMaxFileSize) { // 大文件不缓存, 流式发送
+                String etag = "W/\"" + Long.toHexString(lastModified) + "-" + Long.toHexString(length) + "\"";
+                long[] range = range(req, length, etag, lastModified);
+                if (range[1] != -1) range = new long[] {0, length}; // 不缓存的不支持 Range
+                HttpResponse resp = head(ctx, req, range, length, etag, lastModified, contentType(name));
+                if (resp == null) return;
+                ctx.write(resp);
+                if (HttpMethod.HEAD.equals(req.method())) { finish(ctx, req); conn.getInputStream().close(); return; }
+                ctx.writeAndFlush(new HttpChunkedInput(new ChunkedStream(conn.getInputStream()))).addListener(keepAlive(req));
+                return;
+            }
+            e = load(name, conn, lastModified);
+        }
+        send(ctx, req, name, e);
+    }
+
+
+    /**
+     * 发送缓存的资源. 需要时压缩(只压缩一次)
+     * @param e 已经 retain 的缓存项. 发送后 release
+     */
+    protected void send(ChannelHandlerContext ctx, FullHttpRequest req, String name, Entry e) throws IOException {
+        ByteBuf gz = null;
+        try {
+            if (e.content.readableBytes() >= gzipMinSize && gzip(req, e.type)) gz = gzip(name, e);
+            ByteBuf body = gz == null ? e.content : gz;
+            String etag = gz == null ? e.etag : e.etag.substring(0, e.etag.length() - 1) + "-gz\"";
+            long[] range = range(req, body.readableBytes(), etag, e.lastModified);
+            HttpResponse resp = head(ctx, req, range, body.readableBytes(), etag, e.lastModified, e.type);
+            if (resp == null) return;
+            if (gz != null) resp.headers().set(CONTENT_ENCODING, "gzip");
+            if (HttpMethod.HEAD.equals(req.method())) { ctx.write(resp); finish(ctx, req); return; }
+            ByteBuf content = body.retainedSlice(body.readerIndex() + (int) range[0], (int) range[1]);
+            FullHttpResponse full = new DefaultFullHttpResponse(resp.protocolVersion(), resp.status(), content, resp.headers(), EmptyHttpHeaders.INSTANCE);
+            ctx.writeAndFlush(full).addListener(keepAlive(req));
+        } finally {
+            e.content.release();
+            if (gz != null) gz.release();
+        }
+    }
+
+
+    /**
+     * 是否发送 gzip 压缩的内容: 开启了 gzip, 可压缩的类型, 客户端支持, 不是 Range 请求
+     */
+    protected boolean gzip(HttpRequest req, String type) {
+        if (gzipMinSize <= 0 || req.headers().contains(RANGE) || !CompressHandler.compressible(type, gzipTypes)) return false;
+        String ae = req.headers().get(ACCEPT_ENCODING);
+        if (ae == null) return false;
+        for (String p : ae.split(",")) {
+            p = p.trim();
+            if (p.startsWith("gzip") || p.startsWith("*")) return !p.replace(" ", "").matches(".*;q=0(\\.0*)?$");
+        }
+        return false;
+    }
+
+
+    /**
+     * 取缓存项压缩后的内容, 没有则压缩并缓存
+     * @return 已经 retain 的压缩内容
+     */
+    protected ByteBuf gzip(String name, Entry e) throws IOException {
+        synchronized (cache) {
+            if (e.gzip != null) return e.gzip.retain();
+        }
+        java.io.ByteArrayOutputStream bo = new java.io.ByteArrayOutputStream(e.content.readableBytes() / 2);
+        try (GZIPOutputStream out = new GZIPOutputStream(bo)) {
+            e.content.getBytes(e.content.readerIndex(), out, e.content.readableBytes());
+        }
+        ByteBuf buf = Unpooled.directBuffer(bo.size()).writeBytes(bo.toByteArray());
+        synchronized (cache) {
+            if (e.gzip != null) { buf.release(); return e.gzip.retain(); }
+            if (cache.get(name) != e) return buf; // 已被淘汰, 不缓存
+            e.gzip = buf; cacheBytes += buf.readableBytes();
+            evict(e);
+            return buf.retain();
+        }
+    }
+
+
+    /**
+     * 读取 classpath 资源到直接内存并缓存
+     * @return 已经 retain 的缓存项
+     */
+    protected Entry load(String name, URLConnection conn, long lastModified) throws IOException {
+        byte[] bs;
+        try (InputStream in = conn.getInputStream()) {
+            java.io.ByteArrayOutputStream bo = new java.io.ByteArrayOutputStream();
+            byte[] b = new byte[8192];
+            for (int n; (n = in.read(b)) != -1; ) bo.write(b, 0, n);
+            bs = bo.toByteArray();
+        }
+        CRC32 crc = new CRC32(); crc.update(bs);
+        ByteBuf buf = Unpooled.directBuffer(bs.length).writeBytes(bs);
+        Entry e = new Entry(buf, "\"" + Long.toHexString(crc.getValue()) + "-" + Integer.toHexString(bs.length) + "\"", lastModified, contentType(name));
+        synchronized (cache) {
+            buf.retain();
+            Entry old = cache.put(name, e);
+            if (old != null) { cacheBytes -= old.size(); old.release(); }
+            cacheBytes += bs.length;
+            evict(e);
+        }
+        return e;
+    }
+
+
+    /**
+     * 超过缓存大小时淘汰最久没有访问的. 调用时持有 cache 锁
+     * @param keep 不淘汰的
+     */
+    protected void evict(Entry keep) {
+        for (Iterator<Entry> it = cache.values().iterator(); cacheBytes > cacheMaxBytes && it.hasNext(); ) {
+            Entry x = it.next();
+            if (x == keep) continue;
+            it.remove(); cacheBytes -= x.size(); x.release();
+        }
+    }
+
+
+    /**
+     * 解析条件请求和 Range
+     * @return [开始位置, 长度]; 长度为 -1: 不满足条件(304), -2: Range 不合法(416)
+     */
+    protected long[] range(HttpRequest req, long length, String etag, long lastModified) {
+        String inm = req.headers().get(IF_NONE_MATCH);
+        if (inm != null) {
+            if (inm.contains(etag) || inm.trim().equals("*")) return new long[] {0, -1};
+        } else {
+            long ims = parseDate(req.headers().get(IF_MODIFIED_SINCE));
+            if (ims > 0 && lastModified > 0 && lastModified / 1000 <= ims / 1000) return new long[] {0, -1};
+        }
+        String r = req.headers().get(RANGE);
+        if (r == null || !r.startsWith("bytes=") || r.contains(",")) return new long[] {0, length}; // 多个区间时返回全部内容
+        String ifRange = req.headers().get(IF_RANGE);
+        if (ifRange != null && !ifRange.equals(etag) && parseDate(ifRange) / 1000 != lastModified / 1000) return new long[] {0, length};
+        try {
+            String spec = r.substring(6).trim();
+            int i = spec.indexOf('-');
+            long start, end;
+            if (i == 0) { // 最后 n 个字节
+                long n = Long.parseLong(spec.substring(1));
+                start = Math.max(0, length - n); end = length - 1;
+            } else {
+                start = Long.parseLong(spec.substring(0, i));
+                end = i == spec.length() - 1 ? length - 1 : Math.min(length - 1, Long.parseLong(spec.substring(i + 1)));
+            }
+            if (start >= length || start > end) return new long[] {0, -2};
+            return new long[] {start, end - start + 1, 1};
+        } catch (NumberFormatException ex) {
+            return new long[] {0, length};
+        }
+    }
+
+
+    /**
+     * 创建响应头
+     * @return null: 已经响应(304/416)
+     */
+    protected HttpResponse head(ChannelHandlerContext ctx, HttpRequest req, long[] range, long length, String etag, long lastModified, String type) {
+        if (range[1] == -1) {
+            HttpResponse resp = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, NOT_MODIFIED);
+            resp.headers().set(ETAG, etag).set(CACHE_CONTROL, "max-age=" + maxAge);
+            HttpUtil.setContentLength(resp, 0);
+            ctx.writeAndFlush(resp).addListener(keepAlive(req));
+            return null;
+        }
+        if (range[1] == -2) {
+            HttpResponse resp = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, REQUESTED_RANGE_NOT_SATISFIABLE);
+            resp.headers().set(CONTENT_RANGE, "bytes */" + length);
+            HttpUtil.setContentLength(resp, 0);
+            ctx.writeAndFlush(resp).addListener(keepAlive(req));
+            return null;
+        }
+        HttpResponse resp = new DefaultHttpResponse(HttpVersion.HTTP_1_1, range.length > 2 ? PARTIAL_CONTENT : OK);
+        if (range.length > 2) resp.headers().set(CONTENT_RANGE, "bytes " + range[0] + "-" + (range[0] + range[1] - 1) + "/" + length);
+        HttpUtil.setContentLength(resp, range[1]);
+        resp.headers().set(CONTENT_TYPE, type).set(ETAG, etag).set(ACCEPT_RANGES, "bytes").set(CACHE_CONTROL, "max-age=" + maxAge);
+        if (gzipMinSize > 0 && CompressHandler.compressible(type, gzipTypes)) resp.headers().set(VARY, ACCEPT_ENCODING);
+        if (lastModified > 0) resp.headers().set(LAST_MODIFIED, formatDate(lastModified));
+        return resp;
+    }
+
+
+    protected void finish(ChannelHandlerContext ctx, HttpRequest req) {
+        ctx.writeAndFlush(LastHttpContent.EMPTY_LAST_CONTENT).addListener(keepAlive(req));
+    }
+
+
+    protected void sendStatus(ChannelHandlerContext ctx, HttpRequest req, HttpResponseStatus status) {
+        FullHttpResponse resp = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, status);
+        HttpUtil.setContentLength(resp, 0);
+        ctx.writeAndFlush(resp).addListener(keepAlive(req));
+    }
+
+
+    /**
+     * 不是长连接时, 发送完关闭
+     */
+    protected ChannelFutureListener keepAlive(HttpRequest req) {
+        return HttpUtil.isKeepAlive(req) ? ChannelFutureListener.CLOSE_ON_FAILURE : ChannelFutureListener.CLOSE;
+    }
+
+
+    protected String contentType(String name) {
+        int i = name.lastIndexOf('.');
+        String t = i < 0 ? null : TYPES.get(name.substring(i + 1).toLowerCase());
+        return t == null ? "application/octet-stream" : t;
+    }
+
+
+    protected static String formatDate(long time) {
+        SimpleDateFormat f = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+        f.setTimeZone(TimeZone.getTimeZone("GMT"));
+        return f.format(new Date(time));
+    }
+
+
+    protected static long parseDate(String s) {
+        if (s == null) return -1;
+        try {
+            SimpleDateFormat f = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+            f.setTimeZone(TimeZone.getTimeZone("GMT"));
+            return f.parse(s).getTime();
+        } catch (Exception ex) {
+            return -1;
+        }
+    }
+
+
+    /**
+     * 释放缓存
+     */
+    public void clear() {
+        synchronized (cache) {
+            cache.values().forEach(Entry::release);
+            cache.clear(); cacheBytes = 0;
+        }
+    }
+
+
+    /**
+     * 缓存的 classpath 资源
+     */
+    protected static class Entry {
+        protected final ByteBuf content;
+        protected final String  etag;
+        protected final long    lastModified;
+        protected final String  type;
+        /**
+         * 压缩后的内容. 第一次需要时创建
+         */
+        protected       ByteBuf gzip;
+
+
+        protected Entry(ByteBuf content, String etag, long lastModified, String type) {
+            this.content = content; this.etag = etag; this.lastModified = lastModified; this.type = type;
+        }
+
+
+        protected long size() {
+            return content.readableBytes() + (gzip == null ? 0 : gzip.readableBytes());
+        }
+
+
+        protected void release() {
+            content.release();
+            if (gzip != null) { gzip.release(); gzip = null; }
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package cn.xnatural.enet.server.http.netty;
+
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.handler.codec.http.*;
+
+import java.nio.channels.ClosedChannelException;
+
+import static io.netty.handler.codec.http.HttpResponseStatus.CONTINUE;
+
+/**
+ * 流式请求体处理器. 放在 {@link HttpObjectAggregator} 之前
+ * 匹配路径前缀的带请求体的请求, 不聚合: 立即向后传递一个不带内容的 {@link StreamingHttpRequest}, 后续收到的内容放入它的 {@link BodyStream}
+ * 其它请求原样传递
+ */
+public class StreamingHandler extends ChannelInboundHandlerAdapter {
+    /**
+     * 需要流式处理的路径前缀
+     */
+    protected final String[]   prefixes;
+    /**
+     * 每个请求最多缓存的字节数
+     */
+    protected final long       highWater;
+    /**
+     * 读超时(毫秒)
+     */
+    protected final long       readTimeout;
+    /**
+     * 当前正在接收的请求体
+     */
+    protected       BodyStream body;
+
+
+    public StreamingHandler(String[] prefixes, long highWater, long readTimeout) {
+        this.prefixes = prefixes; this.highWater = highWater; this.readTimeout = readTimeout;
+    }
+
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        if (body != null && msg instanceof HttpContent) {
+            BodyStream b = body;
+            if (msg instanceof LastHttpContent) body = null;
+            b.offer(((HttpContent) msg).content());
+            if (msg instanceof LastHttpContent) b.end();
+        } else if (msg instanceof HttpRequest && !(msg instanceof FullHttpRequest) && match((HttpRequest) msg)) {
+            HttpRequest req = (HttpRequest) msg;
+            if (HttpUtil.is100ContinueExpected(req)) {
+                ctx.writeAndFlush(new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, CONTINUE));
+                req.headers().remove(HttpHeaderNames.EXPECT);
+            }
+            body = new BodyStream(ctx.channel(), highWater, readTimeout);
+            ctx.fireChannelRead(new StreamingHttpRequest(req, body));
+        } else super.channelRead(ctx, msg);
+    }
+
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        if (body != null) { body.fail(new ClosedChannelException()); body = null; }
+        super.channelInactive(ctx);
+    }
+
+
+    /**
+     * 是否流式处理此请求: 有请求体 并且 匹配路径前缀
+     * @param req
+     * @return
+     */
+    protected boolean match(HttpRequest req) {
+        if (HttpUtil.getContentLength(req, 0L) <= 0 && !HttpUtil.isTransferEncodingChunked(req)) return false;
+        String uri = req.uri();
+        for (String p : prefixes) {
+            if (uri.startsWith(p)) return true;
+        }
+        return false;
+    }
+
+
+    /**
+     * 流式的请求: 本身不带内容, 内容从 {@link #body()} 读取
+     */
+    public static class StreamingHttpRequest extends DefaultFullHttpRequest {
+        protected final BodyStream body;
+
+
+        public StreamingHttpRequest(HttpRequest req, BodyStream body) {
+            super(req.protocolVersion(), req.method(), req.uri(), Unpooled.EMPTY_BUFFER, req.headers(), EmptyHttpHeaders.INSTANCE);
+            this.body = body;
+        }
+
+
+        public BodyStream body() {
+            return body;
+        }
+    }
+}
@@ -9,6 +9,7 @@ import cn.xnatural.enet.event.EP;
 import javax.ws.rs.GET;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
+import javax.ws.rs.QueryParam;
 import javax.ws.rs.core.Response;
 import java.io.IOException;
 import java.io.InputStream;
@@ -66,6 +67,46 @@ public class Controller {
     }
 
 
+    @GET @Path("metrics")
+    public Response metrics() throws Exception {
+        Map<String, Object> model = new HashMap<>();
+        model.put("rootPath", server.getPath());
+        model.put("metrics", "{}");
+        ep.fire("sys.metrics", EC.of(this).sync(), ec -> {
+            if (ec.result != null) model.put("metrics", JSON.toJSONString(ec.result));
+        });
+        model.put("limits", "{}");
+        ep.fire("http.limits", EC.of(this).sync(), ec -> {
+            if (ec.result != null) model.put("limits", JSON.toJSONString(ec.result));
+        });
+        model.put("rateLimits", "{}");
+        ep.fire("http.rateLimits", EC.of(this).sync(), ec -> {
+            if (ec.result != null) model.put("rateLimits", JSON.toJSONString(ec.result));
+        });
+        model.put("sessions", "{}");
+        ep.fire("session.stats", EC.of(this).sync(), ec -> {
+            if (ec.result != null) model.put("sessions", JSON.toJSONString(ec.result));
+        });
+        return Response.ok(render(IOUtils.toString(findViewFile("metrics.html"), "utf-8"), model))
+                .type("text/html; charset=utf-8")
+                .build();
+    }
+
+
+    @GET @Path("traces")
+    public Response traces(@QueryParam("limit") Integer limit) throws Exception {
+        Map<String, Object> model = new HashMap<>();
+        model.put("rootPath", server.getPath());
+        model.put("traces", "[]");
+        ep.fire("sys.traces", EC.of(this).sync().args(limit), ec -> {
+            if (ec.result != null) model.put("traces", JSON.toJSONString(ec.result));
+        });
+        return Response.ok(render(IOUtils.toString(findViewFile("traces.html"), "utf-8"), model))
+                .type("text/html; charset=utf-8")
+                .build();
+    }
+
+
     @GET @Path("js/{fName:.*}")
     public Response js(@PathParam("fName") String fName) {
         InputStream f = findViewFile("js/" + fName);
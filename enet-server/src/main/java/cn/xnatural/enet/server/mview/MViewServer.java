@@ -5,6 +5,7 @@ import cn.xnatural.enet.event.EP;
 import cn.xnatural.enet.server.ServerTpl;
 
 import java.util.Map;
+import java.util.Objects;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
@@ -41,6 +42,18 @@ public class MViewServer extends ServerTpl {
     }
 
 
+    /**
+     * js, css 等静态资源直接由 http 层响应(不经过 resteasy 和线程池). 没有 http 静态资源功能时由 {@link Controller} 响应
+     */
+    @EL(name = "sys.started")
+    protected void addStatic() {
+        String prefix = ("/" + Objects.toString(ep.fire("resteasy.getRootPath"), "/") + "/" + getPath() + "/").replaceAll("/+", "/");
+        String location = "classpath:" + getClass().getPackage().getName().replace('.', '/') + "/ui/";
+        ep.fire("http.addStatic", prefix + "js/", location + "js/");
+        ep.fire("http.addStatic", prefix + "css/", location + "css/");
+    }
+
+
     public String getPath() {
         return path;
     }
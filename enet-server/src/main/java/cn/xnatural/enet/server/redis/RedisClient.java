@@ -0,0 +1,338 @@
+package cn.xnatural.enet.server.redis;
+
+import cn.xnatural.enet.common.Log;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.channel.*;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollSocketChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.codec.redis.*;
+import io.netty.handler.flush.FlushConsolidationHandler;
+import io.netty.util.CharsetUtil;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import io.netty.util.concurrent.ScheduledFuture;
+import redis.clients.jedis.exceptions.JedisDataException;
+
+import java.nio.channels.ClosedChannelException;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 基于 netty 的异步 redis 客户端(RESP 协议)
+ * 少量连接上多路复用: 命令直接写到连接上(pipeline), 不等待前面命令的回复, 回复按顺序对应等待中的命令. 同一轮事件循环中的写合并成一次 flush
+ * 返回 {@link CompletableFuture}, 回调在事件循环线程中执行, 不要阻塞
+ * 连接断开时等待回复的命令都失败, 下一个命令重新连接
+ * 命令回复: 字符串, Long, List; 回复错误时 future 以 {@link JedisDataException} 失败
+ */
+public class RedisClient {
+    protected static final Log              log  = Log.of(RedisClient.class);
+    protected final        String           host;
+    protected final        int              port;
+    protected final        String           password;
+    protected final        int              database;
+    /**
+     * 命令超时(毫秒)
+     */
+    protected final        long             timeout;
+    protected final        EventLoopGroup   group;
+    protected final        Bootstrap        bootstrap;
+    protected final        Conn[]           conns;
+    protected final        AtomicInteger    next = new AtomicInteger();
+
+
+    /**
+     * @param connections 连接数
+     * @param connectTimeout 连接超时(毫秒)
+     * @param timeout 命令超时(毫秒)
+     * @param threads 事件循环线程数
+     */
+    public RedisClient(String host, int port, String password, int database, int connections, int connectTimeout, long timeout, int threads) {
+        this.host = host; this.port = port; this.password = password; this.database = database; this.timeout = timeout;
+        boolean epoll = Epoll.isAvailable();
+        DefaultThreadFactory tf = new DefaultThreadFactory("redis-client", true);
+        group = epoll ? new EpollEventLoopGroup(threads, tf) : new NioEventLoopGroup(threads, tf);
+        bootstrap = new Bootstrap().group(group).remoteAddress(host, port)
+            .channel(epoll ? EpollSocketChannel.class : NioSocketChannel.class)
+            .option(ChannelOption.ALLOCATOR, PooledByteBufAllocator.DEFAULT)
+            .option(ChannelOption.TCP_NODELAY, true)
+            .option(ChannelOption.SO_KEEPALIVE, true)
+            .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, connectTimeout)
+            .handler(new ChannelInitializer<Channel>() {
+                @Override
+                protected void initChannel(Channel ch) {
+                    ChannelPipeline p = ch.pipeline();
+                    p.addLast(new RedisDecoder());
+                    p.addLast(new RedisBulkStringAggregator());
+                    p.addLast(new RedisArrayAggregator());
+                    p.addLast(new RedisEncoder());
+                    p.addLast(new FlushConsolidationHandler(256, true));
+                    p.addLast(new CommandHandler());
+                }
+            });
+        conns = new Conn[Math.max(1, connections)];
+        for (int i = 0; i < conns.length; i++) conns[i] = new Conn();
+    }
+
+
+    /**
+     * 建立所有连接
+     */
+    public RedisClient connect() {
+        for (Conn c : conns) c.connect();
+        return this;
+    }
+
+
+    /**
+     * 发送一个命令
+     * @param cmd 命令和参数. 例: "HGET", "key", "field"
+     */
+    public CompletableFuture<Object> send(String... cmd) {
+        return sendAll(Collections.singletonList(cmd)).get(0);
+    }
+
+
+    /**
+     * 在同一个连接上连续发送多个命令(中间不会插入其它命令)
+     * @return 每个命令的 future
+     */
+    public List<CompletableFuture<Object>> sendAll(List<String[]> cmds) {
+        List<CompletableFuture<Object>> fs = new ArrayList<>(cmds.size());
+        for (int i = 0; i < cmds.size(); i++) fs.add(new CompletableFuture<>());
+        conn().send(cmds, fs);
+        return fs;
+    }
+
+
+    /**
+     * 一次往返执行多个命令
+     * @param transaction 是否用 MULTI/EXEC 包起来
+     * @return 每个命令的结果, 命令出错时为异常对象
+     */
+    public CompletableFuture<List<Object>> pipeline(List<String[]> cmds, boolean transaction) {
+        List<String[]> all = cmds;
+        if (transaction) {
+            all = new ArrayList<>(cmds.size() + 2);
+            all.add(new String[]{"MULTI"}); all.addAll(cmds); all.add(new String[]{"EXEC"});
+        }
+        List<CompletableFuture<Object>> fs = sendAll(all);
+        if (transaction) { // MULTI 和 QUEUED 的回复不要, 取 EXEC 的结果
+            return fs.get(fs.size() - 1).handle((r, ex) -> {
+                if (r instanceof List) return (List<Object>) r;
+                return Collections.nCopies(cmds.size(), ex != null ? unwrap(ex) : new JedisDataException("EXEC aborted"));
+            });
+        }
+        return CompletableFuture.allOf(fs.toArray(new CompletableFuture[0])).handle((v, e) -> {
+            List<Object> r = new ArrayList<>(fs.size());
+            for (CompletableFuture<Object> f : fs) r.add(f.handle((x, ex) -> ex != null ? unwrap(ex) : x).join());
+            return r;
+        });
+    }
+
+
+    public void close() {
+        for (Conn c : conns) {
+            Channel ch = c.ch;
+            if (ch != null) ch.close();
+        }
+        group.shutdownGracefully();
+    }
+
+
+    /**
+     * 轮流使用连接
+     */
+    protected Conn conn() {
+        return conns[(next.getAndIncrement() & Integer.MAX_VALUE) % conns.length];
+    }
+
+
+    protected static Throwable unwrap(Throwable ex) {
+        return ex instanceof java.util.concurrent.CompletionException && ex.getCause() != null ? ex.getCause() : ex;
+    }
+
+
+    protected static final ChannelFutureListener CLOSE_ON_FAILURE = f -> {
+        if (!f.isSuccess()) f.channel().close();
+    };
+
+
+    /**
+     * 一个连接. 断开后下次使用时重新连接
+     */
+    protected class Conn {
+        protected volatile Channel       ch;
+        protected          boolean       connecting;
+        /**
+         * 连接建立前发送的命令: 连接成功后依次写出, 失败时都失败
+         */
+        protected          List<Pending> waiting = new ArrayList<>();
+
+
+        protected void send(List<String[]> cmds, List<CompletableFuture<Object>> fs) {
+            Channel c = ch;
+            if (c == null || !c.isActive()) {
+                synchronized (this) {
+                    c = ch;
+                    if (c == null || !c.isActive()) {
+                        waiting.add(new Pending(cmds, fs));
+                        connect();
+                        return;
+                    }
+                }
+            }
+            write(c, cmds, fs);
+        }
+
+
+        protected void write(Channel c, List<String[]> cmds, List<CompletableFuture<Object>> fs) {
+            c.eventLoop().execute(() -> { // 一个任务中写完: 多个连接共用时, MULTI 和 EXEC 之间不会有其它命令
+                for (int i = 0; i < cmds.size(); i++) c.write(new Command(cmds.get(i), fs.get(i))).addListener(CLOSE_ON_FAILURE);
+                c.flush();
+            });
+        }
+
+
+        protected synchronized void connect() {
+            if (connecting || (ch != null && ch.isActive())) return;
+            connecting = true;
+            bootstrap.connect().addListener((ChannelFutureListener) cf -> {
+                if (cf.isSuccess()) {
+                    Channel nc = cf.channel();
+                    // 认证和选库是连接上的第一批命令
+                    if (password != null) nc.write(new Command(new String[]{"AUTH", password}, initFuture("AUTH")));
+                    if (database != 0) nc.write(new Command(new String[]{"SELECT", String.valueOf(database)}, initFuture("SELECT")));
+                    synchronized (this) { // 先写出等待的命令, 再让后面的命令直接写: 保持发送顺序
+                        for (Pending p : waiting) {
+                            for (int i = 0; i < p.cmds.size(); i++) nc.write(new Command(p.cmds.get(i), p.fs.get(i))).addListener(CLOSE_ON_FAILURE);
+                        }
+                        nc.flush();
+                        ch = nc; connecting = false; waiting = new ArrayList<>();
+                    }
+                } else {
+                    log.error("redis connect error. {}:{}. {}", host, port, cf.cause().getMessage());
+                    List<Pending> ls;
+                    synchronized (this) { connecting = false; ls = waiting; waiting = new ArrayList<>(); }
+                    for (Pending p : ls) p.fs.forEach(f -> f.completeExceptionally(cf.cause()));
+                }
+            });
+        }
+
+
+        protected CompletableFuture<Object> initFuture(String cmd) {
+            CompletableFuture<Object> f = new CompletableFuture<>();
+            f.whenComplete((r, ex) -> { if (ex != null) log.error("redis {} error. {}:{}. {}", cmd, host, port, ex.getMessage()); });
+            return f;
+        }
+    }
+
+
+    protected static class Pending {
+        protected final List<String[]>                  cmds;
+        protected final List<CompletableFuture<Object>> fs;
+
+
+        protected Pending(List<String[]> cmds, List<CompletableFuture<Object>> fs) { this.cmds = cmds; this.fs = fs; }
+    }
+
+
+    /**
+     * 一个命令和它的结果
+     */
+    protected static class Command {
+        protected final String[]                  args;
+        protected final CompletableFuture<Object> future;
+
+
+        protected Command(String[] args, CompletableFuture<Object> future) { this.args = args; this.future = future; }
+
+
+        protected RedisMessage toMessage() {
+            List<RedisMessage> ls = new ArrayList<>(args.length);
+            for (String a : args) ls.add(new FullBulkStringRedisMessage(ByteBufUtil.writeUtf8(PooledByteBufAllocator.DEFAULT, a)));
+            return new ArrayRedisMessage(ls);
+        }
+    }
+
+
+    /**
+     * 发送命令时记录等待回复的 future, 收到回复时按顺序完成. 只在连接的事件循环线程中执行
+     */
+    protected class CommandHandler extends ChannelDuplexHandler {
+        protected final Queue<CompletableFuture<Object>> pending = new ArrayDeque<>();
+
+
+        @Override
+        public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) {
+            Command c = (Command) msg;
+            pending.add(c.future);
+            if (timeout > 0) {
+                ScheduledFuture<?> t = ctx.executor().schedule(() -> {
+                    c.future.completeExceptionally(new TimeoutException("redis command timeout: " + c.args[0] + ", " + timeout + "ms"));
+                }, timeout, TimeUnit.MILLISECONDS);
+                c.future.whenComplete((r, ex) -> t.cancel(false));
+            }
+            ctx.write(c.toMessage(), promise.unvoid()).addListener(f -> {
+                if (!f.isSuccess()) c.future.completeExceptionally(f.cause());
+            });
+        }
+
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) {
+            try {
+                CompletableFuture<Object> f = pending.poll();
+                if (f == null) { log.warn("redis reply without command: {}", msg); return; }
+                if (msg instanceof ErrorRedisMessage) f.completeExceptionally(new JedisDataException(((ErrorRedisMessage) msg).content()));
+                else f.complete(decode((RedisMessage) msg));
+            } finally {
+                ReferenceCountUtil.release(msg);
+            }
+        }
+
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+            ClosedChannelException ex = new ClosedChannelException();
+            for (CompletableFuture<Object> f; (f = pending.poll()) != null; ) f.completeExceptionally(ex);
+            super.channelInactive(ctx);
+        }
+
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+            log.error(cause, "redis connection error. {}:{}", host, port);
+            ctx.close();
+        }
+    }
+
+
+    /**
+     * 回复转换为: String, Long, List; 数组中的错误为 {@link JedisDataException}
+     */
+    protected static Object decode(RedisMessage msg) {
+        if (msg instanceof SimpleStringRedisMessage) return ((SimpleStringRedisMessage) msg).content();
+        if (msg instanceof IntegerRedisMessage) return ((IntegerRedisMessage) msg).value();
+        if (msg instanceof FullBulkStringRedisMessage) {
+            FullBulkStringRedisMessage m = (FullBulkStringRedisMessage) msg;
+            return m.isNull() ? null : m.content().toString(CharsetUtil.UTF_8);
+        }
+        if (msg instanceof ErrorRedisMessage) return new JedisDataException(((ErrorRedisMessage) msg).content());
+        if (msg instanceof ArrayRedisMessage) {
+            ArrayRedisMessage m = (ArrayRedisMessage) msg;
+            if (m.isNull()) return null;
+            List<Object> l = new ArrayList<>(m.children().size());
+            for (RedisMessage c : m.children()) l.add(decode(c));
+            return l;
+        }
+        return msg;
+    }
+}
@@ -1,23 +1,52 @@
 package cn.xnatural.enet.server.redis;
 
+import cn.xnatural.enet.event.EC;
 import cn.xnatural.enet.event.EL;
 import cn.xnatural.enet.event.EP;
 import cn.xnatural.enet.server.ServerTpl;
+import redis.clients.jedis.Client;
 import redis.clients.jedis.Jedis;
 import redis.clients.jedis.JedisPool;
 import redis.clients.jedis.JedisPoolConfig;
+import redis.clients.jedis.JedisPubSub;
 import redis.clients.jedis.Protocol;
+import redis.clients.jedis.exceptions.JedisConnectionException;
+import redis.clients.jedis.exceptions.JedisDataException;
+import redis.clients.jedis.exceptions.JedisException;
+import redis.clients.jedis.util.SafeEncoder;
 
-import java.util.Map;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
 import java.util.function.Function;
 
 /**
  * redis
+ * 写命令(hset, hdel, del, submit)进入微批队列, 很短时间内的命令用一个连接一次 pipeline 执行. 多个命令一次执行: pipeline 事件
+ * client: jedis(默认) 或 netty. netty 时命令(hget, hgetall, hset, hdel, del, submit, pipeline, publish)由 {@link RedisClient} 在少量连接上异步发送, 不占用连接池和线程; exec 和订阅仍用 jedis
  */
 public class RedisServer extends ServerTpl {
-    protected final AtomicBoolean running = new AtomicBoolean(false);
-    protected       JedisPool     pool;
+    protected final    AtomicBoolean                       running     = new AtomicBoolean(false);
+    protected          JedisPool                           pool;
+    /**
+     * client 为 netty 时的异步客户端
+     */
+    protected          RedisClient                         client;
+    /**
+     * 订阅: channel -> 监听器
+     */
+    protected final    Map<String, List<Consumer<String>>> subscribers = new ConcurrentHashMap<>();
+    /**
+     * 订阅用单独的连接和线程(subscribe 会一直阻塞)
+     */
+    protected          Thread                              subThread;
+    protected volatile JedisPubSub                         pubSub;
 
     public RedisServer() { super("redis"); }
     public RedisServer(String name) { super(name); }
@@ -46,6 +75,16 @@ public class RedisServer extends ServerTpl {
             getStr("clientName", null)
         );
 
+        if ("netty".equalsIgnoreCase(getStr("client", "jedis"))) {
+            client = new RedisClient(
+                getStr("host", "localhost"), getInteger("port", 6379), getStr("password", null),
+                getInteger("database", Protocol.DEFAULT_DATABASE), getInteger("connections", 2),
+                getInteger("connectionTimeout", getInteger("timeout", Protocol.DEFAULT_TIMEOUT)),
+                getInteger("soTimeout", getInteger("timeout", Protocol.DEFAULT_TIMEOUT)), getInteger("ioThreads", 1)
+            ).connect();
+            exposeBean(client);
+        }
+
         exposeBean(pool);
         ep.fire(getName() + ".started");
         log.info("Started {} Server", getName());
@@ -55,42 +94,251 @@ public class RedisServer extends ServerTpl {
     @EL(name = "sys.stopping")
     public void stop() {
         log.info("Shutdown '{}' Server", getName());
+        running.set(false);
+        JedisPubSub ps = pubSub;
+        if (ps != null && ps.isSubscribed()) ps.unsubscribe();
+        if (client != null) client.close();
         pool.close();
     }
 
 
-    @EL(name = {"${name}.hset"})
-    protected void hset(String cName, String key, Object value, Integer seconds) {
-        log.trace("{}.hset. cName: {}, key: {}, value: {}, seconds: {}", getName(), cName, key, value, seconds);
-        execute(c -> {
-            c.hset(cName, key, value.toString());
-            c.expire(cName, seconds == null ? getInteger("expire." + cName, 60 * 30) : seconds);
-            return null;
-        });
+    /**
+     * 用一个连接一次往返执行多个命令
+     * @param cmds 命令和参数. 例: new String[]{"HSET", "key", "field", "value"}
+     * @param transaction 是否用 MULTI/EXEC 包起来(原子执行)
+     * @return 每个命令的结果: String, Long, List, 命令出错时为异常对象. 连接出错时为 null
+     */
+    @EL(name = {"${name}.pipeline"}, async = false)
+    public List<Object> pipeline(List<String[]> cmds, Boolean transaction) {
+        if (client != null) return await(client.pipeline(cmds, Boolean.TRUE.equals(transaction)));
+        return (List<Object>) execute(c -> pipelined(c, cmds, Boolean.TRUE.equals(transaction)));
+    }
+
+
+    /**
+     * 提交一个命令到微批队列(见 {@link #batch(List)}), 不等待执行. client 为 netty 时直接发送
+     * 例: ep.fire("redis.submit", "HDEL", "key", "field")
+     * @param cmd 命令和参数
+     * @return 命令的结果. 见 {@link #pipeline(List, Boolean)}
+     */
+    @EL(name = {"${name}.submit"}, async = false)
+    public CompletableFuture<Object> submit(String... cmd) {
+        if (client != null) return client.send(cmd);
+        CompletableFuture<Object> f = new CompletableFuture<>();
+        ep.fire(getName() + ".batch", cmd, f);
+        return f;
+    }
+
+
+    /**
+     * 微批: 攒够 200 个命令或者等待 5ms 后, 用一个连接 pipeline 执行(batchTransaction 为 true 时用 MULTI/EXEC), 再完成每个命令的 future
+     * 事件参数: String[] cmd, CompletableFuture f
+     * @param ecs
+     */
+    @EL(name = {"${name}.batch"}, batch = 200, maxDelayMs = 5, lane = "io")
+    protected void batch(List<EC> ecs) {
+        log.trace("{}.batch. size: {}", getName(), ecs.size());
+        List<String[]> cmds = new ArrayList<>(ecs.size());
+        for (EC ec : ecs) cmds.add((String[]) ec.getArgs()[0]);
+        List<Object> rs;
+        Jedis c = null;
+        try {
+            c = pool.getResource();
+            rs = pipelined(c, cmds, getBoolean("batchTransaction", false));
+        } catch (Throwable t) {
+            log.error(t);
+            for (EC ec : ecs) ((CompletableFuture) ec.getArgs()[1]).completeExceptionally(t);
+            return;
+        } finally {
+            if (c != null) c.close();
+        }
+        for (int i = 0; i < ecs.size(); i++) {
+            CompletableFuture<Object> f = (CompletableFuture) ecs.get(i).getArgs()[1];
+            Object r = rs.get(i);
+            if (r instanceof Throwable) f.completeExceptionally((Throwable) r);
+            else f.complete(r);
+        }
+    }
+
+
+    /**
+     * 发送所有命令后再一起读取结果
+     */
+    protected List<Object> pipelined(Jedis c, List<String[]> cmds, boolean transaction) {
+        Client client = c.getClient();
+        if (transaction) client.sendCommand(Protocol.Command.MULTI);
+        for (String[] cmd : cmds) client.sendCommand(() -> SafeEncoder.encode(cmd[0]), Arrays.copyOfRange(cmd, 1, cmd.length));
+        if (transaction) client.sendCommand(Protocol.Command.EXEC);
+        List<Object> replies = client.getMany(cmds.size() + (transaction ? 2 : 0));
+        if (transaction) { // MULTI 和 QUEUED 的回复不要, 取 EXEC 的结果
+            Object exec = replies.get(replies.size() - 1);
+            if (exec instanceof List) replies = (List<Object>) exec;
+            else replies = Collections.nCopies(cmds.size(), exec instanceof Throwable ? exec : new JedisDataException("EXEC aborted"));
+        }
+        List<Object> r = new ArrayList<>(replies.size());
+        for (Object o : replies) r.add(decode(o));
+        return r;
+    }
+
+
+    protected static Object decode(Object reply) {
+        if (reply instanceof byte[]) return SafeEncoder.encode((byte[]) reply);
+        if (reply instanceof List) {
+            List<Object> l = new ArrayList<>(((List) reply).size());
+            for (Object o : (List) reply) l.add(decode(o));
+            return l;
+        }
+        return reply;
+    }
+
+
+    /**
+     * hset 并设置过期时间. 两个命令都进入微批队列
+     * 事件参数: String cName, String key, Object value, Integer seconds
+     */
+    @EL(name = {"${name}.hset"}, async = false)
+    protected CompletableFuture<Object> hset(String cName, String key, Object value, Integer seconds) {
+        submit("HSET", cName, key, value.toString());
+        return submit("EXPIRE", cName, String.valueOf(seconds == null ? getInteger("expire." + cName, 60 * 30) : seconds));
     }
 
 
     @EL(name = {"${name}.hget"}, async = false)
     protected Object hget(String cName, String key) {
+        if (client != null) return await(client.send("HGET", cName, key));
         return execute(c -> c.hget(cName, key));
     }
 
 
+    /**
+     * @return 不存在时为空 Map; 出错时为 null
+     */
+    @EL(name = {"${name}.hgetall"}, async = false)
+    protected Map<String, String> hgetall(String cName) {
+        if (client != null) {
+            List<String> l = (List<String>) await(client.send("HGETALL", cName));
+            if (l == null) return null;
+            Map<String, String> m = new HashMap<>(l.size());
+            for (int i = 0; i + 1 < l.size(); i += 2) m.put(l.get(i), l.get(i + 1));
+            return m;
+        }
+        return (Map<String, String>) execute(c -> c.hgetAll(cName));
+    }
+
+
+    @EL(name = {"${name}.publish"}, lane = "io")
+    protected void publish(String channel, String message) {
+        if (client != null) { client.send("PUBLISH", channel, message); return; }
+        execute(c -> c.publish(channel, message));
+    }
+
+
+    /**
+     * 订阅 channel. 监听器在订阅线程中执行, 不要阻塞
+     * @param channel
+     * @param listener 参数: 消息
+     */
+    @EL(name = {"${name}.subscribe"}, async = false)
+    protected void subscribe(String channel, Consumer<String> listener) {
+        boolean[] added = {false};
+        subscribers.computeIfAbsent(channel, k -> { added[0] = true; return new CopyOnWriteArrayList<>(); }).add(listener);
+        synchronized (this) {
+            if (subThread == null) {
+                subThread = new Thread(this::subscribeLoop, getName() + "-subscriber");
+                subThread.setDaemon(true); subThread.start();
+            } else if (added[0]) {
+                JedisPubSub ps = pubSub;
+                if (ps != null && ps.isSubscribed()) ps.subscribe(channel);
+            }
+        }
+        log.info("{}.subscribe. channel: {}", getName(), channel);
+    }
+
+
+    /**
+     * 订阅所有 channel, 断开后重连
+     */
+    protected void subscribeLoop() {
+        while (running.get()) {
+            try (Jedis c = new Jedis(getStr("host", "localhost"), getInteger("port", 6379), getInteger("connectionTimeout", getInteger("timeout", Protocol.DEFAULT_TIMEOUT)), 0)) {
+                String password = getStr("password", null);
+                if (password != null) c.auth(password);
+                pubSub = new JedisPubSub() {
+                    @Override
+                    public void onMessage(String channel, String message) {
+                        for (Consumer<String> l : subscribers.getOrDefault(channel, Collections.emptyList())) {
+                            try { l.accept(message); } catch (Throwable t) { log.error(t); }
+                        }
+                    }
+                };
+                c.subscribe(pubSub, subscribers.keySet().toArray(new String[0]));
+            } catch (Throwable t) {
+                if (!running.get()) break;
+                log.warn("{} subscribe error, reconnect after 3 seconds. {}", getName(), t.getMessage());
+                try { Thread.sleep(3000); } catch (InterruptedException e) { break; }
+            }
+        }
+    }
+
+
+    /**
+     * 进入微批队列, 等待执行完成
+     * 命令出错, 连接出错, 超时(soTimeout)都抛出异常: 用 ep.fire 时在 {@link EC#ex} 中
+     * @return 删除的个数
+     */
     @EL(name = {"${name}.hdel"}, async = false)
-    protected void hdel(String cName, String key) {
+    protected Long hdel(String cName, String key) {
         log.debug("{}.hdel. cName: {}, key: {}", getName(), cName, key);
-        execute(c -> c.hdel(cName, key));
+        return (Long) join(submit("HDEL", cName, key));
     }
 
 
-    @EL(name = {"${name}.del"})
-    protected void del(String cName) {
+    /**
+     * 进入微批队列, 不等待执行
+     */
+    @EL(name = {"${name}.del"}, async = false)
+    protected CompletableFuture<Object> del(String cName) {
         log.info("{}.del. cName: {}", getName(), cName);
-        execute(c -> c.del(cName));
+        return submit("DEL", cName);
+    }
+
+
+    /**
+     * 等待命令结果(最多 soTimeout 毫秒)
+     * @return 出错时为 null
+     */
+    protected <T> T await(CompletableFuture<T> f) {
+        try {
+            return join(f);
+        } catch (Exception ex) {
+            log.error(ex);
+        }
+        return null;
+    }
+
+
+    /**
+     * 等待命令结果(最多 soTimeout 毫秒)
+     * @throws JedisDataException 命令出错
+     * @throws JedisConnectionException 连接出错或者超时
+     */
+    protected <T> T join(CompletableFuture<T> f) {
+        int timeout = getInteger("soTimeout", getInteger("timeout", Protocol.DEFAULT_TIMEOUT));
+        try {
+            return f.get(timeout, TimeUnit.MILLISECONDS);
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof JedisException) throw (JedisException) ex.getCause();
+            throw new JedisConnectionException(ex.getCause());
+        } catch (TimeoutException ex) {
+            throw new JedisConnectionException(getName() + " command timeout: " + timeout + "ms", ex);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new JedisConnectionException(ex);
+        }
     }
 
 
-    @EL(name = "${name}.exec")
+    @EL(name = "${name}.exec", lane = "io")
     protected Object execute(Function<Jedis, Object> fn) {
         Jedis c = null;
         try {
@@ -1,14 +1,22 @@
 package cn.xnatural.enet.server.resteasy;
 
+import cn.xnatural.enet.common.AdaptiveLimiter;
 import cn.xnatural.enet.common.Devourer;
 import cn.xnatural.enet.common.Utils;
 import cn.xnatural.enet.event.EL;
 import cn.xnatural.enet.event.EP;
 import cn.xnatural.enet.server.ServerTpl;
+import cn.xnatural.enet.server.http.netty.BodyStream;
+import cn.xnatural.enet.server.http.netty.StreamingHandler.StreamingHttpRequest;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelPipeline;
-import io.netty.handler.codec.http.DefaultHttpResponse;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpUtil;
 import io.netty.handler.codec.http.HttpVersion;
+import io.netty.util.AttributeKey;
 import org.jboss.resteasy.core.InjectorFactoryImpl;
 import org.jboss.resteasy.core.SynchronousDispatcher;
 import org.jboss.resteasy.core.ValueInjector;
@@ -19,19 +27,16 @@ import org.jboss.resteasy.spi.metadata.Parameter;
 import javax.annotation.PostConstruct;
 import javax.annotation.Resource;
 import javax.ws.rs.Path;
+import javax.ws.rs.container.CompletionCallback;
 import javax.ws.rs.core.Cookie;
 import javax.ws.rs.core.NewCookie;
 import javax.ws.rs.ext.Provider;
 import java.io.IOException;
-import java.util.LinkedList;
-import java.util.List;
-import java.util.Map;
-import java.util.UUID;
-import java.util.concurrent.Executor;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.TimeUnit;
+import java.util.*;
+import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
 
 import static cn.xnatural.enet.common.Utils.*;
 import static io.netty.handler.codec.http.HttpResponseStatus.SERVICE_UNAVAILABLE;
@@ -64,13 +69,26 @@ public class NettyResteasy extends ServerTpl {
     protected       ResteasyDeployment deployment = new ResteasyDeployment();
     protected       RequestDispatcher  dispatcher;
     /**
-     * 吞噬器.请求执行控制器
+     * 连接上的请求执行器, 见 {@link #serial(Channel)}
      */
-    protected       Devourer           devourer;
+    protected static final AttributeKey<Devourer> SERIAL = AttributeKey.valueOf("resteasy.serial");
+    /**
+     * 自适应并发限制器. 每个路由(path 前 {@link #limitRouteDepth} 段)一个
+     */
+    protected final Map<String, AdaptiveLimiter> limiters = new ConcurrentHashMap<>();
+    protected       int                limitRouteDepth;
     /**
      * 关联的所有
      */
     protected       List<Object>       sources    = new LinkedList<>();
+    /**
+     * session.access 事件通道
+     */
+    protected       Consumer<String>   sessionAccess;
+    /**
+     * session.get 事件通道
+     */
+    protected       BiFunction<String, String, Object> sessionGet;
 
 
     public NettyResteasy() { super("resteasy"); }
@@ -88,6 +106,10 @@ public class NettyResteasy extends ServerTpl {
         attrs.putAll((Map) ep.fire("env.ns", "mvc", getName()));
 
         enableSession = Utils.toBoolean(ep.fire("env.getAttr", "session.enabled"), false);
+        if (enableSession) {
+            sessionAccess = ep.channel("session.access", Consumer.class);
+            sessionGet = ep.channel("session.get", BiFunction.class);
+        }
         rootPath = getStr("rootPath", "/");
         sessionCookieName = getStr("sessionCookieName", "sId");
         for (String c : getStr("scan", "").split(",")) {
@@ -97,8 +119,7 @@ public class NettyResteasy extends ServerTpl {
                 log.error(e);
             }
         }
-        // 初始化请求执行控制器
-        devourer = new Devourer(getClass().getSimpleName(), exec);
+        limitRouteDepth = getInteger("limitRouteDepth", 1);
         // 初始化resteasy组件
         startDeployment(); initDispatcher(); collect();
 
@@ -111,7 +132,6 @@ public class NettyResteasy extends ServerTpl {
     public void stop() {
         log.debug("Shutdown '{}' Server", getName());
         dispatcher = null; deployment.stop(); deployment = null;
-        devourer.shutdown();
         if (exec instanceof ExecutorService) ((ExecutorService) exec).shutdown();
     }
 
@@ -120,24 +140,152 @@ public class NettyResteasy extends ServerTpl {
     protected void addHandler(ChannelPipeline cp) {
         initDispatcher();
         // 参考 NettyJaxrsServer
-        cp.addLast(new RestEasyHttpRequestDecoder(dispatcher.getDispatcher(), rootPath, HTTP));
+        cp.addLast(new RestEasyHttpRequestDecoder(dispatcher.getDispatcher(), rootPath, HTTP) {
+            @Override
+            protected void decode(ChannelHandlerContext ctx, io.netty.handler.codec.http.HttpRequest request, List<Object> out) throws Exception {
+                super.decode(ctx, request, out);
+                // 流式的请求体: 资源方法直接读 BodyStream
+                if (request instanceof StreamingHttpRequest && !out.isEmpty() && out.get(out.size() - 1) instanceof NettyHttpRequest) {
+                    ((NettyHttpRequest) out.get(out.size() - 1)).setInputStream(((StreamingHttpRequest) request).body());
+                }
+            }
+        });
         cp.addLast(new RestEasyHttpResponseEncoder());
         cp.addLast(new RequestHandler(dispatcher) {
             @Override
             protected void channelRead0(ChannelHandlerContext ctx, Object msg) {
-                int i = devourer.getWaitingCount();
-                // 默认值: 线程池的线程个数的两倍
-                if (i >= getInteger("maxWaitRequest", toInteger(invoke(findMethod(exec.getClass(), "getCorePoolSize"), exec), 10) * 2)) {
-                    if (i > 0 && i % 3 == 0) log.warn("There are currently '{}' requests waiting to be processed.", i);
-                    ctx.writeAndFlush(new DefaultHttpResponse(HttpVersion.HTTP_1_1, SERVICE_UNAVAILABLE));
-                } else {
-                    devourer.offer(() -> exec.execute(() -> process(ctx, msg)));
+                AdaptiveLimiter limiter = limiter(msg);
+                if (limiter != null && !limiter.acquire()) {
+                    long i = limiter.getRejectedCount();
+                    if (i % 100 == 1) log.warn("Request rejected by limiter. {}, rejected: {}", limiter, i);
+                    serviceUnavailable(ctx, msg);
+                    return;
+                }
+                long start = System.nanoTime();
+                Devourer serial = serial(ctx.channel());
+                boolean ok = serial.tryOffer(() -> {
+                    try { process(ctx, msg); }
+                    finally { if (limiter != null) onResponded(ctx, msg, () -> limiter.release(System.nanoTime() - start)); }
+                });
+                if (!ok) {
+                    if (limiter != null) limiter.cancel();
+                    log.warn("Request queue of connection is full. {}", serial);
+                    serviceUnavailable(ctx, msg);
                 }
             }
         });
     }
 
 
+    /**
+     * 取连接的请求执行器: 每个连接一个, 同一个连接的请求按顺序执行.
+     * 慢请求(流式上传, 阻塞调用)只会挡住自己连接上后面的请求, 不影响其它连接
+     * @param ch
+     * @return
+     */
+    protected Devourer serial(Channel ch) {
+        Devourer d = ch.attr(SERIAL).get();
+        if (d != null) return d;
+        d = new Devourer(ch.id().asShortText(), exec)
+            .drain(getInteger("laneMaxBatch", 64), getLong("laneTimeSliceMs", 10L))
+            .queueLimit(getInteger("laneQueueLimit", 256));
+        Devourer old = ch.attr(SERIAL).setIfAbsent(d);
+        return old == null ? d : old;
+    }
+
+
+    /**
+     * 响应 503. 完整的响应(带 Content-Length), HTTP/2 时才会结束 stream
+     * @param ctx
+     * @param msg
+     */
+    protected void serviceUnavailable(ChannelHandlerContext ctx, Object msg) {
+        if (msg instanceof NettyHttpRequest) closeBody((NettyHttpRequest) msg);
+        FullHttpResponse resp = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, SERVICE_UNAVAILABLE);
+        HttpUtil.setContentLength(resp, 0);
+        ctx.writeAndFlush(resp);
+    }
+
+
+    /**
+     * 关闭流式的请求体: 丢弃没有读完的内容, 使连接能继续处理下一个请求
+     * @param req
+     */
+    protected void closeBody(NettyHttpRequest req) {
+        if (req.getInputStream() instanceof BodyStream) ((BodyStream) req.getInputStream()).close();
+    }
+
+
+    /**
+     * 响应写完后执行 fn. 同步请求: {@link #process} 返回时已写完;
+     * 异步(suspended)请求: resume 写出响应后的 {@link CompletionCallback}, 或者连接断开时
+     * @param ctx
+     * @param msg
+     * @param fn 只执行一次
+     */
+    protected void onResponded(ChannelHandlerContext ctx, Object msg, Runnable fn) {
+        if (!(msg instanceof NettyHttpRequest) || !((NettyHttpRequest) msg).getAsyncContext().isSuspended()) {
+            fn.run(); return;
+        }
+        ResteasyAsynchronousResponse ar = ((NettyHttpRequest) msg).getAsyncContext().getAsyncResponse();
+        AtomicBoolean once = new AtomicBoolean(false);
+        ChannelFutureListener closed = f -> { if (once.compareAndSet(false, true)) fn.run(); }; // 断开后不会再有响应
+        CompletionCallback completed = t -> {
+            ctx.channel().closeFuture().removeListener(closed);
+            if (once.compareAndSet(false, true)) fn.run();
+        };
+        ctx.channel().closeFuture().addListener(closed);
+        // resume 先置 done, 写完响应后才调 CompletionCallback.
+        // 在 process 返回前后就已 resume 的: 不再注册(可能正在遍历回调列表), 直接执行, 最多比写完早一点
+        if (!ar.isDone()) ar.register(completed);
+        if (ar.isDone()) completed.onComplete(null);
+    }
+
+
+    /**
+     * 取请求对应路由的限制器
+     * @param msg
+     * @return null: 不限制
+     */
+    protected AdaptiveLimiter limiter(Object msg) {
+        if (!getBoolean("limitEnabled", true)) return null;
+        String route = "/";
+        if (msg instanceof NettyHttpRequest) {
+            String path = ((NettyHttpRequest) msg).getUri().getPath();
+            int from = path.startsWith(rootPath) ? rootPath.length() : 0;
+            while (from < path.length() && path.charAt(from) == '/') from++;
+            int end = from;
+            for (int d = 0; d < limitRouteDepth && end >= 0; d++) {
+                if (d > 0) end++;
+                end = path.indexOf('/', end);
+            }
+            route = "/" + path.substring(from, end < 0 ? path.length() : end);
+        }
+        AdaptiveLimiter l = limiters.get(route);
+        if (l != null) return l;
+        // 路由个数有上限, 防止路径参数导致无限增长
+        if (limiters.size() >= getInteger("limitMaxRoutes", 256)) route = "*";
+        return limiters.computeIfAbsent(route, r ->
+            new AdaptiveLimiter(r, getInteger("limitInitial", 20))
+                .limits(getInteger("limitMin", 4), getInteger("limitMax", 1000))
+                .windowMs(getLong("limitWindowMs", 100L))
+                .queueFactors(getDouble("limitAlpha", 3d), getDouble("limitBeta", 6d))
+        );
+    }
+
+
+    /**
+     * 各路由的并发限制状态
+     * @return
+     */
+    @EL(name = {"${name}.limits", "http.limits"}, async = false)
+    public Map<String, Object> limits() {
+        Map<String, Object> r = new TreeMap<>();
+        limiters.forEach((k, l) -> r.put(k, l.metrics()));
+        return r;
+    }
+
+
     /**
      * 处理请求
      * @param ctx
@@ -161,7 +309,7 @@ public class NettyResteasy extends ServerTpl {
                             )
                         );
                     } else sId = c.getValue();
-                    ep.fire("session.access", sId);
+                    sessionAccess.accept(sId);
                     ((NettyHttpRequest) msg).setAttribute(getSessionCookieName(), sId);
                 }
 
@@ -181,6 +329,7 @@ public class NettyResteasy extends ServerTpl {
                     catch (IOException e) { log.error(e); }
                 }
                 req.releaseContentBuffer();
+                if (!req.getAsyncContext().isSuspended()) closeBody(req);
             }
         }
     }
@@ -254,7 +403,8 @@ public class NettyResteasy extends ServerTpl {
                             public Object inject() { return null; }
                             @Override
                             public Object inject(HttpRequest request, HttpResponse response) {
-                                return ep.fire("session.get", request.getAttribute(getSessionCookieName()), attrAnno.value());
+                                if (sessionGet == null) return null;
+                                return sessionGet.apply((String) request.getAttribute(getSessionCookieName()), attrAnno.value());
                             }
                         };
                     }
@@ -312,6 +462,7 @@ public class NettyResteasy extends ServerTpl {
     }
 
 
+    @EL(name = "resteasy.getRootPath", async = false)
     public String getRootPath() {
         return rootPath;
     }
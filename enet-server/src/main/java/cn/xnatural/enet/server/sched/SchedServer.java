@@ -14,6 +14,7 @@ import java.util.Date;
 import java.util.Map;
 import java.util.Properties;
 import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 
@@ -170,8 +171,12 @@ public class SchedServer extends ServerTpl {
         static Executor exec;
         @Override
         public boolean runInThread(Runnable runnable) {
-            exec.execute(runnable);
-            return true;
+            try {
+                exec.execute(runnable);
+                return true;
+            } catch (RejectedExecutionException ex) {
+                return false;
+            }
         }
 
         @Override
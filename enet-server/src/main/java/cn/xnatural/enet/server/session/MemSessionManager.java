@@ -5,11 +5,14 @@ import cn.xnatural.enet.event.EP;
 import cn.xnatural.enet.server.ServerTpl;
 
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
+ * 内存 session 管理. 分段锁, 定时清理过期的 session, 最多保存 maxSessions 个
+ * 存储(storeType): heap: {@link MemSessionStore}; offHeap: {@link OffHeapSessionStore}(配置 offHeapFile 时重启后 session 还在)
  * @author xiangxb, 2019-02-05
  */
 public class MemSessionManager extends ServerTpl {
@@ -18,7 +21,11 @@ public class MemSessionManager extends ServerTpl {
      * 过期时间(单位: 分钟)
      */
     protected       Integer                  expire;
-    protected       Map<String, SessionData> sMap;
+    protected       SessionStore             store;
+    /**
+     * 定时清理过期 session 的线程
+     */
+    protected       ScheduledExecutorService sweeper;
 
     public MemSessionManager() {
         super("session-mem");
@@ -35,15 +42,41 @@ public class MemSessionManager extends ServerTpl {
         ep.fire(getName() + ".starting");
         attrs.putAll((Map) ep.fire("env.ns", "session", getName()));
         expire = getInteger("expire", 30);
-        sMap = new ConcurrentHashMap<>();
+        long expireMs = TimeUnit.MINUTES.toMillis(expire);
+        if ("offHeap".equalsIgnoreCase(getStr("storeType", "heap"))) {
+            store = new OffHeapSessionStore(
+                expireMs, getInteger("maxSessions", 100000), getInteger("stripes", 16),
+                getLong("offHeapSize", 64 * 1024 * 1024L), getStr("offHeapFile", null)
+            );
+        } else store = new MemSessionStore(expireMs, getInteger("maxSessions", 100000), getInteger("stripes", 16));
+        long interval = getLong("sweepInterval", 10L); int batch = getInteger("sweepBatch", 1000);
+        sweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, getName() + "-sweeper"); t.setDaemon(true); return t;
+        });
+        sweeper.scheduleWithFixedDelay(() -> {
+            try {
+                while (store.sweep(batch) > 0 && running.get()) ; // 每轮每个分段最多清理 batch 个, 直到没有过期的
+            } catch (Throwable t) {
+                log.error(t);
+            }
+        }, interval, interval, TimeUnit.SECONDS);
         ep.fire(getName() + ".started");
-        log.info("Started {} Server", getName());
+        log.info("Started {} Server. store: {}, maxSessions: {}", getName(), store.getClass().getSimpleName(), getInteger("maxSessions", 100000));
+    }
+
+
+    @EL(name = "sys.stopping")
+    public void stop() {
+        log.info("Shutdown '{}' Server", getName());
+        if (sweeper != null) sweeper.shutdown();
+        if (store != null) store.close();
+        running.set(false);
     }
 
 
     @EL(name = {"${name}.set", "session.set"})
     protected void set(String sId, Object key, Object value) {
-        createOrGet(sId).data.put(key, value);
+        store.set(sId, key, value);
     }
 
 
@@ -53,36 +86,22 @@ public class MemSessionManager extends ServerTpl {
      */
     @EL(name = {"${name}.access", "session.access"}, async = false)
     protected void access(String sId) {
-        createOrGet(sId).accessTime = System.currentTimeMillis();
+        store.access(sId);
     }
 
 
-    /**
-     * create session
-     * @param sId
-     * @return {@link SessionData}
-     */
-    protected SessionData createOrGet(String sId) {
-        if (sMap.containsKey(sId)) {
-            SessionData d = sMap.get(sId);
-            // 判断是否已过期
-            if ((System.currentTimeMillis() - d.accessTime) > TimeUnit.MINUTES.toMillis(expire)) sMap.remove(sId);
-            else return d;
-        }
-        synchronized(this) {
-            if (sMap.containsKey(sId)) return sMap.get(sId);
-            SessionData d = new SessionData(); sMap.put(sId, d);
-            d.data = new ConcurrentHashMap<>();
-            d.accessTime = System.currentTimeMillis();
-            log.info("new session '{}' at {}", sId, d.accessTime);
-            return d;
-        }
+    @EL(name = {"${name}.get", "session.get"}, async = false)
+    protected Object get(String sId, Object key) {
+        return store.get(sId, key);
     }
 
 
-    @EL(name = {"${name}.get", "session.get"}, async = false)
-    protected Object get(String sId, Object key) {
-        return createOrGet(sId).data.get(key);
+    /**
+     * session 存储的运行状态. 显示在 mview 的 metrics 页面
+     */
+    @EL(name = {"${name}.stats", "session.stats"}, async = false)
+    public Map<String, Object> stats() {
+        return store == null ? null : store.metrics();
     }
 
 
@@ -96,11 +115,7 @@ public class MemSessionManager extends ServerTpl {
         if (expire == null) throw new NullPointerException("参数为空");
         this.expire = expire;
         attr("expire", expire);
+        if (store != null) store.setExpireMs(TimeUnit.MINUTES.toMillis(expire));
         return this;
     }
-
-
-    protected class SessionData {
-        Long accessTime; Map<Object, Object> data;
-    }
 }
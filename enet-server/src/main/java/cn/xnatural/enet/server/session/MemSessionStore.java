@@ -0,0 +1,224 @@
+package cn.xnatural.enet.server.session;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 内存 session 存储. session 按 sId 的 hash 分到多个分段中, 每个分段一把锁(创建 session 不锁整个存储)
+ * 分段是按最后访问时间排序的 LinkedHashMap(访问时移到表尾): 所有 session 的过期时长相同, 表头就是最先过期的. 即: 同时是过期队列和 LRU
+ * 过期: {@link #sweep(int)} 定时从表头开始移除, 每个分段每次最多移除 batch 个, 不会长时间占用锁
+ * 容量: 超过 maxSessions 时淘汰最久没有访问的 session. 即: 不回传 cookie 的请求(例: 爬虫)占用的内存有上限
+ * 属性个数用计数器维护(增删属性, 移除 session 时更新), {@link #metrics()} 不遍历 session
+ */
+public class MemSessionStore implements SessionStore {
+    /**
+     * 过期时间(毫秒)
+     */
+    protected volatile long      expireMs;
+    protected final    int       maxSessions;
+    protected final    Stripe[]  stripes;
+    protected final    LongAdder hits = new LongAdder(), misses = new LongAdder(), expired = new LongAdder(), evicted = new LongAdder();
+    /**
+     * 所有 session 的属性个数
+     */
+    protected final    LongAdder attrs = new LongAdder();
+
+
+    /**
+     * @param expireMs 过期时间(毫秒)
+     * @param maxSessions 最多保存的 session 个数
+     * @param stripeCount 分段个数. 向上取2的幂
+     */
+    public MemSessionStore(long expireMs, int maxSessions, int stripeCount) {
+        if (maxSessions < 1 || stripeCount < 1) throw new IllegalArgumentException("maxSessions and stripeCount must > 0");
+        this.expireMs = expireMs; this.maxSessions = maxSessions;
+        int n = 1;
+        while (n < stripeCount) n <<= 1;
+        stripes = new Stripe[n];
+        int capacity = Math.max(1, maxSessions / n);
+        for (int i = 0; i < n; i++) stripes[i] = new Stripe(capacity);
+    }
+
+
+    /**
+     * 取 session. 不存在或已过期时创建
+     * @param sId session id
+     * @param touch 是否更新访问时间
+     * @return {@link SessionData}
+     */
+    public SessionData getOrCreate(String sId, boolean touch) {
+        Stripe s = stripe(sId);
+        long now = System.currentTimeMillis();
+        synchronized (s) {
+            SessionData d = s.get(sId);
+            if (d != null && now - d.accessTime > expireMs) { dropped(s.remove(sId)); expired.increment(); d = null; }
+            if (d == null) {
+                d = new SessionData(now); s.put(sId, d);
+                misses.increment();
+                return d;
+            }
+            hits.increment();
+            if (touch) { // 移到表尾
+                d.accessTime = now; s.remove(sId); s.put(sId, d);
+            }
+            return d;
+        }
+    }
+
+
+    @Override
+    public void access(String sId) {
+        getOrCreate(sId, true);
+    }
+
+
+    @Override
+    public Object get(String sId, Object key) {
+        return getOrCreate(sId, false).data.get(key);
+    }
+
+
+    @Override
+    public void set(String sId, Object key, Object value) {
+        SessionData d = getOrCreate(sId, false);
+        if (value == null) {
+            if (d.data.remove(key) != null && !d.removed) attrs.decrement();
+        } else if (d.data.put(key, value) == null && !d.removed) attrs.increment();
+    }
+
+
+    @Override
+    public void remove(String sId) {
+        Stripe s = stripe(sId);
+        synchronized (s) { dropped(s.remove(sId)); }
+    }
+
+
+    /**
+     * session 已从存储中移除: 减去它的属性个数
+     * 先标记再减: 和移除同时进行的 set 看到标记就不再计数, 没看到的属性已经算在 size 里
+     */
+    protected void dropped(SessionData d) {
+        if (d == null) return;
+        d.removed = true;
+        attrs.add(-d.data.size());
+    }
+
+
+    /**
+     * 移除过期的 session
+     * @param batch 每个分段最多移除的个数
+     * @return 移除的个数
+     */
+    @Override
+    public int sweep(int batch) {
+        int n = 0;
+        for (Stripe s : stripes) {
+            long now = System.currentTimeMillis();
+            synchronized (s) {
+                Iterator<SessionData> it = s.values().iterator();
+                for (int i = 0; i < batch && it.hasNext(); i++) {
+                    SessionData d = it.next();
+                    if (now - d.accessTime <= expireMs) break;
+                    it.remove(); dropped(d); n++;
+                }
+            }
+        }
+        expired.add(n);
+        return n;
+    }
+
+
+    protected Stripe stripe(String sId) {
+        int h = sId.hashCode();
+        h ^= (h >>> 16);
+        return stripes[h & (stripes.length - 1)];
+    }
+
+
+    @Override
+    public MemSessionStore setExpireMs(long expireMs) {
+        this.expireMs = expireMs;
+        return this;
+    }
+
+
+    /**
+     * 当前保存的 session 个数
+     */
+    public int size() {
+        int n = 0;
+        for (Stripe s : stripes) {
+            synchronized (s) { n += s.size(); }
+        }
+        return n;
+    }
+
+
+    /**
+     * 运行状态
+     * @return
+     */
+    @Override
+    public Map<String, Object> metrics() {
+        long h = hits.sum(), m = misses.sum();
+        Map<String, Object> r = new LinkedHashMap<>(11);
+        r.put("sessions", size());
+        r.put("maxSessions", maxSessions);
+        r.put("attrs", attrs.sum());
+        r.put("hits", h);
+        r.put("misses", m);
+        r.put("hitRate", h + m == 0 ? 0 : Math.round(h * 10000.0 / (h + m)) / 100.0);
+        r.put("expired", expired.sum());
+        r.put("evicted", evicted.sum());
+        return r;
+    }
+
+
+    /**
+     * 一个分段: 按访问时间排序, 超过容量时淘汰表头
+     */
+    protected class Stripe extends LinkedHashMap<String, SessionData> {
+        protected final int capacity;
+
+
+        protected Stripe(int capacity) {
+            super(16, 0.75f, false);
+            this.capacity = capacity;
+        }
+
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, SessionData> eldest) {
+            if (size() <= capacity) return false;
+            evicted.increment(); dropped(eldest.getValue());
+            return true;
+        }
+    }
+
+
+    public static class SessionData {
+        protected volatile long                accessTime;
+        protected final    Map<Object, Object> data = new ConcurrentHashMap<>();
+        /**
+         * 已从存储中移除(过期, 淘汰, 删除)
+         */
+        protected volatile boolean             removed;
+
+
+        protected SessionData(long accessTime) { this.accessTime = accessTime; }
+
+
+        public long getAccessTime() { return accessTime; }
+
+
+        /**
+         * 只读. 修改用 {@link MemSessionStore#set(String, Object, Object)}: 属性个数要计数
+         */
+        public Map<Object, Object> getData() { return Collections.unmodifiableMap(data); }
+    }
+}
@@ -0,0 +1,622 @@
+package cn.xnatural.enet.server.session;
+
+import cn.xnatural.enet.common.Log;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 堆外 session 存储: session 的属性序列化后保存在堆外内存(direct ByteBuffer)或内存映射文件中, 不占用堆, 不增加 GC 的负担
+ * session 按 sId 的 hash 分到多个分段中, 每个分段一把锁, 一块连续的内存:
+ * 头({@link #HEADER} 字节) | 页的大小等级表(每页1字节) | 索引(开放寻址, 线性探测, 每个槽 {@link #SLOT} 字节) | 数据页(每页 {@link #PAGE} 字节)
+ * 索引的槽: 状态, sId, hash, 访问时间, 属性数据的位置和长度. 删除时把后面的槽前移(backward shift), 不留墓碑
+ * 属性数据: 整个属性 Map 用 jdk 序列化, 按大小等级(64B - 64KB)分配块. 页在第一次使用时分给一个等级(slab), 每个等级一个空闲块栈(堆内)
+ * 页不会一直属于一个等级: 没有页可分时, 把其它等级中没有使用中的块的页拿过来(steal). 还不够时只淘汰能腾出空间的 session, 见 {@link Segment#evictFor(int, byte[])}
+ * 配置了文件时用内存映射文件: 重启后 session 还在(启动时检查文件头, 重建空闲块栈). 分段的布局和配置不一致时清空
+ * 满了时(session 个数 或 数据页): 随机采样淘汰最久没有访问的(近似 LRU). 过期的由 {@link #sweep(int)} 定时清理
+ */
+public class OffHeapSessionStore implements SessionStore {
+    protected static final Log    log       = Log.of(OffHeapSessionStore.class);
+    protected static final int    MAGIC     = 0x454E5353, VERSION = 1;
+    protected static final int    HEADER    = 64;
+    /**
+     * 头: 魔数, 版本, 槽数, 页数, 页大小, session 个数, 已分配的页数
+     */
+    protected static final int    H_MAGIC   = 0, H_VERSION = 4, H_SLOTS = 8, H_PAGES = 12, H_PAGE = 16, H_SIZE = 20, H_USED_PAGES = 24;
+    protected static final int    SLOT      = 96;
+    /**
+     * 槽: 状态(0: 空, 1: 使用中), sId 长度, hash, 访问时间, 数据位置(-1: 没有数据), 数据长度, sId
+     */
+    protected static final int    S_STATE   = 0, S_KLEN = 1, S_HASH = 4, S_TIME = 8, S_OFF = 16, S_LEN = 20, S_KEY = 32;
+    /**
+     * sId 最大字节数. 超过时用 sId 的 md5 代替
+     */
+    protected static final int    KEY_MAX   = SLOT - S_KEY;
+    protected static final int    MIN_CHUNK = 64, CLASSES = 11;
+    protected static final int    PAGE      = MIN_CHUNK << (CLASSES - 1);
+    /**
+     * 淘汰时的采样个数
+     */
+    protected static final int    SAMPLES   = 8;
+    protected static final byte[] EMPTY     = new byte[0];
+
+    /**
+     * 过期时间(毫秒)
+     */
+    protected volatile long       expireMs;
+    protected final    int        maxSessions;
+    protected final    Segment[]  segments;
+    protected final    int        segmentShift;
+    /**
+     * 内存映射文件. 为 null 时用 direct ByteBuffer
+     */
+    protected final    String     file;
+    protected final    LongAdder  hits = new LongAdder(), misses = new LongAdder(), expired = new LongAdder(), evicted = new LongAdder();
+
+
+    /**
+     * @param expireMs 过期时间(毫秒)
+     * @param maxSessions 最多保存的 session 个数
+     * @param segmentCount 分段个数. 向上取2的幂
+     * @param dataSize 属性数据总共可用的字节数
+     * @param file 内存映射文件. 为 null 时不持久化
+     */
+    public OffHeapSessionStore(long expireMs, int maxSessions, int segmentCount, long dataSize, String file) {
+        if (maxSessions < 1 || segmentCount < 1) throw new IllegalArgumentException("maxSessions and segmentCount must > 0");
+        this.expireMs = expireMs; this.maxSessions = maxSessions; this.file = file;
+        int n = 1;
+        while (n < segmentCount) n <<= 1;
+        segmentShift = 32 - Integer.numberOfTrailingZeros(n);
+        int capacity = Math.max(1, maxSessions / n);
+        int slots = 2;
+        while (slots < capacity * 4L / 3 + 1) slots <<= 1; // 负载因子不超过 0.75
+        int pages = (int) Math.max(1, dataSize / n / PAGE);
+        long segBytes = HEADER + align8(pages) + (long) slots * SLOT + (long) pages * PAGE;
+        if (segBytes > Integer.MAX_VALUE) throw new IllegalArgumentException("segment too large: " + segBytes + ". increase segmentCount");
+
+        segments = new Segment[n];
+        if (file == null) {
+            for (int i = 0; i < n; i++) segments[i] = new Segment(ByteBuffer.allocateDirect((int) segBytes), slots, pages, capacity);
+        } else {
+            File f = new File(file);
+            if (f.getParentFile() != null) f.getParentFile().mkdirs();
+            try (RandomAccessFile raf = new RandomAccessFile(f, "rw"); FileChannel ch = raf.getChannel()) {
+                if (raf.length() != segBytes * n) raf.setLength(segBytes * n);
+                for (int i = 0; i < n; i++) { // 关闭文件后映射依然有效
+                    segments[i] = new Segment(ch.map(FileChannel.MapMode.READ_WRITE, i * segBytes, segBytes), slots, pages, capacity);
+                }
+            } catch (IOException ex) {
+                throw new RuntimeException("map session file error: " + file, ex);
+            }
+        }
+        int loaded = 0;
+        for (Segment s : segments) loaded += s.init();
+        if (file != null) log.info("Loaded {} sessions from '{}'", loaded, file);
+    }
+
+
+    @Override
+    public void access(String sId) {
+        byte[] k = key(sId); int h = hash(k); Segment s = segment(h);
+        synchronized (s) {
+            s.buf.putLong(s.slotPos(lookup(s, k, h)) + S_TIME, System.currentTimeMillis());
+        }
+    }
+
+
+    @Override
+    public Object get(String sId, Object key) {
+        byte[] k = key(sId); int h = hash(k); Segment s = segment(h);
+        byte[] data;
+        synchronized (s) { data = s.read(lookup(s, k, h)); }
+        return data.length == 0 ? null : deserialize(data).get(key); // 反序列化在锁外
+    }
+
+
+    @Override
+    public void set(String sId, Object key, Object value) {
+        byte[] k = key(sId); int h = hash(k); Segment s = segment(h);
+        synchronized (s) {
+            byte[] data = s.read(lookup(s, k, h));
+            Map<Object, Object> m = data.length == 0 ? new HashMap<>() : deserialize(data);
+            if (value == null) m.remove(key);
+            else m.put(key, value);
+            s.write(k, h, serialize(m));
+        }
+    }
+
+
+    @Override
+    public void remove(String sId) {
+        byte[] k = key(sId); int h = hash(k); Segment s = segment(h);
+        synchronized (s) {
+            int i = s.find(k, h);
+            if (i >= 0) s.delete(i);
+        }
+    }
+
+
+    /**
+     * 取 session 的槽. 不存在或已过期时创建. 调用时持有分段的锁
+     */
+    protected int lookup(Segment s, byte[] k, int h) {
+        int i = s.find(k, h);
+        long now = System.currentTimeMillis();
+        if (i >= 0 && now - s.buf.getLong(s.slotPos(i) + S_TIME) > expireMs) {
+            s.delete(i); expired.increment(); i = -1;
+        }
+        if (i >= 0) { hits.increment(); return i; }
+        misses.increment();
+        while (s.size >= s.capacity && s.evict(null)) ;
+        return s.insert(k, h, now);
+    }
+
+
+    /**
+     * 移除过期的 session. 每个分段分批扫描: 每批最多 batch 个槽, 批之间释放锁
+     * @param batch 每批扫描的槽数
+     * @return 移除的个数
+     */
+    @Override
+    public int sweep(int batch) {
+        int n = 0;
+        for (Segment s : segments) {
+            for (int start = 0; start < s.slots; start += batch) {
+                synchronized (s) {
+                    long now = System.currentTimeMillis();
+                    for (int i = start, end = Math.min(start + batch, s.slots); i < end; i++) {
+                        int p = s.slotPos(i);
+                        if (s.buf.get(p + S_STATE) == 0 || now - s.buf.getLong(p + S_TIME) <= expireMs) continue;
+                        s.delete(i--); n++; // 后面的槽可能前移到 i, 再检查一次
+                    }
+                }
+            }
+        }
+        expired.add(n);
+        return n;
+    }
+
+
+    @Override
+    public OffHeapSessionStore setExpireMs(long expireMs) {
+        this.expireMs = expireMs;
+        return this;
+    }
+
+
+    /**
+     * 运行状态
+     * @return
+     */
+    @Override
+    public Map<String, Object> metrics() {
+        long sessions = 0, dataBytes = 0, usedPages = 0, emptyPages = 0, pages = 0, offHeap = 0;
+        for (Segment s : segments) {
+            synchronized (s) {
+                sessions += s.size; dataBytes += s.dataBytes; usedPages += s.usedPages; pages += s.pages;
+                emptyPages += s.pages - s.usedPages;
+                for (int i = 0; i < s.usedPages; i++) if (s.pageUsed[i] == 0) emptyPages++;
+                offHeap += s.buf.capacity();
+            }
+        }
+        long h = hits.sum(), m = misses.sum();
+        Map<String, Object> r = new LinkedHashMap<>(16);
+        r.put("sessions", sessions);
+        r.put("maxSessions", maxSessions);
+        r.put("dataBytes", dataBytes);
+        r.put("usedPages", usedPages);
+        r.put("pages", pages);
+        r.put("emptyPages", emptyPages);
+        r.put("offHeapBytes", offHeap);
+        r.put("hits", h);
+        r.put("misses", m);
+        r.put("hitRate", h + m == 0 ? 0 : Math.round(h * 10000.0 / (h + m)) / 100.0);
+        r.put("expired", expired.sum());
+        r.put("evicted", evicted.sum());
+        if (file != null) r.put("file", file);
+        return r;
+    }
+
+
+    /**
+     * 内存映射文件时刷到磁盘
+     */
+    @Override
+    public void close() {
+        if (file == null) return;
+        for (Segment s : segments) {
+            synchronized (s) { ((MappedByteBuffer) s.buf).force(); }
+        }
+        log.info("Saved sessions to '{}'", file);
+    }
+
+
+    protected Segment segment(int hash) {
+        return segments[segmentShift == 32 ? 0 : hash >>> segmentShift];
+    }
+
+
+    /**
+     * sId 转换为保存在槽里的字节. 过长时用 md5
+     */
+    protected static byte[] key(String sId) {
+        byte[] k = sId.getBytes(StandardCharsets.UTF_8);
+        if (k.length <= KEY_MAX) return k;
+        try {
+            return MessageDigest.getInstance("MD5").digest(k);
+        } catch (Exception ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+
+    /**
+     * 高位选分段, 低位选槽
+     */
+    protected static int hash(byte[] k) {
+        int h = 1;
+        for (byte b : k) h = 31 * h + b;
+        h ^= h >>> 16; h *= 0x85ebca6b; h ^= h >>> 13; h *= 0xc2b2ae35; h ^= h >>> 16;
+        return h;
+    }
+
+
+    protected static int align8(int n) { return (n + 7) & ~7; }
+
+
+    protected static byte[] serialize(Map<Object, Object> m) {
+        if (m.isEmpty()) return EMPTY;
+        ByteArrayOutputStream bo = new ByteArrayOutputStream(256);
+        try (ObjectOutputStream oo = new ObjectOutputStream(bo)) {
+            oo.writeObject(m);
+        } catch (NotSerializableException ex) {
+            throw new IllegalArgumentException("session attribute must be Serializable: " + ex.getMessage(), ex);
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        }
+        return bo.toByteArray();
+    }
+
+
+    protected static Map<Object, Object> deserialize(byte[] data) {
+        try (ObjectInputStream oi = new ObjectInputStream(new ByteArrayInputStream(data))) {
+            return (Map<Object, Object>) oi.readObject();
+        } catch (IOException | ClassNotFoundException ex) {
+            throw new RuntimeException("read session data error", ex);
+        }
+    }
+
+
+    /**
+     * 一个分段. 方法都在持有分段的锁时调用
+     */
+    protected class Segment {
+        protected final ByteBuffer buf;
+        protected final int        slots, pages, capacity, indexPos, dataPos;
+        /**
+         * 每个大小等级的空闲块位置
+         */
+        protected final IntStack[] free = new IntStack[CLASSES];
+        /**
+         * 每页使用中的块数. 为0的页可以分给其它等级
+         */
+        protected final int[]      pageUsed;
+        protected       int        size, usedPages;
+        protected       long       dataBytes;
+
+
+        protected Segment(ByteBuffer buf, int slots, int pages, int capacity) {
+            this.buf = buf; this.slots = slots; this.pages = pages; this.capacity = capacity;
+            indexPos = HEADER + align8(pages);
+            dataPos = indexPos + slots * SLOT;
+            pageUsed = new int[pages];
+            for (int c = 0; c < CLASSES; c++) free[c] = new IntStack();
+        }
+
+
+        /**
+         * 文件头和配置一致时加载已有的 session, 否则清空
+         * @return 加载的 session 个数
+         */
+        protected int init() {
+            if (buf.getInt(H_MAGIC) != MAGIC || buf.getInt(H_VERSION) != VERSION || buf.getInt(H_SLOTS) != slots
+                || buf.getInt(H_PAGES) != pages || buf.getInt(H_PAGE) != PAGE) {
+                if (file != null && buf.getInt(H_MAGIC) == MAGIC) log.warn("Session file '{}' layout changed. clear sessions", file);
+                for (int i = 0; i < slots; i++) buf.put(slotPos(i) + S_STATE, (byte) 0);
+                buf.putInt(H_MAGIC, MAGIC).putInt(H_VERSION, VERSION).putInt(H_SLOTS, slots).putInt(H_PAGES, pages).putInt(H_PAGE, PAGE);
+                buf.putInt(H_SIZE, 0).putInt(H_USED_PAGES, 0);
+                return 0;
+            }
+            usedPages = buf.getInt(H_USED_PAGES);
+            Set<Integer> used = new HashSet<>();
+            for (int i = 0; i < slots; i++) {
+                int p = slotPos(i);
+                if (buf.get(p + S_STATE) == 0) continue;
+                size++;
+                int off = buf.getInt(p + S_OFF);
+                if (off >= 0) { used.add(off); pageUsed[page(off)]++; dataBytes += buf.getInt(p + S_LEN); }
+            }
+            buf.putInt(H_SIZE, size);
+            for (int page = 0; page < usedPages; page++) {
+                int chunk = MIN_CHUNK << buf.get(HEADER + page), base = dataPos + page * PAGE;
+                for (int off = base + PAGE - chunk; off >= base; off -= chunk) {
+                    if (!used.contains(off)) free[buf.get(HEADER + page)].push(off);
+                }
+            }
+            return size;
+        }
+
+
+        protected int slotPos(int i) { return indexPos + i * SLOT; }
+
+
+        /**
+         * 块所在的页
+         */
+        protected int page(int off) { return (off - dataPos) / PAGE; }
+
+
+        /**
+         * @return 槽的下标. -1: 不存在
+         */
+        protected int find(byte[] k, int h) {
+            int mask = slots - 1;
+            for (int i = h & mask; ; i = (i + 1) & mask) {
+                int p = slotPos(i);
+                if (buf.get(p + S_STATE) == 0) return -1;
+                if (buf.getInt(p + S_HASH) == h && keyEquals(p, k)) return i;
+            }
+        }
+
+
+        protected boolean keyEquals(int p, byte[] k) {
+            if (buf.get(p + S_KLEN) != k.length) return false;
+            for (int j = 0; j < k.length; j++) {
+                if (buf.get(p + S_KEY + j) != k[j]) return false;
+            }
+            return true;
+        }
+
+
+        /**
+         * 新建 session. 调用前保证 size &lt; capacity(槽不会满)
+         */
+        protected int insert(byte[] k, int h, long now) {
+            int mask = slots - 1, i = h & mask;
+            while (buf.get(slotPos(i) + S_STATE) != 0) i = (i + 1) & mask;
+            int p = slotPos(i);
+            buf.put(p + S_STATE, (byte) 1).put(p + S_KLEN, (byte) k.length).putInt(p + S_HASH, h).putLong(p + S_TIME, now);
+            buf.putInt(p + S_OFF, -1).putInt(p + S_LEN, 0);
+            for (int j = 0; j < k.length; j++) buf.put(p + S_KEY + j, k[j]);
+            buf.putInt(H_SIZE, ++size);
+            return i;
+        }
+
+
+        /**
+         * 删除槽 i, 并把后面探测链上的槽前移填补
+         */
+        protected void delete(int i) {
+            freeData(slotPos(i));
+            int mask = slots - 1, hole = i;
+            for (int j = (i + 1) & mask; ; j = (j + 1) & mask) {
+                int pj = slotPos(j);
+                if (buf.get(pj + S_STATE) == 0) break;
+                int home = buf.getInt(pj + S_HASH) & mask;
+                if (((j - home) & mask) >= ((j - hole) & mask)) { // hole 在 [home, j) 之间: 可以前移
+                    int ph = slotPos(hole);
+                    for (int b = 0; b < SLOT; b += 8) buf.putLong(ph + b, buf.getLong(pj + b));
+                    hole = j;
+                }
+            }
+            buf.put(slotPos(hole) + S_STATE, (byte) 0);
+            buf.putInt(H_SIZE, --size);
+        }
+
+
+        /**
+         * 淘汰一个最久没有访问的 session(随机采样)
+         * @param exclude 不淘汰的 sId
+         * @return false: 没有可淘汰的
+         */
+        protected boolean evict(byte[] exclude) {
+            if (size == 0) return false;
+            ThreadLocalRandom r = ThreadLocalRandom.current();
+            int mask = slots - 1, victim = -1; long oldest = Long.MAX_VALUE;
+            for (int n = 0; n < SAMPLES; n++) {
+                int i = r.nextInt(slots);
+                for (int probe = 0; probe < slots && buf.get(slotPos(i) + S_STATE) == 0; probe++) i = (i + 1) & mask;
+                int p = slotPos(i);
+                if (buf.get(p + S_STATE) == 0 || (exclude != null && keyEquals(p, exclude))) continue;
+                long t = buf.getLong(p + S_TIME);
+                if (t < oldest) { oldest = t; victim = i; }
+            }
+            if (victim < 0) return false;
+            delete(victim); evicted.increment();
+            return true;
+        }
+
+
+        /**
+         * 读取槽 i 的属性数据
+         */
+        protected byte[] read(int i) {
+            int p = slotPos(i), off = buf.getInt(p + S_OFF);
+            if (off < 0) return EMPTY;
+            byte[] data = new byte[buf.getInt(p + S_LEN)];
+            ByteBuffer b = buf.duplicate(); b.position(off);
+            b.get(data);
+            return data;
+        }
+
+
+        /**
+         * 写 session 的属性数据. 同一个大小等级时原地覆盖, 否则重新分配(没有空间时淘汰其它 session)
+         */
+        protected void write(byte[] k, int h, byte[] data) {
+            if (data.length > PAGE) throw new IllegalArgumentException("session data too large: " + data.length + " > " + PAGE);
+            int p = slotPos(find(k, h)), off = buf.getInt(p + S_OFF);
+            if (off >= 0 && data.length > 0 && sizeClass(data.length) == buf.get(HEADER + page(off))) {
+                dataBytes += data.length - buf.getInt(p + S_LEN);
+            } else {
+                freeData(p);
+                if (data.length == 0) return;
+                int c = sizeClass(data.length);
+                while ((off = alloc(c)) < 0) {
+                    if (!evictFor(c, k)) throw new IllegalStateException("off-heap session storage is full");
+                }
+                p = slotPos(find(k, h)); // 淘汰会移动槽
+                buf.putInt(p + S_OFF, off);
+                dataBytes += data.length;
+            }
+            buf.putInt(p + S_LEN, data.length);
+            ByteBuffer b = buf.duplicate(); b.position(off);
+            b.put(data);
+        }
+
+
+        /**
+         * 分配一个块. 等级没有空闲块时分一个空页给它
+         * @return 块的位置. -1: 没有空间
+         */
+        protected int alloc(int c) {
+            IntStack f = free[c];
+            if (f.isEmpty()) {
+                int page = takePage();
+                if (page < 0) return -1;
+                int chunk = MIN_CHUNK << c, base = dataPos + page * PAGE;
+                buf.put(HEADER + page, (byte) c);
+                for (int off = base + PAGE - chunk; off >= base; off -= chunk) f.push(off);
+            }
+            int off = f.pop();
+            pageUsed[page(off)]++;
+            return off;
+        }
+
+
+        /**
+         * 取一个空页: 先用没分配过的, 再从其它等级拿一个没有使用中的块的页(从原等级的空闲块栈中移除它的块)
+         * @return -1: 没有
+         */
+        protected int takePage() {
+            if (usedPages < pages) {
+                buf.putInt(H_USED_PAGES, usedPages + 1);
+                return usedPages++;
+            }
+            for (int page = 0; page < usedPages; page++) {
+                if (pageUsed[page] != 0) continue;
+                int base = dataPos + page * PAGE;
+                free[buf.get(HEADER + page)].removeRange(base, base + PAGE);
+                return page;
+            }
+            return -1;
+        }
+
+
+        /**
+         * 为等级 c 的分配淘汰 session. 只淘汰能腾出空间的:
+         * 有等级 c 的数据时淘汰其中最久没有访问的(采样), 释放一个块;
+         * 否则(等级 c 没有页)清空使用中的块最少的页, 页中的 session 都淘汰, 空页由 {@link #alloc(int)} 分给 c
+         * @param exclude 不淘汰的 sId
+         * @return false: 淘汰也腾不出空间
+         */
+        protected boolean evictFor(int c, byte[] exclude) {
+            int victim = sample(c, exclude);
+            if (victim >= 0) { delete(victim); evicted.increment(); return true; }
+            int page = -1;
+            for (int i = 0; i < usedPages; i++) {
+                if (pageUsed[i] > 0 && (page < 0 || pageUsed[i] < pageUsed[page])) page = i;
+            }
+            if (page < 0) return false;
+            int base = dataPos + page * PAGE, n = 0;
+            for (int i = 0; i < slots && pageUsed[page] > 0; i++) {
+                int p = slotPos(i), off = buf.getInt(p + S_OFF);
+                if (buf.get(p + S_STATE) == 0 || off < base || off >= base + PAGE) continue;
+                if (exclude != null && keyEquals(p, exclude)) return false;
+                delete(i--); n++; // 后面的槽可能前移到 i, 再检查一次
+            }
+            evicted.add(n);
+            return pageUsed[page] == 0;
+        }
+
+
+        /**
+         * 随机采样数据在等级 c 的 session, 取最久没有访问的
+         * @return 槽的下标. -1: 没有
+         */
+        protected int sample(int c, byte[] exclude) {
+            int mask = slots - 1, victim = -1, found = 0; long oldest = Long.MAX_VALUE;
+            for (int n = 0, i = ThreadLocalRandom.current().nextInt(slots); n < slots && found < SAMPLES; n++, i = (i + 1) & mask) {
+                int p = slotPos(i), off = buf.getInt(p + S_OFF);
+                if (buf.get(p + S_STATE) == 0 || off < 0 || buf.get(HEADER + page(off)) != c) continue;
+                if (exclude != null && keyEquals(p, exclude)) continue;
+                found++;
+                long t = buf.getLong(p + S_TIME);
+                if (t < oldest) { oldest = t; victim = i; }
+            }
+            return victim;
+        }
+
+
+        protected void freeData(int p) {
+            int off = buf.getInt(p + S_OFF);
+            if (off < 0) return;
+            free[buf.get(HEADER + page(off))].push(off);
+            pageUsed[page(off)]--;
+            dataBytes -= buf.getInt(p + S_LEN);
+            buf.putInt(p + S_OFF, -1).putInt(p + S_LEN, 0);
+        }
+    }
+
+
+    /**
+     * 能放下 len 字节的最小等级
+     */
+    protected static int sizeClass(int len) {
+        int c = 0;
+        while ((MIN_CHUNK << c) < len) c++;
+        return c;
+    }
+
+
+    protected static class IntStack {
+        protected int[] a = new int[16];
+        protected int   n;
+
+
+        protected void push(int v) {
+            if (n == a.length) a = Arrays.copyOf(a, n * 2);
+            a[n++] = v;
+        }
+
+
+        protected int pop() { return a[--n]; }
+
+
+        /**
+         * 移除 [from, to) 之间的值
+         */
+        protected void removeRange(int from, int to) {
+            int j = 0;
+            for (int i = 0; i < n; i++) {
+                if (a[i] < from || a[i] >= to) a[j++] = a[i];
+            }
+            n = j;
+        }
+
+
+        protected boolean isEmpty() { return n == 0; }
+    }
+}
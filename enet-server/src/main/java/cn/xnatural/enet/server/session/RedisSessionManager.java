@@ -1,17 +1,58 @@
 package cn.xnatural.enet.server.session;
 
+import cn.xnatural.enet.event.EC;
 import cn.xnatural.enet.event.EL;
 import cn.xnatural.enet.event.EP;
 import cn.xnatural.enet.server.ServerTpl;
 
-import java.util.Map;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+import java.util.function.Function;
 
 /**
  * redis session 管理
+ * 本地近缓存(nearCacheEnabled): redis 前面一层本地 LRU(最多 nearCacheSize 个 session), 减少每个请求的 redis 操作
+ * 1. session 的 hash 整个读取(hgetall)后缓存 nearCacheTtl 秒
+ * 2. access: 同一个 session 在 touchInterval 秒内只写一次访问时间(批量 hset)
+ * 3. set: 写 redis, 更新本地缓存, 并通过 redis pub/sub 通知其它节点删除这个 session 的本地缓存
+ *    还没加载的 session 也记下本地写入({@link Near#writes}), 直到 redis 写完成. 期间加载的数据以本地写入为准
+ *    本地写入和失效通知都会增加版本号({@link Near#version}), 之前开始的加载不会覆盖更新的数据
+ *    其它节点在 redis 写完成之前重新读取的话, 最多读到 nearCacheTtl 秒的旧值
  */
 public class RedisSessionManager extends ServerTpl {
-    protected final AtomicBoolean running = new AtomicBoolean(false);
+    protected final AtomicBoolean                          running = new AtomicBoolean(false);
+    /**
+     * ${redisServerName}.hset 事件通道
+     */
+    protected       HSet                                   hset;
+    /**
+     * ${redisServerName}.hget 事件通道
+     */
+    protected       BiFunction<String, String, Object>     hget;
+    /**
+     * ${redisServerName}.hgetall 事件通道
+     */
+    protected       Function<String, Map<String, String>>  hgetall;
+    /**
+     * ${redisServerName}.publish 事件通道
+     */
+    protected       BiConsumer<String, String>             publish;
+    /**
+     * 本地近缓存: sId -> {@link Near}. 为 null 时不用
+     */
+    protected       Map<String, Near>                      near;
+    /**
+     * 本节点标识. 忽略自己发出的失效通知
+     */
+    protected final String                                 nodeId  = UUID.randomUUID().toString().replace("-", "");
+    protected final LongAdder                              hits    = new LongAdder(), loads = new LongAdder(), touches = new LongAdder(),
+                                                           skippedTouches = new LongAdder(), invalidations = new LongAdder();
 
     public RedisSessionManager() { super("session-redis"); }
     public RedisSessionManager(String name) { super(name); }
@@ -27,6 +68,18 @@ public class RedisSessionManager extends ServerTpl {
         attr("expire", 30);
         attr("keyPrefix", "session-");
         attrs.putAll((Map) ep.fire("env.ns", getName()));
+        hset = ep.channel(getRedisServerName() + ".hset", HSet.class);
+        hget = ep.channel(getRedisServerName() + ".hget", BiFunction.class);
+        if (getBoolean("nearCacheEnabled", true)) {
+            hgetall = ep.channel(getRedisServerName() + ".hgetall", Function.class);
+            publish = ep.channel(getRedisServerName() + ".publish", BiConsumer.class);
+            int size = getInteger("nearCacheSize", 10000);
+            near = Collections.synchronizedMap(new LinkedHashMap<String, Near>(64, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Near> eldest) { return size() > size; }
+            });
+            ep.fire(getRedisServerName() + ".subscribe", getInvalidateChannel(), (Consumer<String>) this::onInvalidate);
+        }
 
         ep.fire(getName() + ".started");
         log.info("Started {} Server", getName());
@@ -34,24 +87,120 @@ public class RedisSessionManager extends ServerTpl {
 
 
     /**
-     * access session
-     * @param sId
+     * access session. 批量执行, 同一批次中相同的 sId 只更新一次
+     * 事件参数: String sId
+     * @param ecs
      */
-    @EL(name = {"${name}.access", "session.access"}, async = false)
-    protected void access(String sId) {
-        ep.fire(getRedisServerName() + ".hset", getKeyPrefix() + sId, "access", System.currentTimeMillis(), getExpire() * 60);
+    @EL(name = {"${name}.access", "session.access"}, batch = 200, maxDelayMs = 500, coalesce = 0)
+    protected void access(List<EC> ecs) {
+        long now = System.currentTimeMillis(); int expire = getExpire() * 60;
+        long interval = TimeUnit.SECONDS.toMillis(getInteger("touchInterval", 30));
+        for (EC ec : ecs) {
+            String sId = (String) ec.getArgs()[0];
+            if (near != null) { // 间隔内已经写过访问时间的不再写
+                Near n = near.computeIfAbsent(sId, k -> new Near());
+                if (now - n.touchTime < interval) { skippedTouches.increment(); continue; }
+                n.touchTime = now;
+            }
+            touches.increment();
+            hset.hset(getKeyPrefix() + sId, "access", now, expire);
+        }
     }
 
 
-    @EL(name = {"${name}.set", "session.set"})
+    /**
+     * 同步执行: 返回前本地缓存已更新, 紧接着的 get 能读到
+     */
+    @EL(name = {"${name}.set", "session.set"}, async = false)
     protected void set(String sId, String key, String value) {
-        ep.fire(getRedisServerName() + ".hset", getKeyPrefix() + sId, key, value, getExpire() * 60);
+        if (near == null) { hset.hset(getKeyPrefix() + sId, key, value, getExpire() * 60); return; }
+        Near n = near.computeIfAbsent(sId, k -> new Near());
+        synchronized (n) {
+            n.version++;
+            if (n.data != null) { // 本节点的缓存直接更新
+                Map<String, String> d = new HashMap<>(n.data); d.put(key, value); n.data = d;
+            }
+            Map<String, String> w = n.writes == null ? new HashMap<>(4) : new HashMap<>(n.writes);
+            w.put(key, value); n.writes = w;
+        }
+        Object f = hset.hset(getKeyPrefix() + sId, key, value, getExpire() * 60);
+        if (f instanceof CompletableFuture) ((CompletableFuture<?>) f).whenComplete((r, ex) -> written(n, key, value, ex));
+        else written(n, key, value, null);
+        publish.accept(getInvalidateChannel(), nodeId + " " + sId);
+    }
+
+
+    /**
+     * 本地写入已经写到 redis(或者失败): 之后的加载能读到, 不再需要以本地写入为准
+     * @param n
+     * @param key
+     * @param value
+     * @param ex 写失败的异常
+     */
+    protected void written(Near n, String key, String value, Throwable ex) {
+        synchronized (n) {
+            Map<String, String> w = n.writes;
+            if (w != null && w.get(key) == value) { // 同一个 key 之后又写过的, 等后面的写完成
+                if (w.size() == 1) n.writes = null;
+                else { w = new HashMap<>(w); w.remove(key); n.writes = w; }
+            }
+            if (ex != null) { n.data = null; n.version++; } // 本地缓存和 redis 不一致了, 重新加载
+        }
     }
 
 
     @EL(name = {"${name}.get", "session.get"}, async = false)
     protected Object get(String sId, String key) {
-        return ep.fire(getRedisServerName() + ".hget", getKeyPrefix() + sId, key);
+        if (near == null) return hget.apply(getKeyPrefix() + sId, key);
+        Near n = near.computeIfAbsent(sId, k -> new Near());
+        Map<String, String> d = n.data; long now = System.currentTimeMillis();
+        if (d != null && now - n.loadTime <= TimeUnit.SECONDS.toMillis(getInteger("nearCacheTtl", 10))) {
+            hits.increment(); return d.get(key);
+        }
+        loads.increment();
+        long v;
+        synchronized (n) { v = n.version; }
+        d = hgetall.apply(getKeyPrefix() + sId);
+        if (d == null) return null; // redis 出错, 不缓存
+        synchronized (n) {
+            if (n.writes != null) { d = new HashMap<>(d); d.putAll(n.writes); } // 还没写到 redis 的本地写入
+            if (n.version == v) { n.data = d; n.loadTime = now; } // 加载期间有本地写入或失效通知: 不缓存, 下次重新加载
+        }
+        return d.get(key);
+    }
+
+
+    /**
+     * 其它节点修改了 session: 删除本地缓存
+     * @param msg nodeId sId
+     */
+    protected void onInvalidate(String msg) {
+        int i = msg.indexOf(' ');
+        if (i < 0 || nodeId.equals(msg.substring(0, i))) return;
+        invalidations.increment();
+        Near n = near.get(msg.substring(i + 1));
+        if (n == null) return;
+        synchronized (n) { n.data = null; n.version++; }
+    }
+
+
+    /**
+     * 近缓存的运行状态. 显示在 mview 的 metrics 页面
+     */
+    @EL(name = {"${name}.stats", "session.stats"}, async = false)
+    public Map<String, Object> stats() {
+        if (near == null) return null;
+        long h = hits.sum(), l = loads.sum();
+        Map<String, Object> r = new LinkedHashMap<>(9);
+        r.put("nearSessions", near.size());
+        r.put("nearCacheSize", getInteger("nearCacheSize", 10000));
+        r.put("hits", h);
+        r.put("loads", l);
+        r.put("hitRate", h + l == 0 ? 0 : Math.round(h * 10000.0 / (h + l)) / 100.0);
+        r.put("touches", touches.sum());
+        r.put("skippedTouches", skippedTouches.sum());
+        r.put("invalidations", invalidations.sum());
+        return r;
     }
 
 
@@ -76,4 +225,44 @@ public class RedisSessionManager extends ServerTpl {
     public String getKeyPrefix() {
         return getStr("keyPrefix", "");
     }
+
+
+    /**
+     * 近缓存失效通知的 channel
+     */
+    public String getInvalidateChannel() {
+        return getKeyPrefix() + "invalidate";
+    }
+
+
+    /**
+     * 本地缓存的一个 session. data 为 null 时未加载
+     * version, writes 的修改, 以及加载完成时的 data 替换都在 synchronized(this) 中
+     */
+    protected static class Near {
+        /**
+         * session 的 hash. 为 null 时未加载
+         */
+        protected volatile Map<String, String> data;
+        protected volatile long                loadTime, touchTime;
+        /**
+         * 本地写入 和 失效通知 的次数. 加载开始和完成时不一样的, 加载的数据可能是旧的
+         */
+        protected          long                version;
+        /**
+         * 还没写到 redis 的本地写入. 加载的数据以它为准
+         */
+        protected          Map<String, String> writes;
+    }
+
+
+    /**
+     * redis hset 事件的参数形式
+     */
+    protected interface HSet {
+        /**
+         * @return 写完成的 {@link CompletableFuture}
+         */
+        Object hset(String cName, String key, Object value, Integer seconds);
+    }
 }
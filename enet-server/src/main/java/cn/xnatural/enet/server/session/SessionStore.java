@@ -0,0 +1,51 @@
+package cn.xnatural.enet.server.session;
+
+import java.util.Map;
+
+/**
+ * {@link MemSessionManager} 的 session 存储. 实现: {@link MemSessionStore}(堆内), {@link OffHeapSessionStore}(堆外)
+ * session 不存在或已过期时创建
+ */
+public interface SessionStore {
+
+    /**
+     * 更新 session 的访问时间
+     * @param sId session id
+     */
+    void access(String sId);
+
+
+    Object get(String sId, Object key);
+
+
+    /**
+     * @param value 为 null 时删除属性
+     */
+    void set(String sId, Object key, Object value);
+
+
+    void remove(String sId);
+
+
+    /**
+     * 移除过期的 session
+     * @param batch 每次持有锁时最多处理的个数
+     * @return 移除的个数
+     */
+    int sweep(int batch);
+
+
+    /**
+     * @param expireMs 过期时间(毫秒)
+     */
+    SessionStore setExpireMs(long expireMs);
+
+
+    /**
+     * 运行状态
+     */
+    Map<String, Object> metrics();
+
+
+    default void close() {}
+}
@@ -10,6 +10,7 @@ import cn.xnatural.enet.server.dao.hibernate.Hibernate;
 import cn.xnatural.enet.server.dao.hibernate.Trans;
 import cn.xnatural.enet.server.dao.hibernate.TransWrapper;
 import cn.xnatural.enet.server.http.netty.NettyHttp;
+import cn.xnatural.enet.server.http.netty.NettyHttpClient;
 import cn.xnatural.enet.server.mview.MViewServer;
 import cn.xnatural.enet.server.resteasy.NettyResteasy;
 import cn.xnatural.enet.server.sched.SchedServer;
@@ -45,6 +46,7 @@ public class Launcher extends ServerTpl {
         app.addSource(new NettyHttp().setPort(8080));
         app.addSource(new NettyResteasy().scan(RestTpl.class));
         app.addSource(new MViewServer());
+        app.addSource(new NettyHttpClient());
         app.addSource(new OpenApiDoc());
         app.addSource(new Hibernate().scanEntity(TestEntity.class).scanRepo(TestRepo.class));
         app.addSource(new SchedServer());
@@ -162,6 +162,21 @@ public class RestTpl extends ServerTpl {
     }
 
 
+    /**
+     * 流式上传: 请求体就是文件内容. 配置 http-netty.streamPaths 包含此路径时, 请求体不会聚合在内存中
+     */
+    @POST @Path("upload/{fName}")
+    @Consumes("application/octet-stream")
+    @Produces("application/json")
+    public ApiResp uploadStream(@PathParam("fName") String fName, InputStream body) throws Exception {
+        String[] arr = uploader.extractFileName(fName);
+        String name = UUID.randomUUID().toString().replace("-", "") + (arr[1] == null ? "" : "." + arr[1]);
+        long size = uploader.save(name, body);
+        log.info("upload stream file: {}, size: {}", fName, size);
+        return ok().attr("url", uploader.toFullUrl(name)).attr("size", size);
+    }
+
+
     @POST @Path("form")
     @Consumes("application/x-www-form-urlencoded")
     @Produces("application/json")
@@ -2,20 +2,23 @@ package cn.xnatural.enet.test.service;
 
 import cn.xnatural.enet.event.EL;
 import cn.xnatural.enet.server.ServerTpl;
+import cn.xnatural.enet.server.http.netty.BodyStream;
 import cn.xnatural.enet.test.common.Async;
 import cn.xnatural.enet.test.common.Monitor;
 import cn.xnatural.enet.test.rest.FileData;
-import org.apache.commons.io.IOUtils;
 
 import java.io.File;
-import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.net.MalformedURLException;
 import java.net.URI;
 import java.net.URL;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -23,6 +26,9 @@ import java.util.concurrent.Future;
 import java.util.stream.Collectors;
 
 import static cn.xnatural.enet.common.Utils.isEmpty;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
 import static java.util.Collections.emptyList;
 
 /**
@@ -59,6 +65,16 @@ public class FileUploader extends ServerTpl {
     }
 
 
+    /**
+     * 上传的文件由 http 层直接响应(零拷贝), {@link cn.xnatural.enet.test.rest.RestTpl#file(String)} 作为后备
+     */
+    @EL(name = "sys.started")
+    protected void addStatic() {
+        String prefix = ("/" + Objects.toString(ep.fire("resteasy.getRootPath"), "/") + "/file/").replaceAll("/+", "/");
+        ep.fire("http.addStatic", prefix, new File(localDir).getAbsolutePath());
+    }
+
+
     /**
      *  例: 文件名为 aa.txt, 返回: arr[0]=aa, arr[1]=txt
      * @param fileName
@@ -112,12 +128,7 @@ public class FileUploader extends ServerTpl {
         if (files.length >= 2) {
             List<Callable<FileData>> uploadPayload = Arrays.stream(files).skip(1).filter(f -> f != null)
                     .map(f -> (Callable<FileData>) () -> {
-                        try (FileOutputStream fo = new FileOutputStream(new File(localDir + File.separator + f.getResultName()));
-                             InputStream in = f.getInputStream()) {
-                            IOUtils.copy(in, fo);
-                        } catch (Exception ex) {
-                            log.error(ex);
-                        }
+                        write(f);
                         return f;
                     }).collect(Collectors.toList());
 
@@ -132,12 +143,7 @@ public class FileUploader extends ServerTpl {
                 // 第一个用当前线程执行, 其余的用 executor 执行
                 FileData f = files[0];
                 if (f != null) {
-                    try (FileOutputStream fo = new FileOutputStream(new File(localDir + File.separator + f.getResultName()));
-                         InputStream in = f.getInputStream()) {
-                        IOUtils.copy(in, fo);
-                    } catch (Exception ex) {
-                        log.error(ex);
-                    }
+                    write(f);
                 }
 
                 // 此处会等待线程池中所有任务执行完
@@ -150,12 +156,44 @@ public class FileUploader extends ServerTpl {
         } else if (files.length == 1){
             FileData f = files[0];
             if (f == null) return;
-            try (FileOutputStream fo = new FileOutputStream(new File(localDir + File.separator + f.getResultName()));
-                 InputStream in = f.getInputStream()) {
-                IOUtils.copy(in, fo);
-            } catch (Exception ex) {
-                log.error(ex);
-            }
+            write(f);
+        }
+    }
+
+
+    /**
+     * 保存一个流式上传的文件
+     * @param fileName 保存的文件名
+     * @param in 请求体
+     * @return 文件大小
+     */
+    public long save(String fileName, InputStream in) throws IOException {
+        try (InputStream is = in) {
+            return write(new File(localDir + File.separator + fileName), is);
+        }
+    }
+
+
+    protected void write(FileData f) {
+        try (InputStream in = f.getInputStream()) {
+            f.setSize(write(new File(localDir + File.separator + f.getResultName()), in));
+        } catch (Exception ex) {
+            log.error(ex);
+        }
+    }
+
+
+    /**
+     * 写文件. 流式的请求体({@link BodyStream}) 直接从 netty 的 buf 写入 FileChannel
+     * @param file
+     * @param in
+     * @return 写入字节数
+     * @throws IOException
+     */
+    protected long write(File file, InputStream in) throws IOException {
+        try (FileChannel fc = FileChannel.open(file.toPath(), CREATE, WRITE, TRUNCATE_EXISTING)) {
+            if (in instanceof BodyStream) return ((BodyStream) in).transferTo(fc);
+            return fc.transferFrom(Channels.newChannel(in), 0, Long.MAX_VALUE);
         }
     }
 }
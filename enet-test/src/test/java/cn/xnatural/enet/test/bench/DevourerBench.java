@@ -0,0 +1,76 @@
+package cn.xnatural.enet.test.bench;
+
+import cn.xnatural.enet.common.Devourer;
+import cn.xnatural.enet.common.Log;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * {@link Devourer} 吞吐: 1/4/16 个生产线程往同一个吞噬器提交. drain=1 是每个执行体提交一次线程池, drain=64 是一次激活连续执行
+ * 每次操作: 提交 {@link #BATCH} 个执行体, 等它们全部执行完
+ * 运行: mvn -pl enet-test -am test-compile 后执行 main
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DevourerBench {
+
+    static {
+        Log.init(null);
+    }
+
+
+    static final int BATCH = 1000;
+
+
+    @Param({"1", "64"})
+    int             drain;
+    ExecutorService exec;
+    Devourer        devourer;
+
+
+    @Setup
+    public void setup() {
+        exec = Executors.newFixedThreadPool(4);
+        devourer = new Devourer("bench", exec).drain(drain, 0);
+    }
+
+
+    @TearDown
+    public void tearDown() {
+        exec.shutdownNow();
+    }
+
+
+    @State(Scope.Thread)
+    public static class Producer {
+        final AtomicInteger done = new AtomicInteger();
+        Runnable            fn   = done::incrementAndGet;
+    }
+
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public int offer(Producer p) {
+        p.done.set(0);
+        for (int i = 0; i < BATCH; i++) devourer.offer(p.fn);
+        while (p.done.get() < BATCH) Thread.yield();
+        return p.done.get();
+    }
+
+
+    public static void main(String[] args) throws Exception {
+        for (int threads : new int[]{1, 4, 16}) {
+            new Runner(new OptionsBuilder().include(DevourerBench.class.getSimpleName()).threads(threads).build()).run();
+        }
+    }
+}
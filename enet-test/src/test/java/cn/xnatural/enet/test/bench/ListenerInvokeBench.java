@@ -0,0 +1,118 @@
+package cn.xnatural.enet.test.bench;
+
+import cn.xnatural.enet.common.Log;
+import cn.xnatural.enet.event.EC;
+import cn.xnatural.enet.event.EL;
+import cn.xnatural.enet.event.EP;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.lang.invoke.LambdaMetafactory;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 监听器调用: 反射(Method.invoke), 非常量的 MethodHandle, {@link LambdaMetafactory} 生成的调用实现(EP 的做法) 对比. 以及完整的同步 ep.fire(耗时全记录/采样)
+ * 运行: mvn -pl enet-test -am test-compile 后执行 main
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ListenerInvokeBench {
+
+    static {
+        Log.init(null);
+    }
+
+
+    Src          src = new Src();
+    Method       m1, m2;
+    MethodHandle h1, h2;
+    EP.F1        f1;
+    EP.F2        f2;
+    EP           ep, sampled;
+    Object[]     args1 = {"a"}, args2 = {"a", 1};
+
+
+    @Setup
+    public void setup() throws Throwable {
+        m1 = Src.class.getMethod("one", String.class); m1.setAccessible(true);
+        m2 = Src.class.getMethod("two", String.class, int.class); m2.setAccessible(true);
+        // 和 EP.Listener.compile 相同的形态
+        h1 = MethodHandles.lookup().unreflect(m1).bindTo(src).asType(MethodType.methodType(Object.class, Object.class));
+        h2 = MethodHandles.lookup().unreflect(m2).bindTo(src).asSpreader(Object[].class, 2).asType(MethodType.methodType(Object.class, Object[].class));
+        // 和 EP.Listener.spin 相同的形态
+        MethodHandles.Lookup lookup = MethodHandles.lookup();
+        f1 = (EP.F1) LambdaMetafactory.metafactory(lookup, "call", MethodType.methodType(EP.F1.class, Src.class),
+            MethodType.genericMethodType(1), lookup.unreflect(m1), MethodType.methodType(Object.class, String.class)
+        ).getTarget().invoke(src);
+        f2 = (EP.F2) LambdaMetafactory.metafactory(lookup, "call", MethodType.methodType(EP.F2.class, Src.class),
+            MethodType.genericMethodType(2), lookup.unreflect(m2), MethodType.methodType(Object.class, String.class, Integer.class)
+        ).getTarget().invoke(src);
+        ep = new EP(); ep.addListenerSource(src);
+        sampled = new EP().timingSample(8); sampled.addListenerSource(src);
+    }
+
+
+    /**
+     * 基准: 直接调用. 其它的减去它就是调用方式本身的开销
+     */
+    @Benchmark
+    public Object direct1() { return src.one((String) args1[0]); }
+
+
+    @Benchmark
+    public Object reflect1() throws Exception { return m1.invoke(src, args1); }
+
+
+    @Benchmark
+    public Object handle1() throws Throwable { return (Object) h1.invokeExact(args1[0]); }
+
+
+    @Benchmark
+    public Object invoker1() { return f1.call(args1[0]); }
+
+
+    @Benchmark
+    public Object reflect2() throws Exception { return m2.invoke(src, args2); }
+
+
+    @Benchmark
+    public Object handle2() throws Throwable { return (Object) h2.invokeExact(args2); }
+
+
+    @Benchmark
+    public Object invoker2() { return f2.call(args2[0], args2[1]); }
+
+
+    @Benchmark
+    public Object fire2() { return ep.fire("bench.two", new EC().args(args2)); }
+
+
+    /**
+     * 每 8 次执行记录一次耗时
+     */
+    @Benchmark
+    public Object fire2Sampled() { return sampled.fire("bench.two", new EC().args(args2)); }
+
+
+    public static class Src {
+        @EL(name = "bench.one")
+        public String one(String a) { return a; }
+
+        @EL(name = "bench.two")
+        public int two(String a, int b) { return a.length() + b; }
+    }
+
+
+    public static void main(String[] args) throws Exception {
+        new Runner(new OptionsBuilder().include(ListenerInvokeBench.class.getSimpleName()).build()).run();
+    }
+}
@@ -0,0 +1,121 @@
+package cn.xnatural.enet.test.bench;
+
+import cn.xnatural.enet.common.Log;
+import cn.xnatural.enet.core.AppContext;
+import cn.xnatural.enet.event.EL;
+import cn.xnatural.enet.event.EP;
+import cn.xnatural.enet.server.ServerTpl;
+import cn.xnatural.enet.server.redis.RedisServer;
+import cn.xnatural.enet.test.redis.FakeRedis;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.JedisPoolConfig;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * redis 微批({@link RedisServer} redis.batch) 和 每次调用借一个连接 对比
+ * 8 个线程写 20000 个 HSET+EXPIRE, 连接池 8 个连接:
+ * 1. 每次调用借一个连接, 两次往返
+ * 2. redis.hset: 进入微批队列, 一次 pipeline 最多 200 个命令
+ * 3. 同 2, batchTransaction=true: 用 MULTI/EXEC 包起来
+ * 默认连进程内的 {@link FakeRedis}; 指定 -Dredis.host -Dredis.port 时连真实的 redis
+ * 运行: mvn -pl enet-test -am test-compile 后执行 main
+ */
+public class RedisBatchBench {
+
+    static {
+        Log.init(null);
+    }
+
+
+    static final int N = 20000, THREADS = 8;
+
+
+    public static void main(String[] args) throws Exception {
+        FakeRedis fake = null;
+        if (System.getProperty("redis.port") == null) {
+            fake = new FakeRedis();
+            System.setProperty("redis.port", String.valueOf(fake.port()));
+        }
+        String host = System.getProperty("redis.host", "localhost");
+        int port = Integer.parseInt(System.getProperty("redis.port"));
+        System.setProperty("redis.maxTotal", String.valueOf(THREADS));
+
+        AppContext app = new AppContext();
+        RedisServer redis = new RedisServer();
+        Probe probe = new Probe();
+        app.addSource(redis); app.addSource(probe);
+        app.start();
+        probe.started.await(10, TimeUnit.SECONDS);
+
+        JedisPoolConfig cfg = new JedisPoolConfig(); cfg.setMaxTotal(THREADS);
+        JedisPool pool = new JedisPool(cfg, host, port);
+        ExecutorService exec = Executors.newFixedThreadPool(THREADS);
+        for (int round = 0; round < 2; round++) { // 第一轮预热
+            long perCall = time(exec, i -> {
+                try (Jedis c = pool.getResource()) {
+                    c.hset("bench-call" + (i % 100), "f" + i, "v"); c.expire("bench-call" + (i % 100), 60);
+                }
+                return null;
+            });
+            redis.attr("batchTransaction", false);
+            long batched = time(exec, i -> (CompletableFuture<?>) probe.ep().fire("redis.hset", "bench-batch" + (i % 100), "f" + i, "v", 60));
+            redis.attr("batchTransaction", true);
+            long multi = time(exec, i -> (CompletableFuture<?>) probe.ep().fire("redis.hset", "bench-multi" + (i % 100), "f" + i, "v", 60));
+            redis.attr("batchTransaction", false);
+            if (round > 0) {
+                System.out.println(N + " HSET+EXPIRE from " + THREADS + " threads");
+                System.out.println("per call connection: " + perCall + "ms");
+                System.out.println("micro-batched:       " + batched + "ms");
+                System.out.println("micro-batched MULTI: " + multi + "ms");
+            }
+        }
+        exec.shutdown(); pool.close(); app.stop();
+        if (fake != null) fake.close();
+        System.exit(0);
+    }
+
+
+    /**
+     * 多线程执行 N 次 fn, 等待全部完成(包括返回的 future)
+     * @return 毫秒
+     */
+    static long time(ExecutorService exec, Op fn) throws Exception {
+        List<CompletableFuture<?>> fs = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch latch = new CountDownLatch(N);
+        long start = System.nanoTime();
+        for (int i = 0; i < N; i++) {
+            int n = i;
+            exec.execute(() -> {
+                try {
+                    CompletableFuture<?> f = fn.run(n);
+                    if (f != null) fs.add(f);
+                } finally { latch.countDown(); }
+            });
+        }
+        latch.await();
+        CompletableFuture.allOf(fs.toArray(new CompletableFuture[0])).get(60, TimeUnit.SECONDS);
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    }
+
+
+    interface Op {
+        CompletableFuture<?> run(int i);
+    }
+
+
+    public static class Probe extends ServerTpl {
+        final CountDownLatch started = new CountDownLatch(1);
+
+        Probe() { super("probe"); }
+
+        @EL(name = "redis.started")
+        void started() { started.countDown(); }
+
+        EP ep() { return ep; }
+    }
+}
@@ -0,0 +1,77 @@
+package cn.xnatural.enet.test.common;
+
+import cn.xnatural.enet.common.Devourer;
+import cn.xnatural.enet.common.Log;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * {@link Devourer} 在线程池拒绝时的处理: 不能一直占着执行权, 不能留下没人执行的
+ */
+public class DevourerTest {
+
+    static {
+        Log.init(null);
+    }
+
+
+    final List<Runnable> tasks  = new ArrayList<>();
+    final AtomicBoolean  reject = new AtomicBoolean();
+    /**
+     * 只收集不执行; reject 为 true 时拒绝
+     */
+    final Executor       exec   = r -> {
+        if (reject.get()) throw new RejectedExecutionException("busy");
+        tasks.add(r);
+    };
+
+
+    /**
+     * 提交被拒绝: tryOffer 返回 false, 之后线程池恢复了还能继续用
+     */
+    @Test
+    public void rejectedOffer() {
+        Devourer d = new Devourer("t", exec);
+        AtomicInteger n = new AtomicInteger();
+        reject.set(true);
+        assertFalse(d.tryOffer(n::incrementAndGet));
+        assertEquals(1, d.getRejectedCount());
+        assertEquals(0, d.getWaitingCount());
+
+        reject.set(false);
+        assertTrue(d.tryOffer(n::incrementAndGet));
+        assertEquals(1, tasks.size());
+        tasks.remove(0).run();
+        assertEquals(1, n.get());
+    }
+
+
+    /**
+     * 一次激活执行完还有剩下的, 重新提交被拒绝: 在当前线程继续执行
+     */
+    @Test
+    public void rejectedResubmit() {
+        Devourer d = new Devourer("t", exec).drain(1, 0);
+        AtomicInteger n = new AtomicInteger();
+        assertTrue(d.tryOffer(n::incrementAndGet));
+        assertTrue(d.tryOffer(n::incrementAndGet)); // 排队
+        assertEquals(1, tasks.size());
+
+        reject.set(true);
+        tasks.remove(0).run();
+        assertEquals(2, n.get());
+        assertEquals(0, d.getWaitingCount());
+
+        reject.set(false);
+        assertTrue(d.tryOffer(n::incrementAndGet));
+        assertEquals(1, tasks.size());
+    }
+}
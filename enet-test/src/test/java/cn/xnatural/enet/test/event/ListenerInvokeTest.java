@@ -0,0 +1,176 @@
+package cn.xnatural.enet.test.event;
+
+import cn.xnatural.enet.common.Log;
+import cn.xnatural.enet.event.EC;
+import cn.xnatural.enet.event.EL;
+import cn.xnatural.enet.event.EP;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.function.IntBinaryOperator;
+import java.util.function.Supplier;
+
+import static org.junit.Assert.*;
+
+/**
+ * 监听器调用句柄({@link EP} Listener.compile)的参数适配和返回值
+ */
+public class ListenerInvokeTest {
+
+    static {
+        Log.init(null);
+    }
+
+
+    EP ep;
+
+
+    @Before
+    public void init() {
+        ep = new EP(); // 没有线程池: 全部同步执行
+        ep.addListenerSource(new Src());
+        ep.addListenerSource(new Chain());
+    }
+
+
+    @Test
+    public void ecFirst() {
+        EC ec = new EC().args("a", "b");
+        assertEquals("a-b", ep.fire("ec.args", ec));
+        assertSame(ec, ep.fire("ec.only", ec));
+    }
+
+
+    @Test
+    public void missingArgsPadNull() {
+        assertEquals("x|null", ep.fire("pad", "x"));
+        assertEquals("null|null", ep.fire("pad"));
+        assertEquals("x|y", ep.fire("pad", "x", "y", "ignored"));
+    }
+
+
+    @Test
+    public void objectArray() {
+        assertEquals("[a, b, c]", ep.fire("arr", "a", "b", "c"));
+        assertEquals("[]", ep.fire("arr"));
+    }
+
+
+    @Test
+    public void primitiveArray() {
+        assertEquals(6, ep.fire("sum", 1, 2, 3));
+        assertEquals(0, ep.fire("sum"));
+    }
+
+
+    @Test
+    public void primitiveParamsAndReturn() {
+        assertEquals(3L, ep.fire("add", 1, 2L));
+        assertEquals(true, ep.fire("not", false));
+        assertEquals(7, ep.fire("seven"));
+    }
+
+
+    @Test
+    public void voidReturnKeepsResult() {
+        assertEquals("first", ep.fire("chain"));
+    }
+
+
+    @Test
+    public void listenerError() {
+        EC ec = new EC();
+        assertNull(ep.fire("fail", ec));
+        assertTrue(ec.ex instanceof IllegalStateException);
+    }
+
+
+    @Test
+    public void channel() {
+        IntBinaryOperator sum = ep.channel("sum", IntBinaryOperator.class);
+        assertEquals(5, sum.applyAsInt(2, 3));
+        IntBinaryOperator none = ep.channel("no.listener", IntBinaryOperator.class);
+        assertEquals(0, none.applyAsInt(2, 3)); // 基本类型返回默认值
+        Supplier<Object> seven = ep.channel("seven", Supplier.class);
+        assertEquals(7, seven.get());
+        assertFalse(Proxy.isProxyClass(sum.getClass())); // 生成的实现类, 不是动态代理
+    }
+
+
+    /**
+     * 非 public 的接口, 4 个参数
+     */
+    @Test
+    public void channelNonPublicInterface() {
+        Join4 join = ep.channel("join4", Join4.class);
+        assertEquals("a1b2", join.join("a", 1, "b", 2L));
+        assertFalse(Proxy.isProxyClass(join.getClass()));
+    }
+
+
+    interface Join4 {
+        String join(String a, int b, String c, long d);
+    }
+
+
+    @Test
+    public void channelRebindAndSource() {
+        Object src = new Object();
+        Supplier<Object> f = ep.channel("late", Supplier.class, src);
+        assertNull(f.get());
+        ep.addListenerSource(new Late()); // 注册后通道重新绑定
+        assertSame(src, f.get());
+        ep.removeEvent("late", null);
+        assertNull(f.get());
+    }
+
+
+    public static class Chain { // 同一个对象源中一个事件名只能有一个监听器
+        @EL(name = "chain", order = 2)
+        public void chainSecond() {}
+    }
+
+
+    public static class Late {
+        @EL(name = "late")
+        public Object late(EC ec) { return ec.source(); }
+    }
+
+
+    public static class Src {
+        @EL(name = "ec.args")
+        public String ecArgs(EC ec, String a, String b) { return a + "-" + b; }
+
+        @EL(name = "ec.only")
+        public EC ecOnly(EC ec) { return ec; }
+
+        @EL(name = "pad")
+        public String pad(String a, String b) { return a + "|" + b; }
+
+        @EL(name = "arr")
+        public String arr(String[] xs) { return Arrays.toString(xs); }
+
+        @EL(name = "sum")
+        public int sum(int[] xs) { return Arrays.stream(xs).sum(); }
+
+        @EL(name = "add")
+        public long add(int a, long b) { return a + b; }
+
+        @EL(name = "not")
+        public boolean not(boolean b) { return !b; }
+
+        @EL(name = "seven")
+        public int seven() { return 7; }
+
+        @EL(name = "chain", order = 1)
+        public String chainFirst() { return "first"; }
+
+        @EL(name = "join4")
+        String join4(String a, int b, String c, long d) { return a + b + c + d; }
+
+        @EL(name = "fail")
+        public void fail() { throw new IllegalStateException("fail"); }
+    }
+}
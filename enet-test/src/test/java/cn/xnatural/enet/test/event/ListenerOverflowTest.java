@@ -0,0 +1,159 @@
+package cn.xnatural.enet.test.event;
+
+import cn.xnatural.enet.common.Log;
+import cn.xnatural.enet.event.EC;
+import cn.xnatural.enet.event.EL;
+import cn.xnatural.enet.event.EP;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * 异步监听器排队已满时({@link EL#overflow()})的处理
+ */
+public class ListenerOverflowTest {
+
+    static {
+        Log.init(null);
+    }
+
+
+    /**
+     * 被拒绝的监听器算作执行完: 后面的监听器照常提交, completeFn 照常回调, 异常在全部提交后抛出
+     */
+    @Test
+    public void failDoesNotLoseOtherListeners() {
+        List<Runnable> tasks = new ArrayList<>();
+        EP ep = new EP(tasks::add); // 不执行, 只收集
+        Full full = new Full(); Other other = new Other();
+        ep.addListenerSource(full).addListenerSource(other);
+
+        ep.fire("e"); // 占满 Full 的并发
+        assertEquals(2, tasks.size());
+
+        AtomicInteger completed = new AtomicInteger();
+        EC ec = new EC();
+        try {
+            ep.fire("e", ec, e -> completed.incrementAndGet());
+            fail("expect RejectedExecutionException");
+        } catch (RejectedExecutionException ex) {
+            assertSame(ex, ec.ex);
+        }
+        assertEquals(3, tasks.size()); // Other 被提交了
+        assertEquals(0, completed.get());
+        new ArrayList<>(tasks).forEach(Runnable::run);
+        assertEquals(1, completed.get());
+        assertEquals(2, other.count.get());
+        assertEquals(1, full.count.get());
+    }
+
+
+    /**
+     * CALLER_RUNS: 在发布事件的线程中执行
+     */
+    @Test
+    public void callerRuns() {
+        List<Runnable> tasks = new ArrayList<>();
+        EP ep = new EP(tasks::add);
+        CallerRuns l = new CallerRuns();
+        ep.addListenerSource(l);
+        ep.fire("c"); ep.fire("c");
+        assertEquals(1, tasks.size());
+        assertEquals(1, l.count.get());
+    }
+
+
+    /**
+     * 线程池拒绝: 占用的名额要还回来, 否则通道一直是满的
+     */
+    @Test
+    public void rejectedReleasesSlot() {
+        List<Runnable> tasks = new ArrayList<>();
+        AtomicBoolean reject = new AtomicBoolean(true);
+        EP ep = new EP(r -> {
+            if (reject.get()) throw new RejectedExecutionException("busy");
+            tasks.add(r);
+        });
+        Full full = new Full();
+        ep.addListenerSource(full);
+        try {
+            ep.fire("e");
+            fail("expect RejectedExecutionException");
+        } catch (RejectedExecutionException ex) {
+            assertEquals("busy", ex.getMessage());
+        }
+        reject.set(false);
+        ep.fire("e");
+        assertEquals(1, tasks.size());
+        tasks.get(0).run();
+        assertEquals(1, full.count.get());
+    }
+
+
+    /**
+     * 已排队的任务被线程池拒绝: 提交方已返回, 按丢弃处理(completeFn 照常回调), 名额还回来
+     */
+    @Test
+    public void queuedRejectedIsDropped() {
+        List<Runnable> tasks = new ArrayList<>();
+        AtomicBoolean reject = new AtomicBoolean(false);
+        EP ep = new EP(r -> {
+            if (reject.get()) throw new RejectedExecutionException("busy");
+            tasks.add(r);
+        });
+        Queued l = new Queued();
+        ep.addListenerSource(l);
+        AtomicInteger completed = new AtomicInteger();
+        ep.fire("q", new EC(), e -> completed.incrementAndGet());
+        ep.fire("q", new EC(), e -> completed.incrementAndGet()); // 排队
+        assertEquals(1, tasks.size());
+
+        reject.set(true);
+        tasks.remove(0).run(); // 执行完后提交排队的, 被拒绝
+        assertEquals(1, l.count.get());
+        assertEquals(2, completed.get());
+        assertTrue(tasks.isEmpty());
+
+        reject.set(false);
+        ep.fire("q");
+        assertEquals(1, tasks.size());
+    }
+
+
+    public static class Full {
+        AtomicInteger count = new AtomicInteger();
+
+        @EL(name = "e", concurrency = 1, queueLimit = 0, overflow = EL.Overflow.FAIL, order = 1)
+        public void on() { count.incrementAndGet(); }
+    }
+
+
+    public static class Other {
+        AtomicInteger count = new AtomicInteger();
+
+        @EL(name = "e", order = 2)
+        public void on() { count.incrementAndGet(); }
+    }
+
+
+    public static class Queued {
+        AtomicInteger count = new AtomicInteger();
+
+        @EL(name = "q", concurrency = 1, queueLimit = 1, overflow = EL.Overflow.FAIL)
+        public void on() { count.incrementAndGet(); }
+    }
+
+
+    public static class CallerRuns {
+        AtomicInteger count = new AtomicInteger();
+
+        @EL(name = "c", concurrency = 1, queueLimit = 0)
+        public void on() { count.incrementAndGet(); }
+    }
+}
@@ -0,0 +1,302 @@
+package cn.xnatural.enet.test.redis;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 测试用的 redis 替身: 内存中的 hash, EXPIRE(只记录秒数), MULTI/EXEC, pub/sub. 记录收到的每个命令
+ * 每个连接一个线程
+ */
+public class FakeRedis implements Closeable {
+    protected final ServerSocket                           ss;
+    protected final Map<String, Map<String, String>>       hashes   = new ConcurrentHashMap<>();
+    /**
+     * key -> 最后一次 EXPIRE 的秒数
+     */
+    protected final Map<String, Long>                      expires  = new ConcurrentHashMap<>();
+    protected final Map<String, Set<Conn>>                 subs     = new ConcurrentHashMap<>();
+    /**
+     * 收到的所有命令
+     */
+    protected final Queue<String[]>                        commands = new ConcurrentLinkedQueue<>();
+    /**
+     * 命令名 -> 回复的错误信息. 用来测试命令出错
+     */
+    protected final Map<String, String>                    failing  = new ConcurrentHashMap<>();
+    /**
+     * 命令名 -> 执行前等待的 latch. 用来控制命令完成的时机
+     */
+    protected final Map<String, CountDownLatch>            holds    = new ConcurrentHashMap<>();
+    protected final Set<Conn>                              conns    = new CopyOnWriteArraySet<>();
+
+
+    public FakeRedis() throws IOException {
+        ss = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        Thread t = new Thread(() -> {
+            while (!ss.isClosed()) {
+                try {
+                    Conn c = new Conn(ss.accept());
+                    Thread ct = new Thread(c::loop, "fake-redis-conn"); ct.setDaemon(true); ct.start();
+                } catch (IOException e) { /* 已关闭 */ }
+            }
+        }, "fake-redis");
+        t.setDaemon(true); t.start();
+    }
+
+
+    public int port() { return ss.getLocalPort(); }
+
+
+    /**
+     * 命令 cmd 作用在 key 上的次数
+     */
+    public long count(String cmd, String key) {
+        return commands.stream().filter(a -> a[0].equalsIgnoreCase(cmd) && a.length > 1 && a[1].equals(key)).count();
+    }
+
+
+    /**
+     * HSET key field 的次数
+     */
+    public long countHSet(String key, String field) {
+        return commands.stream().filter(a -> a[0].equalsIgnoreCase("HSET") && a.length > 2 && a[1].equals(key) && a[2].equals(field)).count();
+    }
+
+
+    /**
+     * @return 最后一次 EXPIRE 的秒数. 没有设置过为 null
+     */
+    public Long ttl(String key) { return expires.get(key); }
+
+
+    public int subscribers(String channel) { return subs.getOrDefault(channel, Collections.emptySet()).size(); }
+
+
+    public FakeRedis hset(String key, String field, String value) {
+        hashes.computeIfAbsent(key, k -> new ConcurrentHashMap<>()).put(field, value);
+        return this;
+    }
+
+
+    /**
+     * 之后命令 cmd 都回复错误 msg. msg 为 null 时恢复
+     */
+    public FakeRedis failing(String cmd, String msg) {
+        if (msg == null) failing.remove(cmd.toUpperCase());
+        else failing.put(cmd.toUpperCase(), msg);
+        return this;
+    }
+
+
+    /**
+     * 之后命令 cmd 都等到返回的 latch countDown 后才执行(最多等 5 秒). 其它连接不受影响
+     */
+    public CountDownLatch hold(String cmd) {
+        CountDownLatch l = new CountDownLatch(1);
+        holds.put(cmd.toUpperCase(), l);
+        return l;
+    }
+
+
+    /**
+     * 断开所有客户端连接(不关闭服务)
+     */
+    public void dropConnections() {
+        for (Conn c : conns) {
+            try { c.socket.close(); } catch (IOException e) { /* ignore */ }
+        }
+    }
+
+
+    /**
+     * 收到的命令名, 按顺序
+     */
+    public List<String> commandNames() {
+        List<String> l = new ArrayList<>();
+        for (String[] a : commands) l.add(a[0].toUpperCase());
+        return l;
+    }
+
+
+    @Override
+    public void close() throws IOException { ss.close(); }
+
+
+    protected Object run(String[] a) {
+        commands.add(a);
+        String cmd = a[0].toUpperCase(); String k = a.length > 1 ? a[1] : null;
+        CountDownLatch held = holds.get(cmd);
+        if (held != null) {
+            try { held.await(5, TimeUnit.SECONDS); }
+            catch (InterruptedException e) { Thread.currentThread().interrupt(); }
+        }
+        if (failing.containsKey(cmd)) return new Err(failing.get(cmd));
+        switch (cmd) {
+            case "PING": return new Simple("PONG");
+            case "AUTH": case "SELECT": case "CLIENT": case "QUIT": return new Simple("OK");
+            case "HSET": {
+                Map<String, String> h = hashes.computeIfAbsent(k, kk -> new ConcurrentHashMap<>());
+                long n = 0;
+                for (int i = 2; i + 1 < a.length; i += 2) if (h.put(a[i], a[i + 1]) == null) n++;
+                return n;
+            }
+            case "HGET": return hashes.getOrDefault(k, Collections.emptyMap()).get(a[2]);
+            case "HGETALL": {
+                List<Object> l = new ArrayList<>();
+                hashes.getOrDefault(k, Collections.emptyMap()).forEach((f, v) -> { l.add(f); l.add(v); });
+                return l;
+            }
+            case "HDEL": {
+                Map<String, String> h = hashes.getOrDefault(k, Collections.emptyMap());
+                long n = 0;
+                for (int i = 2; i < a.length; i++) if (h.remove(a[i]) != null) n++;
+                return n;
+            }
+            case "DEL": {
+                long n = 0;
+                for (int i = 1; i < a.length; i++) if (hashes.remove(a[i]) != null) n++;
+                return n;
+            }
+            case "EXPIRE": {
+                if (!hashes.containsKey(k)) return 0L;
+                expires.put(k, Long.valueOf(a[2]));
+                return 1L;
+            }
+            case "PUBLISH": {
+                long n = 0;
+                for (Conn s : subs.getOrDefault(k, Collections.emptySet())) {
+                    try { s.push(Arrays.asList("message", k, a[2])); n++; }
+                    catch (IOException e) { /* 订阅的连接已断开 */ }
+                }
+                return n;
+            }
+            default: return new Err("ERR unknown command '" + a[0] + "'");
+        }
+    }
+
+
+    protected class Conn {
+        final Socket       socket;
+        final InputStream  in;
+        final OutputStream out;
+        final Set<String>  channels = new CopyOnWriteArraySet<>();
+        List<String[]>     multi;
+
+        Conn(Socket socket) throws IOException {
+            this.socket = socket; socket.setTcpNoDelay(true);
+            in = new BufferedInputStream(socket.getInputStream());
+            out = new BufferedOutputStream(socket.getOutputStream());
+        }
+
+        void loop() {
+            conns.add(this);
+            try {
+                for (String[] a; (a = read()) != null; ) {
+                    String cmd = a[0].toUpperCase();
+                    if ("MULTI".equals(cmd)) { multi = new ArrayList<>(); write(new Simple("OK")); }
+                    else if ("EXEC".equals(cmd)) {
+                        List<Object> rs = new ArrayList<>();
+                        if (multi != null) for (String[] x : multi) rs.add(run(x));
+                        multi = null; write(rs);
+                    }
+                    else if (multi != null) { multi.add(a); write(new Simple("QUEUED")); }
+                    else if ("SUBSCRIBE".equals(cmd)) {
+                        for (int i = 1; i < a.length; i++) {
+                            channels.add(a[i]); subs.computeIfAbsent(a[i], k -> new CopyOnWriteArraySet<>()).add(this);
+                            write(Arrays.asList("subscribe", a[i], (long) channels.size()));
+                        }
+                    }
+                    else if ("UNSUBSCRIBE".equals(cmd)) {
+                        for (String ch : channels) {
+                            channels.remove(ch); subs.getOrDefault(ch, Collections.emptySet()).remove(this);
+                            write(Arrays.asList("unsubscribe", ch, (long) channels.size()));
+                        }
+                    }
+                    else write(run(a));
+                }
+            } catch (IOException e) { /* 连接断开 */ }
+            finally {
+                conns.remove(this);
+                for (String ch : channels) subs.getOrDefault(ch, Collections.emptySet()).remove(this);
+                try { socket.close(); } catch (IOException e) { /* ignore */ }
+            }
+        }
+
+        String[] read() throws IOException {
+            String line = line();
+            if (line == null) return null;
+            if (line.charAt(0) != '*') return line.trim().split("\\s+"); // inline 命令
+            String[] a = new String[Integer.parseInt(line.substring(1))];
+            for (int i = 0; i < a.length; i++) {
+                byte[] b = new byte[Integer.parseInt(line().substring(1))];
+                for (int n = 0; n < b.length; ) {
+                    int r = in.read(b, n, b.length - n);
+                    if (r < 0) throw new EOFException();
+                    n += r;
+                }
+                line(); // \r\n
+                a[i] = new String(b, StandardCharsets.UTF_8);
+            }
+            return a;
+        }
+
+        String line() throws IOException {
+            StringBuilder sb = new StringBuilder();
+            for (int c; (c = in.read()) != '\n'; ) {
+                if (c < 0) return null;
+                if (c != '\r') sb.append((char) c);
+            }
+            return sb.toString();
+        }
+
+        /**
+         * 回复. 还有没读的命令时先不 flush: pipeline 的回复一起发出
+         */
+        synchronized void write(Object v) throws IOException {
+            encode(v);
+            if (in.available() == 0) out.flush();
+        }
+
+        /**
+         * 推送订阅的消息
+         */
+        synchronized void push(Object v) throws IOException {
+            encode(v); out.flush();
+        }
+
+        void encode(Object v) throws IOException {
+            if (v == null) out.write("$-1\r\n".getBytes(StandardCharsets.UTF_8));
+            else if (v instanceof Long) out.write((":" + v + "\r\n").getBytes(StandardCharsets.UTF_8));
+            else if (v instanceof Simple) out.write(("+" + ((Simple) v).msg + "\r\n").getBytes(StandardCharsets.UTF_8));
+            else if (v instanceof Err) out.write(("-" + ((Err) v).msg + "\r\n").getBytes(StandardCharsets.UTF_8));
+            else if (v instanceof List) {
+                out.write(("*" + ((List) v).size() + "\r\n").getBytes(StandardCharsets.UTF_8));
+                for (Object o : (List) v) encode(o);
+            } else {
+                byte[] b = v.toString().getBytes(StandardCharsets.UTF_8);
+                out.write(("$" + b.length + "\r\n").getBytes(StandardCharsets.UTF_8)); out.write(b); out.write("\r\n".getBytes(StandardCharsets.UTF_8));
+            }
+        }
+    }
+
+
+    protected static class Simple {
+        final String msg;
+        Simple(String msg) { this.msg = msg; }
+    }
+
+
+    protected static class Err {
+        final String msg;
+        Err(String msg) { this.msg = msg; }
+    }
+}
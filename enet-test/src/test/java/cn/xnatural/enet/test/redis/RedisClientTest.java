@@ -0,0 +1,117 @@
+package cn.xnatural.enet.test.redis;
+
+import cn.xnatural.enet.common.Log;
+import cn.xnatural.enet.server.redis.RedisClient;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.*;
+
+/**
+ * {@link RedisClient}: 回复和命令的对应, 连接建立前发送的命令, 连接断开
+ */
+public class RedisClientTest {
+
+    static {
+        Log.init(null);
+    }
+
+
+    FakeRedis   redis;
+    RedisClient client;
+
+
+    @Before
+    public void start() throws Exception {
+        redis = new FakeRedis();
+    }
+
+
+    @After
+    public void stop() throws Exception {
+        if (client != null) client.close();
+        redis.close();
+    }
+
+
+    /**
+     * 超时的命令的回复后到, 不能给下一个命令
+     */
+    @Test
+    public void timeoutKeepsReplyOrder() throws Exception {
+        client = new RedisClient("localhost", redis.port(), null, 0, 1, 3000, 200, 1).connect();
+        redis.hset("t", "f", "v");
+        CountDownLatch held = redis.hold("HGET");
+        CompletableFuture<Object> slow = client.send("HGET", "t", "f");
+        assertFailed(slow, TimeoutException.class);
+        CompletableFuture<Object> next = client.send("HGETALL", "t"); // 排在 HGET 后面
+        held.countDown();
+        assertEquals(Arrays.asList("f", "v"), next.get(5, TimeUnit.SECONDS));
+        assertEquals("v", client.send("HGET", "t", "f").get(5, TimeUnit.SECONDS));
+    }
+
+
+    /**
+     * 不调用 connect: 第一个命令触发连接, 连接前发送的命令按顺序在 AUTH, SELECT 之后发出
+     */
+    @Test
+    public void sendBeforeConnect() throws Exception {
+        client = new RedisClient("localhost", redis.port(), "pwd", 2, 1, 3000, 5000, 1);
+        List<CompletableFuture<Object>> fs = new ArrayList<>();
+        for (int i = 0; i < 10; i++) fs.add(client.send("HSET", "b", "f", String.valueOf(i)));
+        CompletableFuture<Object> get = client.send("HGET", "b", "f");
+        for (CompletableFuture<Object> f : fs) f.get(5, TimeUnit.SECONDS);
+        assertEquals("9", get.get(5, TimeUnit.SECONDS));
+        List<String> names = redis.commandNames();
+        assertEquals(Arrays.asList("AUTH", "SELECT", "HSET"), names.subList(0, 3));
+        assertEquals("HGET", names.get(names.size() - 1));
+    }
+
+
+    /**
+     * 连接断开: 等待回复的命令都失败, 之后的命令重新连接
+     */
+    @Test
+    public void dropFailsPending() throws Exception {
+        client = new RedisClient("localhost", redis.port(), null, 0, 1, 3000, 0, 1).connect();
+        redis.hset("d", "f", "v");
+        assertEquals("v", client.send("HGET", "d", "f").get(5, TimeUnit.SECONDS));
+        CountDownLatch held = redis.hold("HGET");
+        List<CompletableFuture<Object>> fs = new ArrayList<>();
+        for (int i = 0; i < 3; i++) fs.add(client.send("HGET", "d", "f"));
+        fs.add(client.send("HGETALL", "d"));
+        waitFor(() -> redis.count("HGET", "d") == 2); // 第一个 HGET 等在 redis 中
+        redis.dropConnections();
+        for (CompletableFuture<Object> f : fs) assertFailed(f, ClosedChannelException.class);
+        held.countDown();
+        assertEquals(Arrays.asList("f", "v"), client.send("HGETALL", "d").get(5, TimeUnit.SECONDS));
+    }
+
+
+    static void assertFailed(CompletableFuture<Object> f, Class<? extends Throwable> type) throws Exception {
+        try {
+            f.get(5, TimeUnit.SECONDS);
+            fail("expect " + type.getSimpleName());
+        } catch (ExecutionException ex) {
+            assertTrue(String.valueOf(ex.getCause()), type.isInstance(ex.getCause()));
+        }
+    }
+
+
+    static void waitFor(java.util.function.BooleanSupplier cond) throws InterruptedException {
+        long end = System.currentTimeMillis() + 5000;
+        while (!cond.getAsBoolean() && System.currentTimeMillis() < end) Thread.sleep(10);
+        assertTrue(cond.getAsBoolean());
+    }
+}
@@ -0,0 +1,14 @@
+package cn.xnatural.enet.test.redis;
+
+import cn.xnatural.enet.server.redis.RedisClient;
+import cn.xnatural.enet.server.redis.RedisServer;
+import org.junit.BeforeClass;
+
+/**
+ * {@link RedisServerTest} 的测试, {@link RedisServer} 用 client=netty({@link RedisClient})
+ */
+public class RedisServerNettyTest extends RedisServerTest {
+
+    @BeforeClass
+    public static void start() throws Exception { start("netty"); }
+}
@@ -0,0 +1,128 @@
+package cn.xnatural.enet.test.redis;
+
+import cn.xnatural.enet.common.Log;
+import cn.xnatural.enet.core.AppContext;
+import cn.xnatural.enet.event.EC;
+import cn.xnatural.enet.event.EL;
+import cn.xnatural.enet.event.EP;
+import cn.xnatural.enet.server.ServerTpl;
+import cn.xnatural.enet.server.redis.RedisServer;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import redis.clients.jedis.exceptions.JedisDataException;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * {@link RedisServer} 的微批和 pipeline. 命令出错时调用方能拿到异常
+ * client=netty 时的同样测试见 {@link RedisServerNettyTest}
+ */
+public class RedisServerTest {
+
+    static {
+        Log.init(null);
+    }
+
+
+    static FakeRedis  redis;
+    static AppContext app;
+    static Probe      probe;
+
+
+    @BeforeClass
+    public static void start() throws Exception { start("jedis"); }
+
+
+    /**
+     * @param client redis.client: jedis, netty
+     */
+    static void start(String client) throws Exception {
+        redis = new FakeRedis();
+        System.setProperty("redis.port", String.valueOf(redis.port()));
+        System.setProperty("redis.client", client);
+        app = new AppContext();
+        app.addSource(new RedisServer());
+        app.addSource(probe = new Probe());
+        app.start();
+        assertTrue(probe.started.await(10, TimeUnit.SECONDS));
+    }
+
+
+    @AfterClass
+    public static void stop() throws Exception {
+        app.stop();
+        redis.close();
+        System.clearProperty("redis.port");
+        System.clearProperty("redis.client");
+    }
+
+
+    @Test
+    public void hdel() {
+        redis.hset("h1", "a", "1");
+        assertEquals(1L, probe.ep().fire("redis.hdel", "h1", "a"));
+        assertEquals(0L, probe.ep().fire("redis.hdel", "h1", "a"));
+    }
+
+
+    @Test
+    public void hdelError() {
+        redis.failing("HDEL", "ERR boom");
+        try {
+            EC ec = new EC().args("h2", "a");
+            assertNull(probe.ep().fire("redis.hdel", ec));
+            assertTrue(String.valueOf(ec.ex), ec.ex instanceof JedisDataException);
+            assertEquals("ERR boom", ec.ex.getMessage());
+        } finally {
+            redis.failing("HDEL", null);
+        }
+    }
+
+
+    @Test
+    public void submitCompletesExceptionally() throws Exception {
+        CompletableFuture<Object> f = (CompletableFuture<Object>) probe.ep().fire("redis.submit", "BOGUS", "x");
+        try {
+            f.get(5, TimeUnit.SECONDS);
+            fail("expect error");
+        } catch (ExecutionException ex) {
+            assertTrue(ex.getCause() instanceof JedisDataException);
+        }
+    }
+
+
+    @Test
+    public void pipeline() {
+        List<Object> r = (List<Object>) probe.ep().fire("redis.pipeline", Arrays.asList(
+            new String[]{"HSET", "p", "a", "1"}, new String[]{"BOGUS"}, new String[]{"HGET", "p", "a"}
+        ), false);
+        assertEquals(1L, r.get(0));
+        assertTrue(r.get(1) instanceof JedisDataException); // 出错的命令不影响其它命令
+        assertEquals("1", r.get(2));
+
+        r = (List<Object>) probe.ep().fire("redis.pipeline", Arrays.asList(
+            new String[]{"HSET", "p", "b", "2"}, new String[]{"HGETALL", "p"}
+        ), true);
+        assertEquals(Arrays.asList(1L, Arrays.asList("a", "1", "b", "2")), r);
+    }
+
+
+    public static class Probe extends ServerTpl {
+        final CountDownLatch started = new CountDownLatch(1);
+
+        Probe() { super("probe"); }
+
+        @EL(name = "redis.started")
+        void started() { started.countDown(); }
+
+        EP ep() { return ep; }
+    }
+}
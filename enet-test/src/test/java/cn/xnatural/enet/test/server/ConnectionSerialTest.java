@@ -0,0 +1,126 @@
+package cn.xnatural.enet.test.server;
+
+import cn.xnatural.enet.common.Devourer;
+import cn.xnatural.enet.common.Log;
+import cn.xnatural.enet.server.resteasy.NettyResteasy;
+import io.netty.channel.Channel;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.*;
+
+/**
+ * {@link NettyResteasy} 按连接顺序执行请求: 同一连接按顺序, 不同连接互不阻塞
+ */
+public class ConnectionSerialTest {
+
+    static {
+        Log.init(null);
+    }
+
+
+    ExecutorService exec;
+    Server          server;
+
+
+    @Before
+    public void init() {
+        exec = Executors.newFixedThreadPool(2);
+        server = new Server(exec);
+    }
+
+
+    @After
+    public void destroy() {
+        exec.shutdownNow();
+    }
+
+
+    @Test
+    public void blockedConnectionDoesNotBlockOthers() throws Exception {
+        Channel a = new EmbeddedChannel(), b = new EmbeddedChannel();
+        CountDownLatch slow = new CountDownLatch(1);
+        CountDownLatch aNext = new CountDownLatch(1), bDone = new CountDownLatch(3);
+
+        assertTrue(server.serial(a).tryOffer(() -> await(slow))); // 例: 流式上传等数据
+        assertTrue(server.serial(a).tryOffer(aNext::countDown));
+        for (int i = 0; i < 3; i++) assertTrue(server.serial(b).tryOffer(bDone::countDown));
+
+        assertTrue(bDone.await(5, TimeUnit.SECONDS));
+        assertEquals(1, aNext.getCount()); // 同一连接: 排在慢请求后面
+        slow.countDown();
+        assertTrue(aNext.await(5, TimeUnit.SECONDS));
+    }
+
+
+    @Test
+    public void orderPerConnection() throws Exception {
+        Channel ch = new EmbeddedChannel();
+        List<Integer> seen = new CopyOnWriteArrayList<>();
+        CountDownLatch done = new CountDownLatch(1);
+        for (int i = 0; i < 200; i++) {
+            int n = i;
+            assertTrue(server.serial(ch).tryOffer(() -> seen.add(n)));
+        }
+        server.serial(ch).tryOffer(done::countDown);
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        for (int i = 0; i < 200; i++) assertEquals(i, (int) seen.get(i));
+    }
+
+
+    @Test
+    public void queueLimit() {
+        server.attr("laneQueueLimit", 2);
+        Channel ch = new EmbeddedChannel();
+        CountDownLatch slow = new CountDownLatch(1);
+        Devourer d = server.serial(ch);
+        assertSame(d, server.serial(ch));
+        assertTrue(d.tryOffer(() -> await(slow)));
+        long deadline = System.currentTimeMillis() + 5000;
+        while (d.getWaitingCount() > 0 && System.currentTimeMillis() < deadline) Thread.yield(); // 等第一个开始执行
+        assertTrue(d.tryOffer(() -> {}));
+        assertTrue(d.tryOffer(() -> {}));
+        assertFalse(d.tryOffer(() -> {})); // 调用方据此响应 503
+        assertEquals(1, d.getRejectedCount());
+        slow.countDown();
+    }
+
+
+    /**
+     * 线程池拒绝: 调用方拿到 false(响应 503), 连接的执行器不会一直卡住
+     */
+    @Test
+    public void executorRejects() throws Exception {
+        AtomicBoolean reject = new AtomicBoolean(true);
+        Server s = new Server(r -> {
+            if (reject.get()) throw new RejectedExecutionException("busy");
+            exec.execute(r);
+        });
+        Channel ch = new EmbeddedChannel();
+        CountDownLatch done = new CountDownLatch(1);
+        assertFalse(s.serial(ch).tryOffer(done::countDown));
+        reject.set(false);
+        assertTrue(s.serial(ch).tryOffer(done::countDown));
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+    }
+
+
+    static void await(CountDownLatch latch) {
+        try { latch.await(5, TimeUnit.SECONDS); }
+        catch (InterruptedException e) { Thread.currentThread().interrupt(); }
+    }
+
+
+    static class Server extends NettyResteasy {
+        Server(Executor exec) { this.exec = exec; }
+
+        @Override
+        public Devourer serial(Channel ch) { return super.serial(ch); }
+    }
+}
@@ -0,0 +1,165 @@
+package cn.xnatural.enet.test.server;
+
+import cn.xnatural.enet.common.Log;
+import cn.xnatural.enet.core.AppContext;
+import cn.xnatural.enet.event.EL;
+import cn.xnatural.enet.server.ServerTpl;
+import cn.xnatural.enet.server.http.netty.NettyHttp;
+import cn.xnatural.enet.server.http.netty.NettyHttpClient;
+import cn.xnatural.enet.server.http.netty.NettyHttpClient.Response;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPipeline;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.handler.codec.http.*;
+import io.netty.handler.codec.http2.Http2StreamChannel;
+import io.netty.handler.codec.http2.HttpConversionUtil;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.*;
+
+/**
+ * {@link NettyHttpClient} 连本地的 {@link NettyHttp}(http2Enabled): HTTP/1.1 连接复用, 超时, h2c
+ */
+public class NettyHttpClientTest {
+
+    static {
+        Log.init(null);
+    }
+
+
+    static AppContext      app;
+    static String          base;
+    static NettyHttpClient h1, h2;
+
+
+    @BeforeClass
+    public static void start() throws Exception {
+        int port;
+        try (ServerSocket s = new ServerSocket(0)) { port = s.getLocalPort(); }
+        System.setProperty("http-netty.port", String.valueOf(port));
+        System.setProperty("http-netty.http2Enabled", "true");
+        base = "http://localhost:" + port;
+        app = new AppContext();
+        Handler handler = new Handler();
+        app.addSource(new NettyHttp()); app.addSource(handler);
+        app.start();
+        assertTrue(handler.started.await(10, TimeUnit.SECONDS));
+
+        h1 = new NettyHttpClient("h1-client");
+        h1.attr("maxConnectionsPerHost", 1);
+        h1.start();
+        h2 = new NettyHttpClient("h2-client");
+        h2.attr("http2Enabled", true);
+        h2.start();
+    }
+
+
+    @AfterClass
+    public static void stop() {
+        h1.stop(); h2.stop();
+        app.stop();
+        System.clearProperty("http-netty.port");
+        System.clearProperty("http-netty.http2Enabled");
+    }
+
+
+    /**
+     * 连续的请求用同一个连接
+     */
+    @Test
+    public void h1Reuse() throws Exception {
+        String a = get(h1.get(base + "/echo")), b = get(h1.get(base + "/echo"));
+        assertTrue(a, a.startsWith("h1 "));
+        assertEquals(a, b);
+    }
+
+
+    /**
+     * 没有响应的请求超时, 连接关闭不再复用; 取连接时等待的也算在超时内
+     */
+    @Test
+    public void timeout() throws Exception {
+        String before = get(h1.get(base + "/echo"));
+        CompletableFuture<Response> slow = h1.request("GET", base + "/slow").timeout(300).execute();
+        // 每个 host 只有一个连接, 被 slow 占着: 在取连接时超时
+        CompletableFuture<Response> waiting = h1.request("GET", base + "/echo").timeout(100).execute();
+        assertTimeout(waiting);
+        assertTimeout(slow);
+        String after = get(h1.get(base + "/echo"));
+        assertTrue(after, after.startsWith("h1 "));
+        assertNotEquals(before, after);
+    }
+
+
+    /**
+     * h2c(prior knowledge): 请求是同一个连接上的 stream
+     */
+    @Test
+    public void h2c() throws Exception {
+        String a = get(h2.get(base + "/echo")), b = get(h2.get(base + "/echo"));
+        assertTrue(a, a.startsWith("h2 "));
+        assertEquals(a, b);
+        assertTimeout(h2.request("GET", base + "/slow").timeout(200).execute());
+        assertEquals(a, get(h2.get(base + "/echo"))); // 超时只关闭 stream
+    }
+
+
+    static String get(CompletableFuture<Response> f) throws Exception {
+        Response r = f.get(5, TimeUnit.SECONDS);
+        assertEquals(200, r.getStatus());
+        return r.bodyAsString();
+    }
+
+
+    static void assertTimeout(CompletableFuture<Response> f) throws Exception {
+        try {
+            f.get(5, TimeUnit.SECONDS);
+            fail("expect timeout");
+        } catch (ExecutionException ex) {
+            assertTrue(String.valueOf(ex.getCause()), ex.getCause() instanceof TimeoutException);
+        }
+    }
+
+
+    public static class Handler extends ServerTpl {
+        final CountDownLatch started = new CountDownLatch(1);
+
+        Handler() { super("handler"); }
+
+        @EL(name = "http-netty.started")
+        void started() { started.countDown(); }
+
+        @EL(name = "http-netty.addHandler", async = false)
+        void addHandler(ChannelPipeline cp) { cp.addLast(new Echo()); }
+    }
+
+
+    /**
+     * 响应: 协议 和 客户端连接的端口. /slow 不响应
+     */
+    static class Echo extends SimpleChannelInboundHandler<FullHttpRequest> {
+        @Override
+        protected void channelRead0(ChannelHandlerContext ctx, FullHttpRequest req) {
+            if (req.uri().startsWith("/slow")) return;
+            boolean h2 = req.headers().contains(HttpConversionUtil.ExtensionHeaderNames.STREAM_ID.text());
+            Channel conn = ctx.channel() instanceof Http2StreamChannel ? ctx.channel().parent() : ctx.channel();
+            byte[] b = ((h2 ? "h2 " : "h1 ") + ((InetSocketAddress) conn.remoteAddress()).getPort()).getBytes(StandardCharsets.UTF_8);
+            FullHttpResponse resp = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK, Unpooled.wrappedBuffer(b));
+            HttpUtil.setContentLength(resp, b.length);
+            ctx.writeAndFlush(resp);
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package cn.xnatural.enet.test.server;
+
+import cn.xnatural.enet.common.Log;
+import cn.xnatural.enet.server.http.netty.ReadPause;
+import io.netty.channel.Channel;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * {@link ReadPause}: 写缓存背压 和 流式请求体 各自暂停/恢复, 不互相覆盖
+ */
+public class ReadPauseTest {
+
+    static {
+        Log.init(null);
+    }
+
+
+    @Test
+    public void resumeOnlyWhenNoReason() {
+        Channel ch = new EmbeddedChannel();
+        assertTrue(ch.config().isAutoRead());
+        ReadPause.pause(ch, ReadPause.BODY_BUFFER);
+        assertFalse(ch.config().isAutoRead());
+        ReadPause.pause(ch, ReadPause.WRITE_BACKLOG);
+        ReadPause.resume(ch, ReadPause.WRITE_BACKLOG); // 客户端恢复可写: 请求体缓存还是满的
+        assertFalse(ch.config().isAutoRead());
+        assertTrue(ReadPause.paused(ch, ReadPause.BODY_BUFFER));
+        assertFalse(ReadPause.paused(ch, ReadPause.WRITE_BACKLOG));
+        ReadPause.resume(ch, ReadPause.BODY_BUFFER);
+        assertTrue(ch.config().isAutoRead());
+    }
+
+
+    @Test
+    public void repeatedPauseResume() {
+        Channel ch = new EmbeddedChannel();
+        ReadPause.pause(ch, ReadPause.WRITE_BACKLOG);
+        ReadPause.pause(ch, ReadPause.WRITE_BACKLOG);
+        ReadPause.resume(ch, ReadPause.BODY_BUFFER); // 没有暂停过的原因: 不影响
+        assertFalse(ch.config().isAutoRead());
+        ReadPause.resume(ch, ReadPause.WRITE_BACKLOG);
+        assertTrue(ch.config().isAutoRead());
+    }
+}
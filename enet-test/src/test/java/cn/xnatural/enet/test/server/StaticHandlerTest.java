@@ -0,0 +1,102 @@
+package cn.xnatural.enet.test.server;
+
+import cn.xnatural.enet.common.Log;
+import cn.xnatural.enet.server.http.netty.StaticHandler;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.*;
+import io.netty.util.ReferenceCountUtil;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.*;
+
+/**
+ * {@link StaticHandler}: 路径规范化, 读取 classpath 和压缩在线程池中执行
+ */
+public class StaticHandlerTest {
+
+    static {
+        Log.init(null);
+    }
+
+
+    final List<Runnable> tasks = new ArrayList<>();
+    /**
+     * 只收集不执行
+     */
+    final Executor       exec  = tasks::add;
+
+
+    @Test
+    public void normalizePath() {
+        StaticHandler h = new StaticHandler(1024 * 1024, 64 * 1024, 60).add("/s/", "classpath:cn/xnatural/enet/test/server/");
+        assertEquals(200, status(h, "/s/ReadPauseTest.class"));
+        assertEquals(200, status(h, "/s/x/../ReadPauseTest.class"));
+        assertEquals(200, status(h, "/s/.//ReadPauseTest.class"));
+        assertEquals(404, status(h, "/s/../server/ReadPauseTest.class")); // 超出映射的目录
+        assertEquals(404, status(h, "/s/%2e%2e/redis/FakeRedis.class"));
+        assertEquals(404, status(h, "/s/x/../../redis/FakeRedis.class"));
+        assertEquals(404, status(h, "/s/..%5credis/FakeRedis.class"));
+        assertEquals(404, status(h, "/s/"));
+    }
+
+
+    /**
+     * 没有缓存时在线程池中读取, 之后的请求在事件循环线程中直接从缓存响应; 第一次压缩也在线程池中
+     */
+    @Test
+    public void loadOffLoop() {
+        StaticHandler h = new StaticHandler(1024 * 1024, 64 * 1024, 60).add("/s/", "classpath:cn/xnatural/enet/test/server/")
+            .executor(exec).gzip(64, new String[]{"application/octet-stream"});
+        EmbeddedChannel ch = new EmbeddedChannel(h);
+        ch.writeInbound(request("/s/ReadPauseTest.class", false));
+        assertNull(ch.readOutbound());
+        assertEquals(1, tasks.size());
+        tasks.remove(0).run();
+        assertEquals(200, status(ch.readOutbound()));
+
+        ch.writeInbound(request("/s/ReadPauseTest.class", false)); // 缓存
+        assertEquals(200, status(ch.readOutbound()));
+        assertTrue(tasks.isEmpty());
+
+        ch.writeInbound(request("/s/ReadPauseTest.class", true)); // 还没压缩过
+        assertNull(ch.readOutbound());
+        tasks.remove(0).run();
+        FullHttpResponse gz = ch.readOutbound();
+        assertEquals("gzip", gz.headers().get(HttpHeaderNames.CONTENT_ENCODING));
+        ReferenceCountUtil.release(gz);
+
+        ch.writeInbound(request("/s/ReadPauseTest.class", true)); // 压缩的也缓存了
+        assertEquals(200, status(ch.readOutbound()));
+        assertTrue(tasks.isEmpty());
+        ch.finishAndReleaseAll();
+        h.clear();
+    }
+
+
+    static int status(StaticHandler h, String uri) {
+        EmbeddedChannel ch = new EmbeddedChannel(h);
+        ch.writeInbound(request(uri, false));
+        int s = status(ch.readOutbound());
+        ch.finishAndReleaseAll();
+        return s;
+    }
+
+
+    static int status(Object resp) {
+        assertNotNull("no response", resp);
+        int s = ((HttpResponse) resp).status().code();
+        ReferenceCountUtil.release(resp);
+        return s;
+    }
+
+
+    static FullHttpRequest request(String uri, boolean gzip) {
+        FullHttpRequest r = new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, uri);
+        if (gzip) r.headers().set(HttpHeaderNames.ACCEPT_ENCODING, HttpHeaderValues.GZIP);
+        return r;
+    }
+}
@@ -0,0 +1,90 @@
+package cn.xnatural.enet.test.session;
+
+import cn.xnatural.enet.common.Log;
+import cn.xnatural.enet.server.session.MemSessionStore;
+import org.junit.Test;
+
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * {@link MemSessionStore}: 过期清理, 分段 LRU 容量, 命中/属性计数
+ */
+public class MemSessionStoreTest {
+
+    static {
+        Log.init(null);
+    }
+
+
+    /**
+     * 从表头开始移除过期的, 每次最多 batch 个; 最近访问的不移除
+     */
+    @Test
+    public void sweepExpired() throws Exception {
+        MemSessionStore store = new MemSessionStore(60_000, 100, 1);
+        store.set("a", "k", "1"); store.access("b"); store.access("c");
+        Thread.sleep(100);
+        store.access("b"); // 移到表尾
+        store.setExpireMs(50);
+        assertEquals(1, store.sweep(1));
+        assertEquals(1, store.sweep(10)); // c
+        assertEquals(0, store.sweep(10));
+        assertEquals(1, store.size());
+        Map<String, Object> m = store.metrics();
+        assertEquals(2L, m.get("expired"));
+        assertEquals(0L, m.get("attrs"));
+        assertNull(store.get("a", "k")); // 重新创建的
+    }
+
+
+    /**
+     * 分段满了淘汰最久没有访问的
+     */
+    @Test
+    public void lruCap() {
+        MemSessionStore store = new MemSessionStore(60_000, 3, 1);
+        store.set("a", "k", "1"); store.set("b", "k", "2"); store.set("c", "k", "3");
+        store.access("a");
+        store.access("d"); // 淘汰 b
+        assertEquals(3, store.size());
+        assertEquals("1", store.get("a", "k"));
+        assertEquals("3", store.get("c", "k"));
+        Map<String, Object> m = store.metrics();
+        assertEquals(1L, m.get("evicted"));
+        assertEquals(2L, m.get("attrs"));
+
+        MemSessionStore striped = new MemSessionStore(60_000, 8, 4); // 每个分段 2 个
+        for (int i = 0; i < 100; i++) striped.access("s" + i);
+        assertTrue(striped.size() <= 8);
+        assertEquals(100L - striped.size(), striped.metrics().get("evicted"));
+    }
+
+
+    @Test
+    public void counters() {
+        MemSessionStore store = new MemSessionStore(60_000, 100, 4);
+        store.access("a");                     // miss
+        store.set("a", "k1", "1");             // hit
+        store.set("a", "k1", "2");             // hit, 覆盖不增加属性个数
+        store.set("a", "k2", "1");             // hit
+        assertEquals("2", store.get("a", "k1")); // hit
+        store.set("b", "k1", "1");             // miss
+        store.set("a", "k2", null);            // hit, 删除属性
+        store.set("a", "none", null);          // hit
+        Map<String, Object> m = store.metrics();
+        assertEquals(6L, m.get("hits"));
+        assertEquals(2L, m.get("misses"));
+        assertEquals(75.0, m.get("hitRate"));
+        assertEquals(2, m.get("sessions"));
+        assertEquals(2L, m.get("attrs"));
+
+        store.remove("a");
+        assertEquals(1L, store.metrics().get("attrs"));
+        try {
+            store.getOrCreate("b", false).getData().put("x", "y");
+            fail("getData is read only");
+        } catch (UnsupportedOperationException ex) { /* 只读 */ }
+    }
+}
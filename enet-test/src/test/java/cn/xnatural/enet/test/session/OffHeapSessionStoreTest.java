@@ -0,0 +1,166 @@
+package cn.xnatural.enet.test.session;
+
+import cn.xnatural.enet.common.Log;
+import cn.xnatural.enet.server.session.OffHeapSessionStore;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * {@link OffHeapSessionStore}: 索引删除(backward shift), 从映射文件重新加载, 页在大小等级之间重新分配
+ */
+public class OffHeapSessionStoreTest {
+
+    static {
+        Log.init(null);
+    }
+
+
+    static final int PAGE = 64 * 1024;
+
+
+    /**
+     * 同一个槽开始的探测链: 删除中间的, 后面的前移后还能找到
+     */
+    @Test
+    public void backwardShiftDelete() {
+        Store store = new Store(48, 4 * PAGE, null); // 64 个槽
+        List<String> chain = store.sameHome(4, 64);
+        for (String id : chain) store.set(id, "k", id);
+        store.remove(chain.get(1));
+        assertEquals(chain.get(0), store.get(chain.get(0), "k"));
+        assertEquals(chain.get(2), store.get(chain.get(2), "k"));
+        assertEquals(chain.get(3), store.get(chain.get(3), "k"));
+        store.remove(chain.get(0));
+        assertEquals(chain.get(3), store.get(chain.get(3), "k"));
+        assertEquals(2L, store.metrics().get("sessions"));
+
+        // 随机增删和 HashMap 对照
+        Random r = new Random(1);
+        Map<String, String> model = new HashMap<>();
+        for (int round = 0; round < 5000; round++) {
+            String id = "s" + r.nextInt(40);
+            if (r.nextInt(3) == 0) { store.remove(id); model.remove(id); }
+            else { String v = "v" + round; store.set(id, "k", v); model.put(id, v); }
+        }
+        for (int i = 0; i < 40; i++) assertEquals(model.get("s" + i), store.get("s" + i, "k"));
+        store.close();
+    }
+
+
+    /**
+     * 映射文件: 重启后 session 还在, 空闲块正确重建(新写入不覆盖已有的); 配置变了时清空
+     */
+    @Test
+    public void reloadFromFile() throws Exception {
+        File f = File.createTempFile("sessions", ".dat");
+        try {
+            Store store = new Store(100, 8 * PAGE, f.getPath());
+            for (int i = 0; i < 50; i++) store.set("s" + i, "k", i % 2 == 0 ? "small" + i : repeat('x', 300 + i));
+            store.setExpireMs(60_000);
+            store.close();
+
+            Store loaded = new Store(100, 8 * PAGE, f.getPath());
+            assertEquals(50L, loaded.metrics().get("sessions"));
+            assertEquals(0L, loaded.metrics().get("evicted"));
+            for (int i = 50; i < 80; i++) loaded.set("s" + i, "k", repeat('y', 100 + i));
+            for (int i = 0; i < 50; i += 3) loaded.set("s" + i, "k", repeat('z', 200 + i)); // 换等级
+            for (int i = 0; i < 80; i++) {
+                String expect = i < 50 && i % 3 == 0 ? repeat('z', 200 + i) : i >= 50 ? repeat('y', 100 + i) : i % 2 == 0 ? "small" + i : repeat('x', 300 + i);
+                assertEquals("s" + i, expect, loaded.get("s" + i, "k"));
+            }
+            assertEquals(0L, loaded.metrics().get("evicted"));
+            loaded.close();
+
+            Store changed = new Store(200, 8 * PAGE, f.getPath()); // 槽数不同
+            assertEquals(0L, changed.metrics().get("sessions"));
+            changed.close();
+        } finally {
+            f.delete();
+        }
+    }
+
+
+    /**
+     * 页都分给了小等级: 小 session 删除后, 大的 session 能用这些页
+     */
+    @Test
+    public void reassignFreedPages() {
+        Store store = new Store(2000, 2 * PAGE, null);
+        fillSmall(store);
+        long evicted = (long) store.metrics().get("evicted");
+        for (String id : store.ids()) store.remove(id);
+        assertEquals(2L, store.metrics().get("emptyPages"));
+
+        store.set("big", "k", repeat('b', 40_000)); // 一块占一页
+        assertEquals(repeat('b', 40_000), store.get("big", "k"));
+        assertEquals(evicted, store.metrics().get("evicted"));
+        store.close();
+    }
+
+
+    /**
+     * 页都被小 session 占满: 写大的 session 只清空一页, 另一页的 session 还在
+     */
+    @Test
+    public void evictOnlyOnePage() {
+        Store store = new Store(2000, 2 * PAGE, null);
+        fillSmall(store);
+        long sessions = (long) store.metrics().get("sessions"), evicted = (long) store.metrics().get("evicted");
+        store.set("big", "k", repeat('b', 40_000));
+        assertEquals(repeat('b', 40_000), store.get("big", "k"));
+        long n = (long) store.metrics().get("evicted") - evicted;
+        assertTrue("evicted: " + n + ", sessions: " + sessions, n > 0 && n < sessions / 2 + 2);
+        assertTrue((long) store.metrics().get("sessions") > sessions / 3);
+    }
+
+
+    /**
+     * 两页都分给小等级并且写满
+     */
+    static void fillSmall(Store store) {
+        for (int i = 0; i < 1500; i++) store.set("small" + i, "k", repeat('v', 100) + i);
+        assertEquals(0L, store.metrics().get("emptyPages"));
+    }
+
+
+    static String repeat(char c, int n) {
+        char[] cs = new char[n];
+        Arrays.fill(cs, c);
+        return new String(cs);
+    }
+
+
+    /**
+     * 1 个分段, 暴露 sId 的 hash
+     */
+    static class Store extends OffHeapSessionStore {
+        final Set<String> ids = new LinkedHashSet<>();
+
+        Store(int maxSessions, long dataSize, String file) { super(60_000, maxSessions, 1, dataSize, file); }
+
+        @Override
+        public void set(String sId, Object key, Object value) { super.set(sId, key, value); ids.add(sId); }
+
+        @Override
+        public void remove(String sId) { super.remove(sId); ids.remove(sId); }
+
+        List<String> ids() { return new ArrayList<>(ids); }
+
+        /**
+         * n 个在 slots 个槽的索引中起始槽相同的 sId
+         */
+        List<String> sameHome(int n, int slots) {
+            Map<Integer, List<String>> byHome = new HashMap<>();
+            for (int i = 0; ; i++) {
+                String id = "c" + i;
+                List<String> l = byHome.computeIfAbsent(hash(key(id)) & (slots - 1), h -> new ArrayList<>());
+                l.add(id);
+                if (l.size() == n) return l;
+            }
+        }
+    }
+}
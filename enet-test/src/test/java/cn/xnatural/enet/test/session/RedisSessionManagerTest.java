@@ -0,0 +1,208 @@
+package cn.xnatural.enet.test.session;
+
+import cn.xnatural.enet.common.Log;
+import cn.xnatural.enet.core.AppContext;
+import cn.xnatural.enet.event.EL;
+import cn.xnatural.enet.server.ServerTpl;
+import cn.xnatural.enet.server.redis.RedisServer;
+import cn.xnatural.enet.server.session.RedisSessionManager;
+import cn.xnatural.enet.test.redis.FakeRedis;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.Assert.*;
+
+/**
+ * {@link RedisSessionManager} 的本地近缓存: LRU 淘汰, 缓存时间, 访问时间节流, pub/sub 失效通知
+ * redis 用 {@link FakeRedis} 代替
+ */
+public class RedisSessionManagerTest {
+
+    static {
+        Log.init(null);
+    }
+
+
+    static final String[] PROPS = {"redis.port", "session-redis.nearCacheSize", "session-redis.nearCacheTtl", "session-redis.touchInterval"};
+    static FakeRedis  redis;
+    static AppContext app;
+    static Probe      probe;
+
+
+    @BeforeClass
+    public static void start() throws Exception {
+        redis = new FakeRedis();
+        System.setProperty("redis.port", String.valueOf(redis.port()));
+        System.setProperty("session-redis.nearCacheSize", "2");
+        System.setProperty("session-redis.nearCacheTtl", "2");
+        System.setProperty("session-redis.touchInterval", "2");
+        app = new AppContext();
+        app.addSource(new RedisServer());
+        app.addSource(new RedisSessionManager());
+        app.addSource(probe = new Probe());
+        app.start();
+        assertTrue(probe.started.await(10, TimeUnit.SECONDS));
+        waitFor(() -> redis.subscribers("session-invalidate") == 1);
+    }
+
+
+    @AfterClass
+    public static void stop() throws Exception {
+        app.stop();
+        redis.close();
+        for (String p : PROPS) System.clearProperty(p);
+    }
+
+
+    @Test
+    public void lruEviction() {
+        redis.hset("session-l1", "k", "1").hset("session-l2", "k", "2").hset("session-l3", "k", "3");
+        assertEquals("1", get("l1", "k"));
+        assertEquals("2", get("l2", "k"));
+        assertEquals("1", get("l1", "k")); // l1 变为最近使用
+        assertEquals("3", get("l3", "k")); // 超过 2 个: 淘汰最久没用的 l2
+        assertEquals(2, stats().get("nearSessions"));
+
+        assertEquals("1", get("l1", "k"));
+        assertEquals(1, redis.count("HGETALL", "session-l1"));
+        assertEquals("2", get("l2", "k"));
+        assertEquals(2, redis.count("HGETALL", "session-l2"));
+    }
+
+
+    @Test
+    public void nearCacheTtl() throws Exception {
+        redis.hset("session-t1", "k", "v");
+        assertEquals("v", get("t1", "k"));
+        assertEquals("v", get("t1", "k"));
+        assertEquals(1, redis.count("HGETALL", "session-t1"));
+        Thread.sleep(2100); // nearCacheTtl: 2 秒
+        assertEquals("v", get("t1", "k"));
+        assertEquals(2, redis.count("HGETALL", "session-t1"));
+    }
+
+
+    @Test
+    public void setWritesWithSessionExpire() {
+        probe.fire("session.set", "e1", "k", "v");
+        waitFor(() -> redis.ttl("session-e1") != null);
+        assertEquals(30 * 60, (long) redis.ttl("session-e1")); // expire 默认 30 分钟
+        assertEquals(1, redis.countHSet("session-e1", "k"));
+    }
+
+
+    @Test
+    public void touchThrottling() throws Exception {
+        for (int i = 0; i < 5; i++) probe.fire("session.access", "a1"); // 同一批次中合并为一个
+        waitFor(() -> redis.countHSet("session-a1", "access") == 1);
+        assertEquals(30 * 60, (long) redis.ttl("session-a1"));
+
+        long skipped = (long) stats().get("skippedTouches");
+        probe.fire("session.access", "a1"); // touchInterval 内: 不再写
+        waitFor(() -> (long) stats().get("skippedTouches") == skipped + 1);
+        assertEquals(1, redis.countHSet("session-a1", "access"));
+
+        Thread.sleep(2100); // touchInterval: 2 秒
+        probe.fire("session.access", "a1");
+        waitFor(() -> redis.countHSet("session-a1", "access") == 2);
+    }
+
+
+    @Test
+    public void pubSubInvalidation() throws Exception {
+        redis.hset("session-p1", "k", "v1");
+        assertEquals("v1", get("p1", "k"));
+        long invalidations = (long) stats().get("invalidations");
+
+        // 本节点的修改: 直接更新本地缓存, 自己的通知被忽略
+        probe.fire("session.set", "p1", "k", "v2");
+        waitFor(() -> redis.count("PUBLISH", "session-invalidate") > 0 && "v2".equals(get("p1", "k")));
+        Thread.sleep(200);
+        assertEquals(invalidations, stats().get("invalidations"));
+        assertEquals(1, redis.count("HGETALL", "session-p1"));
+
+        // 其它节点的修改: 删除本地缓存, 下次重新读取
+        redis.hset("session-p1", "k", "v3");
+        probe.fire("redis.publish", "session-invalidate", "otherNode p1");
+        waitFor(() -> (long) stats().get("invalidations") == invalidations + 1);
+        assertEquals("v3", get("p1", "k"));
+        assertEquals(2, redis.count("HGETALL", "session-p1"));
+    }
+
+
+    /**
+     * 还没加载的 session: set 后 redis 写完成前 get, 读到本地写入, 不缓存 redis 中的旧值
+     */
+    @Test
+    public void setBeforeFlushIsVisible() {
+        redis.hset("session-w1", "k", "old").hset("session-w1", "other", "x");
+        CountDownLatch hsetHeld = redis.hold("HSET");
+        try {
+            probe.fire("session.set", "w1", "k", "new");
+            assertEquals("new", get("w1", "k"));
+            assertEquals("x", get("w1", "other"));
+            assertEquals(1, redis.count("HGETALL", "session-w1"));
+        } finally {
+            hsetHeld.countDown();
+        }
+        waitFor(() -> redis.countHSet("session-w1", "k") == 1);
+        assertEquals("new", get("w1", "k"));
+        assertEquals(1, redis.count("HGETALL", "session-w1")); // 用的是缓存
+    }
+
+
+    /**
+     * 加载期间本节点 set 了: 加载的旧数据不覆盖, 下次重新加载
+     */
+    @Test
+    public void loadDoesNotOverwriteNewerSet() throws Exception {
+        redis.hset("session-w2", "k", "old");
+        CountDownLatch hgetallHeld = redis.hold("HGETALL");
+        Thread reader;
+        try {
+            reader = new Thread(() -> get("w2", "k"));
+            reader.start();
+            waitFor(() -> redis.count("HGETALL", "session-w2") == 1); // 加载已开始, 等在 redis 中
+            probe.fire("session.set", "w2", "k", "new");
+            waitFor(() -> redis.countHSet("session-w2", "k") == 1);
+        } finally {
+            hgetallHeld.countDown();
+        }
+        reader.join(5000);
+        assertEquals("new", get("w2", "k"));
+        assertEquals("new", get("w2", "k"));
+    }
+
+
+    static Object get(String sId, String key) { return probe.fire("session.get", sId, key); }
+
+
+    static Map<String, Object> stats() { return (Map<String, Object>) probe.fire("session.stats"); }
+
+
+    static void waitFor(BooleanSupplier fn) {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!fn.getAsBoolean()) {
+            if (System.currentTimeMillis() > deadline) fail("timeout");
+            try { Thread.sleep(10); } catch (InterruptedException e) { throw new RuntimeException(e); }
+        }
+    }
+
+
+    public static class Probe extends ServerTpl {
+        final CountDownLatch started = new CountDownLatch(1);
+
+        Probe() { super("probe"); }
+
+        @EL(name = "session-redis.started")
+        void started() { started.countDown(); }
+
+        Object fire(String eName, Object... args) { return ep.fire(eName, args); }
+    }
+}